@@ -0,0 +1,159 @@
+package benchmark;
+
+import connection.Frame;
+import message.MessageDecoder;
+import message.MessageWriter;
+import message.Uplink;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares bytes allocated per RXL by JSON DOM parsing and by the typed decoder
+ * Checks first that truncated and malformed messages are rejected by MalformedMessageException
+ * Usage: java -cp lones.jar benchmark.DecoderBenchmark [messages]
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class DecoderBenchmark {
+  private static final String RXL = "{\"message_name\":\"RXL\",\"message_body\":{\"time\":1491648871,\"dev_id\":\"QUFB\","
+    + "\"sf\":7,\"cr\":\"4/5\",\"band\":\"125000\",\"rssi\":\"-98\",\"snr\":\"7.0\",\"freq\":\"868.1\",\"data\":\"RklJVEtB\","
+    + "\"conf_need\":true,\"duty_c\":\"20000\",\"ack\":\"VOLATILE\",\"power\":14,\"seq\":22310}}";
+
+  // Text string whose 8 byte length is negative as int, it used to move the decoder backwards
+  private static final byte[] NEGATIVE_LENGTH = {
+    (byte) 0xbf, 0x00, 0x00, 0x7b, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf6
+  };
+
+  // Keeps results reachable so the work is not optimized away
+  private static long sink;
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    byte[] json = RXL.getBytes(StandardCharsets.UTF_8);
+    byte[] cbor = MessageWriter.create(Frame.Encoding.CBOR).json(new JSONObject(RXL)).toByteArray();
+
+    System.out.println("Messages: " + messages + ", JSON " + json.length + " B, CBOR " + cbor.length + " B");
+    rejected(json, cbor);
+
+    // Warm up all paths before measuring
+    for (int i = 0; i < 3; i++) {
+      run("warm-up", messages / 4, () -> legacy(json), false);
+      run("warm-up", messages / 4, () -> typed(Frame.json(json)), false);
+      run("warm-up", messages / 4, () -> typed(Frame.binary(cbor)), false);
+    }
+
+    run("json dom", messages, () -> legacy(json), true);
+    run("typed json", messages, () -> typed(Frame.json(json)), true);
+    run("typed cbor", messages, () -> typed(Frame.binary(cbor)), true);
+    System.out.println(sink == 0 ? "" : "Done");
+  }
+
+  /**
+   * Former path: string, DOM, exception driven type default and re-parsed numbers
+   */
+  private static long legacy(byte[] data) throws JSONException {
+    JSONObject message = new JSONObject(new String(data, StandardCharsets.UTF_8));
+    JSONObject body = message.getJSONObject("message_body");
+    String type;
+
+    try {
+      type = body.getString("type");
+    } catch (JSONException e) {
+      type = "normal";
+    }
+
+    float snr = Float.parseFloat(body.getString("snr"));
+    float rssi = Float.parseFloat(body.getString("rssi"));
+    float freq = Float.parseFloat(body.getString("freq"));
+    return body.getString("dev_id").length() + body.getInt("seq") + body.getInt("duty_c") + body.getInt("sf")
+      + body.getInt("band") + body.getString("ack").length() + type.length() + (long) (snr + rssi + freq);
+  }
+
+  private static long typed(Frame frame) throws MessageDecoder.MalformedMessageException {
+    Uplink uplink = (Uplink) MessageDecoder.decode(frame, 0, "ap");
+    return uplink.getDevId().length() + uplink.getSeq() + uplink.getDutyC() + uplink.getSf() + uplink.getBand()
+      + uplink.getAck().length() + uplink.getType().length() + (long) (uplink.getSnr() + uplink.getRssi() + uplink.getFreq());
+  }
+
+  /**
+   * Every truncated sample and a few malformed ones have to fail with MalformedMessageException
+   */
+  private static void rejected(byte[] json, byte[] cbor) {
+    int checked = 0;
+
+    for (int length = 0; length < json.length; length++) {
+      rejected(Frame.json(Arrays.copyOf(json, length)));
+      checked++;
+    }
+    for (int length = 1; length < cbor.length; length++) {
+      rejected(Frame.binary(Arrays.copyOf(cbor, length)));
+      checked++;
+    }
+
+    // Value of dev_id gets a 4 byte length, its text is read as a length beyond the message
+    byte[] overflow = cbor.clone();
+    int devId = RXL.indexOf("QUFB");
+    for (int i = 0; i < cbor.length - 4; i++) {
+      if (cbor[i] == 'd' && cbor[i + 1] == 'e' && cbor[i + 2] == 'v' && cbor[i + 3] == '_') {
+        overflow[i + 6] = 0x7a;
+        break;
+      }
+    }
+    rejected(Frame.binary(overflow));
+    rejected(Frame.binary(NEGATIVE_LENGTH));
+    rejected(Frame.text(RXL.replace("QUFB", "\\uQUFB")));
+    rejected(Frame.text(RXL.substring(0, devId) + "QUFB\\"));
+    System.out.println("Malformed messages rejected: " + (checked + 4));
+  }
+
+  private static void rejected(Frame frame) {
+    // Peeks run before decoding, they have to return as well
+    MessageDecoder.readMessageName(frame);
+    MessageDecoder.readBodyType(frame);
+
+    try {
+      MessageDecoder.decode(frame, 0, "ap");
+    } catch (MessageDecoder.MalformedMessageException e) {
+      return;
+    }
+    throw new IllegalStateException("Malformed message decoded: " + frame);
+  }
+
+  /**
+   * Decodes given number of messages and prints time and allocation per message
+   */
+  private static void run(String name, int messages, Decode decode, boolean print) throws Exception {
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < messages; i++) {
+      sink += decode.run();
+    }
+
+    long nanos = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+
+    if (print) {
+      System.out.println(String.format("%-10s %8.0f ns/message, %s",
+        name, nanos / (double) messages, allocated < 0 ? "allocation unknown" : String.format("%6d B/message", allocated / messages)));
+    }
+  }
+
+  /**
+   * Bytes allocated by current thread, -1 when JVM does not expose it
+   */
+  private static long allocatedBytes() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private interface Decode {
+    long run() throws Exception;
+  }
+}
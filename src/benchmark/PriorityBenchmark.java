@@ -0,0 +1,204 @@
+package benchmark;
+
+import connection.DownlinkWriter;
+import connection.Frame;
+import connection.FrameDecoder;
+import connection.IngressQueue;
+import core.ExecutionMode;
+import core.ShardedExecutor;
+import message.Downlink;
+import message.MessageWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures latency of emergency uplinks while normal RXL traffic saturates processing
+ * Uplinks pass ingress queue of their AP, processing lanes and downlink writer of the AP, processing is simulated by a delay
+ * Runs once with priority classes and once with emergency handled as normal traffic
+ * Usage: java -cp lones.jar benchmark.PriorityBenchmark [aps] [lanes] [processingMicros] [seconds]
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class PriorityBenchmark {
+  // Normal traffic offered above processing capacity
+  private static final double OVERLOAD = 1.5;
+  private static final int EMERGENCY_INTERVAL_MILLIS = 10;
+  private static final int DEVICES = 10000;
+
+  public static void main(String[] args) throws Exception {
+    int aps = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int lanes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int processingMicros = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+    System.out.println("APs: " + aps + ", lanes: " + lanes + ", processing: " + processingMicros + " us, "
+      + "normal load: " + OVERLOAD + "x capacity, emergency every " + EMERGENCY_INTERVAL_MILLIS + " ms, " + seconds + " s");
+    run("priority", true, aps, lanes, processingMicros, seconds);
+    run("fifo", false, aps, lanes, processingMicros, seconds);
+    System.exit(0);
+  }
+
+  /**
+   * Runs one scenario and prints results
+   * @param name scenario name
+   * @param priority whether emergency uplinks are marked as such
+   * @param aps number of connected AP-s
+   * @param lanes number of processing lanes
+   * @param processingMicros simulated processing time of an uplink
+   * @param seconds duration of offered load
+   */
+  private static void run(String name, boolean priority, int aps, int lanes, int processingMicros, int seconds) throws Exception {
+    ExecutionMode mode = new ExecutionMode(ExecutionMode.PLATFORM);
+    ShardedExecutor processing = new ShardedExecutor("bench." + name, lanes, mode);
+    ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    AtomicLong normalWritten = new AtomicLong();
+    IngressQueue[] ingress = new IngressQueue[aps];
+    DownlinkWriter[] writers = new DownlinkWriter[aps];
+
+    for (int i = 0; i < aps; i++) {
+      IngressQueue queue = new IngressQueue(1000, IngressQueue.OverflowPolicy.BLOCK, "bench." + name + "." + i + ".ingress");
+      DownlinkWriter writer = new DownlinkWriter(OutputStream.nullOutputStream(),
+        new FrameDecoder(FrameDecoder.Framing.DELIMITER, (byte) '\n', 65536), "bench." + name + "." + i + ".downlink");
+      ingress[i] = queue;
+      writers[i] = writer;
+      mode.start("bench-writer-" + i, writer);
+      mode.start("bench-process-" + i, () -> process(queue, processing, writer, processingMicros, latencies, normalWritten));
+    }
+
+    // Emergency uplinks arrive on top of normal traffic
+    long end = System.nanoTime() + seconds * 1000000000L;
+    Thread emergencies = mode.start("bench-emergency", () -> {
+      int seq = 0;
+      while (System.nanoTime() < end) {
+        LockSupport.parkNanos(EMERGENCY_INTERVAL_MILLIS * 1000000L);
+        ingress[seq % aps].offer(uplink(seq % DEVICES, seq, true, priority));
+        seq++;
+      }
+    });
+
+    // Normal traffic paced above what the lanes are able to process
+    long interval = (long) (processingMicros * 1000L / lanes / OVERLOAD);
+    long next = System.nanoTime();
+    int seq = 0;
+    while (System.nanoTime() < end) {
+      ingress[seq % aps].put(uplink(seq % DEVICES, seq, false, priority));
+      seq++;
+      next += interval;
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+    }
+    emergencies.join();
+
+    for (IngressQueue queue : ingress) {
+      queue.close();
+    }
+
+    // Backlog left by the overload is not measured, nor is normal traffic blocked at the ingress queue
+    Long[] measured = latencies.toArray(new Long[0]);
+    long[] sorted = new long[measured.length];
+    for (int i = 0; i < measured.length; i++) {
+      sorted[i] = measured[i];
+    }
+    Arrays.sort(sorted);
+
+    System.out.println(String.format("%-8s normal %6.0f/s answered of %6.0f/s sent, emergency answered %4d, latency p50 %8.2f ms, p99 %8.2f ms, max %8.2f ms",
+      name, normalWritten.get() / (double) seconds, seq / (double) seconds, sorted.length,
+      percentile(sorted, 50), percentile(sorted, 99), sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6));
+
+    for (DownlinkWriter writer : writers) {
+      writer.close();
+    }
+  }
+
+  /**
+   * Simulated process thread of an AP, emergency is processed ahead of other devices like the concentrator does
+   */
+  private static void process(IngressQueue queue, ShardedExecutor processing, DownlinkWriter writer, int processingMicros,
+                              ConcurrentLinkedQueue<Long> latencies, AtomicLong normalWritten) {
+    try {
+      Frame frame;
+      while ((frame = queue.take()) != null) {
+        boolean urgent = frame.getPriority() == Frame.Priority.EMERGENCY;
+        String text = new String(frame.toBytes(), StandardCharsets.UTF_8);
+        long receivedAt = Long.parseLong(text.substring(text.indexOf("\"time\":") + 7, text.indexOf(",\"type\"")));
+        boolean emergency = text.contains("\"dev_id\":\"E");
+        String devId = text.substring(text.indexOf("\"dev_id\":\"") + 10, text.indexOf("\",\"seq\""));
+
+        processing.execute(devId, () -> {
+          LockSupport.parkNanos(processingMicros * 1000L);
+          TimedDownlink downlink = new TimedDownlink(receivedAt, emergency, latencies, normalWritten);
+          if (urgent) {
+            downlink.setPriority(Frame.Priority.EMERGENCY);
+          }
+
+          try {
+            writer.write(downlink, Frame.Encoding.JSON);
+          } catch (IOException e) {
+            // Writer closed after the run
+          }
+        }, urgent);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Creates received RXL, emergency devices are recognizable by dev_id even when sent as normal traffic
+   * Time of reception is carried in the time field
+   */
+  private static Frame uplink(int device, int seq, boolean emergency, boolean priority) {
+    String type = emergency && priority ? "emer" : "normal";
+    String json = "{\"message_name\":\"RXL\",\"message_body\":{\"time\":" + System.nanoTime() + ",\"type\":\"" + type + "\",\"dev_id\":\""
+      + (emergency ? "E" : "N") + device + "\",\"seq\":" + seq + ",\"data\":\"RklJVEtB\"}}";
+    return Frame.json(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static double percentile(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1e6;
+  }
+
+  /**
+   * TXL recording time from reception of its uplink until it is encoded by the downlink writer
+   */
+  private static class TimedDownlink extends Downlink {
+    private final long receivedAt;
+    private final boolean emergency;
+    private final ConcurrentLinkedQueue<Long> latencies;
+    private final AtomicLong normalWritten;
+
+    TimedDownlink(long receivedAt, boolean emergency, ConcurrentLinkedQueue<Long> latencies, AtomicLong normalWritten) {
+      super(Downlink.TXL);
+      this.receivedAt = receivedAt;
+      this.emergency = emergency;
+      this.latencies = latencies;
+      this.normalWritten = normalWritten;
+    }
+
+    @Override
+    public void writeTo(MessageWriter writer) {
+      if (emergency) {
+        latencies.add(System.nanoTime() - receivedAt);
+      } else {
+        normalWritten.incrementAndGet();
+      }
+      super.writeTo(writer);
+    }
+
+    @Override
+    protected void writeBody(MessageWriter writer) {
+      writer.beginObject(0).endObject();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package benchmark;
+
+import core.ExecutionMode;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Compares platform and virtual threads on the AP threading model
+ * Every simulated AP has a reader and a process thread, every uplink opens a sleeping concentration window
+ * Usage: java -cp lones.jar benchmark.ThreadModelBenchmark [aps] [uplinks] [waitTime]
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class ThreadModelBenchmark {
+  private static final String ENDING = "ENDING";
+
+  public static void main(String[] args) throws Exception {
+    int aps = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int uplinks = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+    int waitTime = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+    System.out.println("APs: " + aps + ", uplinks: " + uplinks + ", window: " + waitTime + " ms");
+    run(new ExecutionMode(ExecutionMode.PLATFORM), aps, uplinks, waitTime);
+
+    ExecutionMode virtual = new ExecutionMode(ExecutionMode.VIRTUAL);
+    if (virtual.isVirtual()) {
+      run(virtual, aps, uplinks, waitTime);
+    } else {
+      System.out.println("Virtual threads unavailable on this JVM, comparison skipped");
+    }
+  }
+
+  /**
+   * Runs one scenario and prints results
+   * @param mode execution mode under test
+   * @param aps number of connected AP-s
+   * @param uplinks number of uplinks spread over AP-s
+   * @param waitTime concentration window length
+   */
+  private static void run(ExecutionMode mode, int aps, int uplinks, int waitTime) throws Exception {
+    System.gc();
+    long heapBefore = usedHeap();
+    List<BlockingQueue<String>> sockets = new ArrayList<>(aps);
+    CountDownLatch windowsDone = new CountDownLatch(uplinks);
+
+    // Connecting AP-s, both threads park on their queues like SocketThread and ProcessThread do
+    long connectStart = System.nanoTime();
+    for (int i = 0; i < aps; i++) {
+      BlockingQueue<String> socket = new LinkedBlockingQueue<>();
+      BlockingQueue<String> jobQueue = new LinkedBlockingQueue<>();
+      sockets.add(socket);
+      mode.start("ap-" + i + "-reader", () -> pipe(socket, jobQueue));
+      mode.start("ap-" + i + "-process", () -> process(mode, jobQueue, windowsDone, waitTime));
+    }
+    long connectMillis = (System.nanoTime() - connectStart) / 1000000;
+    long heapConnected = usedHeap() - heapBefore;
+    int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    // Every uplink opens its own concentration window
+    long uplinkStart = System.nanoTime();
+    for (int i = 0; i < uplinks; i++) {
+      sockets.get(i % aps).put("RXL");
+    }
+    windowsDone.await();
+    long uplinkMillis = (System.nanoTime() - uplinkStart) / 1000000;
+
+    for (BlockingQueue<String> socket : sockets) {
+      socket.put(ENDING);
+    }
+
+    System.out.println(String.format("%-8s connect %6d ms, heap %8d KB, platform threads %6d, %d windows closed in %6d ms (%.0f uplinks/s)",
+      mode.isVirtual() ? "virtual" : "platform", connectMillis, heapConnected / 1024, platformThreads,
+      uplinks, uplinkMillis, uplinks * 1000.0 / Math.max(1, uplinkMillis)));
+  }
+
+  /**
+   * Simulated socket reader
+   */
+  private static void pipe(BlockingQueue<String> socket, BlockingQueue<String> jobQueue) {
+    try {
+      String message;
+      do {
+        message = socket.take();
+        jobQueue.put(message);
+      } while (!message.equals(ENDING));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Simulated process thread, opens a concentration window per uplink
+   */
+  private static void process(ExecutionMode mode, BlockingQueue<String> jobQueue, CountDownLatch windowsDone, int waitTime) {
+    try {
+      while (!jobQueue.take().equals(ENDING)) {
+        mode.start("concentrator", () -> {
+          try {
+            Thread.sleep(waitTime);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          windowsDone.countDown();
+        });
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
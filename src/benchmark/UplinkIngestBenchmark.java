@@ -0,0 +1,113 @@
+package benchmark;
+
+import connection.Frame;
+import core.ExecutionMode;
+import core.Metrics;
+import core.Props;
+import database.DBHandler;
+import database.WriteBehind;
+import message.MessageDecoder;
+import message.Uplink;
+
+import java.util.ArrayList;
+
+/**
+ * Compares rows/s written into uplink_messages by the INSERT paths and by PostgreSQL COPY
+ * insert: one batched transaction per message group, as written synchronously by DBHandler
+ * writebehind: groups of many devices committed together by WriteBehind with batched INSERT
+ * copy: groups streamed by WriteBehind with COPY, WriteBehind.copyRows rows at once
+ * Needs the server configuration and database environment, node and AP must be registered, rows are not removed,
+ * so run it against a test database
+ * Usage: java -cp lones.jar benchmark.UplinkIngestBenchmark nodeId apId [groups] [replicas] [threads]
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class UplinkIngestBenchmark {
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Usage: UplinkIngestBenchmark nodeId apId [groups] [replicas] [threads]");
+      return;
+    }
+
+    String nodeId = args[0];
+    String apId = args[1];
+    int groups = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    int replicas = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+    int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+    Props props = new Props(null);
+    ExecutionMode executionMode = ExecutionMode.fromProps(props);
+    ArrayList<ArrayList<Uplink>> grapes = new ArrayList<>(groups);
+
+    for (int i = 0; i < groups; i++) {
+      grapes.add(grape(nodeId, apId, i, replicas));
+    }
+
+    System.out.println("Groups: " + groups + ", replicas: " + replicas + ", threads: " + threads);
+    run("insert", props, executionMode, grapes, threads);
+    run("writebehind", props, executionMode, grapes, threads);
+    run("copy", props, executionMode, grapes, threads);
+    System.exit(0);
+  }
+
+  /**
+   * Writes all groups from given number of threads, like processing lanes do, and prints rows/s
+   * @param name insert, writebehind or copy
+   */
+  private static void run(String name, Props props, ExecutionMode executionMode, ArrayList<ArrayList<Uplink>> grapes, int threads) throws InterruptedException {
+    props.prop.setProperty("WriteBehind.enabled", String.valueOf(!name.equals("insert")));
+    props.prop.setProperty("WriteBehind.uplinkIngest", name.equals("copy") ? "copy" : "insert");
+    DBHandler dbHandler = new DBHandler(props, executionMode);
+    WriteBehind writeBehind = dbHandler.getWriteBehind();
+    int msgTypeId = dbHandler.readMessageType(Uplink.TYPE_NORMAL);
+    long rowsBefore = Metrics.count("db.uplink.rows");
+    long roundTripsBefore = roundTrips();
+
+    long start = System.nanoTime();
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      workers[t] = executionMode.start("bench-ingest-" + t, () -> {
+        for (int i = first; i < grapes.size(); i += threads) {
+          ArrayList<Uplink> grape = grapes.get(i);
+          if (name.equals("insert")) {
+            dbHandler.bulkInsertUplinkMessages(grape, grape.get(0), i, msgTypeId);
+          } else {
+            writeBehind.bulkInsertUplinkMessages(grape, grape.get(0), i, msgTypeId);
+          }
+        }
+      });
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    // Rows are counted once committed
+    writeBehind.close();
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    long rows = Metrics.count("db.uplink.rows") - rowsBefore;
+    System.out.println(String.format("%-12s %8d rows in %6.2f s, %10.0f rows/s, round trips %d",
+      name, rows, seconds, rows / seconds, roundTrips() - roundTripsBefore));
+    // Each mode has its own handler, its connections are not reused by the next one
+    dbHandler.close();
+  }
+
+  private static long roundTrips() {
+    return Metrics.count("db.writebehind.roundtrips") + Metrics.count("db.uplink.roundtrips");
+  }
+
+  /**
+   * Creates replicas of one RXL received by different AP-s
+   */
+  private static ArrayList<Uplink> grape(String nodeId, String apId, int seq, int replicas) throws MessageDecoder.MalformedMessageException {
+    ArrayList<Uplink> grape = new ArrayList<>(replicas);
+
+    for (int r = 0; r < replicas; r++) {
+      String json = "{\"message_name\":\"RXL\",\"message_body\":{\"time\":1491648871,\"dev_id\":\"" + nodeId + "\","
+        + "\"sf\":7,\"cr\":\"4/5\",\"band\":\"125000\",\"rssi\":\"" + (-90 - r) + "\",\"snr\":\"7.0\",\"freq\":\"868.1\","
+        + "\"data\":\"RklJVEtB\",\"conf_need\":false,\"duty_c\":\"20000\",\"ack\":\"VOLATILE\",\"power\":14,\"seq\":" + seq + "}}";
+      grape.add((Uplink) MessageDecoder.decode(Frame.text(json), r, apId));
+    }
+    return grape;
+  }
+}
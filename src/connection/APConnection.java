@@ -0,0 +1,60 @@
+package connection;
+
+import message.Downlink;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Connection to a single AP regardless of the transport serving it
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public interface APConnection {
+  /**
+   * Sends downlink message to AP
+   * @param message downlink message, encoded when written to the connection
+   */
+  void write(Downlink message) throws IOException;
+
+  /**
+   * Encoding of downlinks negotiated in SETR/SETA, JSON until negotiated
+   * @return Frame.Encoding
+   */
+  Frame.Encoding getEncoding();
+
+  /**
+   * Switches encoding of downlinks, downlinks already queued keep their encoding
+   * @param encoding negotiated encoding
+   */
+  void setEncoding(Frame.Encoding encoding);
+
+  /**
+   * hWIdentifier serves for downlink AP identification
+   * @return String
+   */
+  String getHwIdentifier();
+
+  /**
+   * Setter for ap identifier
+   * @param hWIdentifier access point id
+   */
+  void setHwIdentifier(String hWIdentifier);
+
+  /**
+   * Internal identifier assigned on accept
+   * @return int
+   */
+  int getInternalIdentifier();
+
+  /**
+   * Removes downlinks which have not been written yet, e.g. to hand them over to a new connection
+   * @return list of downlink messages
+   */
+  List<Downlink> takePendingDownlinks();
+
+  /**
+   * Stops serving the AP
+   */
+  void close();
+}
@@ -0,0 +1,220 @@
+package connection;
+
+import core.Metrics;
+import message.Downlink;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connected AP-s indexed by internal and hardware identifier
+ * Downlinks for an AP which is reconnecting are parked until it sends SETR again
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class APRegistry {
+  private final AtomicInteger apIterator;
+  private final ConcurrentHashMap<Integer, APConnection> byInternalId;
+  private final ConcurrentHashMap<String, APConnection> byHwId;
+  private final ConcurrentHashMap<String, ConcurrentLinkedQueue<ParkedDownlink>> parked;
+  private final int maxParked;
+  private final long parkTime;
+
+  /**
+   * Constructor
+   * @param maxParked maximal number of parked downlinks per AP
+   * @param parkTime how long parked downlink stays valid in ms
+   */
+  public APRegistry(int maxParked, long parkTime) {
+    this.apIterator = new AtomicInteger(0);
+    this.byInternalId = new ConcurrentHashMap<>();
+    this.byHwId = new ConcurrentHashMap<>();
+    this.parked = new ConcurrentHashMap<>();
+    this.maxParked = maxParked;
+    this.parkTime = parkTime;
+    Metrics.gauge("ap.connected", byInternalId::size);
+    Metrics.gauge("ap.registered", byHwId::size);
+  }
+
+  /**
+   * Returns internal identifier for a newly accepted AP
+   * @return int
+   */
+  public int nextIdentifier() {
+    return apIterator.getAndIncrement();
+  }
+
+  /**
+   * Adds accepted AP
+   * @param connection AP connection
+   */
+  public void add(APConnection connection) {
+    byInternalId.put(connection.getInternalIdentifier(), connection);
+  }
+
+  /**
+   * Finds AP by internal identifier
+   * @param internalIdentifier internal ap identifier
+   * @return APConnection or null
+   */
+  public APConnection get(int internalIdentifier) {
+    return byInternalId.get(internalIdentifier);
+  }
+
+  /**
+   * Finds AP by hardware identifier
+   * @param hWIdentifier access point id
+   * @return APConnection or null
+   */
+  public APConnection getByHwIdentifier(String hWIdentifier) {
+    return byHwId.get(hWIdentifier);
+  }
+
+  /**
+   * Returns all connected AP-s
+   * @return Collection
+   */
+  public Collection<APConnection> getAll() {
+    return byInternalId.values();
+  }
+
+  /**
+   * Assigns hardware identifier to AP, a previous connection of the same AP is taken over
+   * Downlinks not yet written to the previous connection are sent through the new one
+   * @param connection AP connection which sent SETR
+   * @param hWIdentifier access point id
+   */
+  public void bindHwIdentifier(APConnection connection, String hWIdentifier) {
+    connection.setHwIdentifier(hWIdentifier);
+    APConnection previous = byHwId.put(hWIdentifier, connection);
+
+    if (previous != null && previous != connection) {
+      System.out.println("AP " + hWIdentifier + " reconnected, closing stale connection " + previous.getInternalIdentifier());
+      Metrics.increment("ap.takeover");
+      byInternalId.remove(previous.getInternalIdentifier(), previous);
+      for (Downlink message : previous.takePendingDownlinks()) {
+        park(hWIdentifier, message);
+      }
+      previous.close();
+    }
+    deliverParked(hWIdentifier);
+  }
+
+  /**
+   * Removes disconnected AP, its unsent downlinks are parked for reconnection
+   * @param internalIdentifier internal ap identifier
+   */
+  public void remove(int internalIdentifier) {
+    APConnection connection = byInternalId.remove(internalIdentifier);
+
+    if (connection == null) {
+      return;
+    }
+
+    String hWIdentifier = connection.getHwIdentifier();
+    if (hWIdentifier != null && byHwId.remove(hWIdentifier, connection)) {
+      for (Downlink message : connection.takePendingDownlinks()) {
+        park(hWIdentifier, message);
+      }
+    }
+  }
+
+  /**
+   * Sends downlink to current connection of AP
+   * @param hWIdentifier access point id, preferred as it survives reconnection
+   * @param internalIdentifier internal id of AP which received the uplink
+   * @param message downlink message
+   */
+  public void send(String hWIdentifier, int internalIdentifier, Downlink message) {
+    APConnection connection = hWIdentifier == null ? null : byHwId.get(hWIdentifier);
+
+    if (connection == null) {
+      connection = byInternalId.get(internalIdentifier);
+    }
+
+    if (connection != null) {
+      try {
+        connection.write(message);
+        return;
+      } catch (IOException e) {
+        System.out.println("Connection with AP " + internalIdentifier + " lost while sending downlink");
+      }
+    }
+
+    if (hWIdentifier == null) {
+      System.out.println("Downlink for unknown AP " + internalIdentifier + " discarded");
+      Metrics.increment("downlink.lost");
+      return;
+    }
+
+    park(hWIdentifier, message);
+    // AP could have reconnected meanwhile
+    deliverParked(hWIdentifier);
+  }
+
+  /**
+   * Keeps downlink until AP reconnects, oldest downlinks are dropped above limit
+   * @param hWIdentifier access point id
+   * @param message downlink message
+   */
+  private void park(String hWIdentifier, Downlink message) {
+    ConcurrentLinkedQueue<ParkedDownlink> queue = parked.computeIfAbsent(hWIdentifier, k -> new ConcurrentLinkedQueue<>());
+    queue.add(new ParkedDownlink(message));
+    Metrics.increment("downlink.parked");
+
+    while (queue.size() > maxParked && queue.poll() != null) {
+      Metrics.increment("downlink.lost");
+    }
+  }
+
+  /**
+   * Sends parked downlinks which are still valid to connected AP
+   * @param hWIdentifier access point id
+   */
+  private void deliverParked(String hWIdentifier) {
+    APConnection connection = byHwId.get(hWIdentifier);
+    ConcurrentLinkedQueue<ParkedDownlink> queue = connection == null ? null : parked.remove(hWIdentifier);
+
+    if (queue == null) {
+      return;
+    }
+
+    int expired = 0;
+    long now = System.currentTimeMillis();
+    ParkedDownlink downlink;
+
+    while ((downlink = queue.poll()) != null) {
+      if (now - downlink.parkedAt > parkTime) {
+        expired++;
+        continue;
+      }
+
+      try {
+        connection.write(downlink.message);
+      } catch (IOException e) {
+        park(hWIdentifier, downlink.message);
+      }
+    }
+
+    if (expired > 0) {
+      System.out.println(expired + " parked downlinks for AP " + hWIdentifier + " expired");
+      Metrics.add("downlink.lost", expired);
+    }
+  }
+
+  /**
+   * Downlink waiting for AP reconnection
+   */
+  private static class ParkedDownlink {
+    final Downlink message;
+    final long parkedAt;
+
+    ParkedDownlink(Downlink message) {
+      this.message = message;
+      this.parkedAt = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package connection;
+
+import core.Metrics;
+import message.Downlink;
+import message.MessageWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer of downlinks for one AP
+ * Frames queued by processing threads are written by Frame.Priority of the downlink, in order within a class,
+ * and never interleave, frames waiting together are flushed with a single write, e.g. one TLS record
+ * Downlinks are encoded only here, into writers reused for the whole connection
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class DownlinkWriter implements Runnable {
+  private static final int BUFFER_SIZE = 16384;
+  private static final PendingDownlink END = new PendingDownlink(null, Frame.Encoding.JSON);
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final OutputStream outStream;
+  private final FrameDecoder frameDecoder;
+  private final PriorityBlockingQueue<PendingDownlink> queue;
+  private final ArrayList<PendingDownlink> batch;
+  private final MessageWriter[] writers;
+  private final String metricPrefix;
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private volatile boolean running = true;
+
+  /**
+   * Constructor
+   * @param outStream socket output stream
+   * @param frameDecoder frames downlinks the way AP expects them
+   * @param metricPrefix prefix of exposed metrics, e.g. ap.3.downlink
+   */
+  public DownlinkWriter(OutputStream outStream, FrameDecoder frameDecoder, String metricPrefix) {
+    this.outStream = new BufferedOutputStream(outStream, BUFFER_SIZE);
+    this.frameDecoder = frameDecoder;
+    this.queue = new PriorityBlockingQueue<>(INITIAL_CAPACITY, PendingDownlink.ORDER);
+    this.batch = new ArrayList<>();
+    this.writers = new MessageWriter[Frame.Encoding.values().length];
+    this.metricPrefix = metricPrefix;
+  }
+
+  /**
+   * Queues downlink for sending, may be called from any thread
+   * @param message downlink message
+   * @param encoding encoding used on the wire
+   * @throws IOException when writer has been closed
+   */
+  public void write(Downlink message, Frame.Encoding encoding) throws IOException {
+    if (!running) {
+      throw new IOException("Connection closed");
+    }
+    queue.add(new PendingDownlink(message, encoding));
+  }
+
+  /**
+   * Removes downlinks which have not been written yet
+   * @return list of downlink messages
+   */
+  public List<Downlink> takePending() {
+    List<PendingDownlink> pending = new ArrayList<>();
+    List<Downlink> messages = new ArrayList<>();
+    queue.drainTo(pending);
+
+    for (PendingDownlink downlink : pending) {
+      if (downlink != END) {
+        messages.add(downlink.message);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Stops writer after already queued frames are sent
+   */
+  public void close() {
+    running = false;
+    queue.add(END);
+  }
+
+  /**
+   * Waits until writer has sent queued frames and ended, after close
+   * @param timeoutMillis maximal time of waiting in milliseconds
+   * @return false when writer is still running, e.g. AP does not read
+   * @throws InterruptedException when interrupted while waiting
+   */
+  public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+    return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void run() {
+    boolean end = false;
+
+    try {
+      while (!end) {
+        batch.add(queue.take());
+        queue.drainTo(batch);
+
+        int frames = 0;
+        for (PendingDownlink downlink : batch) {
+          if (downlink == END) {
+            end = true;
+          } else {
+            frameDecoder.writeFrame(downlink.encode(writers), outStream);
+            frames++;
+          }
+        }
+        outStream.flush();
+
+        long now = System.nanoTime();
+        for (PendingDownlink downlink : batch) {
+          if (downlink != END) {
+            Metrics.record(metricPrefix + ".latency", now - downlink.enqueuedAt);
+          }
+        }
+        Metrics.add(metricPrefix + ".frames", frames);
+        Metrics.increment(metricPrefix + ".writes");
+        batch.clear();
+      }
+    } catch (IOException e) {
+      running = false;
+      System.out.println("Unable to write downlink: " + e.getMessage());
+    } catch (InterruptedException e) {
+      running = false;
+      Thread.currentThread().interrupt();
+    }
+    Metrics.remove(metricPrefix + ".");
+    finished.countDown();
+  }
+
+  /**
+   * Downlink with time of queueing
+   * Message is kept typed, so it can be handed over to a connection with other encoding
+   */
+  static class PendingDownlink {
+    // Higher class first, then order of queueing, end of writer is queued as normal traffic
+    static final Comparator<PendingDownlink> ORDER = Comparator
+      .comparingInt((PendingDownlink downlink) -> downlink.priority.ordinal())
+      .thenComparingLong(downlink -> downlink.sequence);
+    private static final AtomicLong sequences = new AtomicLong();
+
+    final Downlink message;
+    final Frame.Encoding encoding;
+    final Frame.Priority priority;
+    final long sequence;
+    final long enqueuedAt;
+
+    PendingDownlink(Downlink message, Frame.Encoding encoding) {
+      this.message = message;
+      this.encoding = encoding;
+      this.priority = message != null ? message.getPriority() : Frame.Priority.NORMAL;
+      this.sequence = sequences.getAndIncrement();
+      this.enqueuedAt = System.nanoTime();
+    }
+
+    /**
+     * Encodes downlink in negotiated encoding
+     * @param writers writers of the connection indexed by encoding, created on first use
+     * @return writer holding the encoded message until next call
+     */
+    MessageWriter encode(MessageWriter[] writers) {
+      MessageWriter writer = writers[encoding.ordinal()];
+
+      if (writer == null) {
+        writer = MessageWriter.create(encoding);
+        writers[encoding.ordinal()] = writer;
+      }
+
+      writer.reset();
+      message.writeTo(writer);
+      return writer;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package connection;
+
+import message.MessageDecoder;
+import message.StiotMessage;
+import message.Uplink;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single STIoT message as received from or sent to AP
+ * Message is either JSON text or a binary CBOR map, both may arrive on the same connection
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class Frame {
+  public enum Encoding {
+    JSON, CBOR;
+
+    /**
+     * Parses encoding name as used in SETR/SETA and configuration file
+     * @param name e.g. json or cbor
+     * @return Encoding or null if not supported
+     */
+    public static Encoding fromName(String name) {
+      for (Encoding encoding : values()) {
+        if (encoding.name().equalsIgnoreCase(name.trim())) {
+          return encoding;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Name used in SETR/SETA
+     * @return String
+     */
+    public String getName() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * Class of traffic, higher class is queued, processed and written ahead of lower ones
+   */
+  public enum Priority {
+    // Emergency uplinks, AP setup shares the class so that nothing of the AP overtakes it
+    EMERGENCY,
+    // Registration and key exchange
+    REGISTRATION,
+    NORMAL
+  }
+
+  private final Encoding encoding;
+  private final byte[] data;
+  // JSON text is created only when needed, received messages are decoded straight from bytes
+  private String text;
+  private Priority priority;
+
+  private Frame(Encoding encoding, byte[] data, String text) {
+    this.encoding = encoding;
+    this.data = data;
+    this.text = text;
+  }
+
+  /**
+   * Creates JSON frame
+   * @param text json message as a string
+   * @return Frame
+   */
+  public static Frame text(String text) {
+    return new Frame(Encoding.JSON, null, text);
+  }
+
+  /**
+   * Creates JSON frame from received bytes
+   * @param data UTF-8 encoded JSON message, not copied
+   * @return Frame
+   */
+  public static Frame json(byte[] data) {
+    return new Frame(Encoding.JSON, data, null);
+  }
+
+  /**
+   * Creates CBOR frame
+   * @param data encoded CBOR map, not copied
+   * @return Frame
+   */
+  public static Frame binary(byte[] data) {
+    return new Frame(Encoding.CBOR, data, null);
+  }
+
+  public boolean isBinary() {
+    return encoding == Encoding.CBOR;
+  }
+
+  public Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Content of JSON frame
+   * @return String or null for CBOR frame
+   */
+  public String getText() {
+    if (text == null && encoding == Encoding.JSON) {
+      text = new String(data, StandardCharsets.UTF_8);
+    }
+    return text;
+  }
+
+  /**
+   * Content as it goes over the wire, without framing
+   * @return byte[]
+   */
+  public byte[] toBytes() {
+    return data != null ? data : text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Size of the message without framing
+   * @return int
+   */
+  public int size() {
+    return data != null ? data.length : text.length();
+  }
+
+  /**
+   * Reads STIoT message name without decoding the whole message
+   * @return message name or null if not present
+   */
+  public String getMessageName() {
+    return MessageDecoder.readMessageName(this);
+  }
+
+  /**
+   * Class of the message, read without decoding the whole message
+   * @return Priority
+   */
+  public Priority getPriority() {
+    if (priority == null) {
+      priority = classify();
+    }
+    return priority;
+  }
+
+  private Priority classify() {
+    String name = getMessageName();
+
+    if (StiotMessage.SETR.equals(name)) {
+      return Priority.EMERGENCY;
+    }
+
+    if (StiotMessage.REGR.equals(name) || StiotMessage.KEYR.equals(name) || StiotMessage.KEYS.equals(name)) {
+      return Priority.REGISTRATION;
+    }
+
+    if (StiotMessage.RXL.equals(name)) {
+      // Only type of message_body counts, nested objects are skipped
+      String type = MessageDecoder.readBodyType(this);
+      if (Uplink.TYPE_EMERGENCY.equals(type)) {
+        return Priority.EMERGENCY;
+      }
+    }
+    return Priority.NORMAL;
+  }
+
+  @Override
+  public String toString() {
+    return isBinary() ? "CBOR message of " + data.length + " B" : getText();
+  }
+}
@@ -0,0 +1,373 @@
+package connection;
+
+import core.Props;
+import helpers.CborHelper;
+import message.MessageWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream from AP into single messages
+ * Supported framing is plain JSON objects, delimiter terminated messages or 4 byte length prefix
+ * A message starting with CBOR map header is binary, it delimits itself and needs no delimiter
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class FrameDecoder {
+  public enum Framing { JSON, DELIMITER, LENGTH }
+
+  private static final int INITIAL_SIZE = 4096;
+  private static final int LENGTH_PREFIX = 4;
+
+  private final Framing framing;
+  private final byte delimiter;
+  private final int maxFrameSize;
+
+  // Reused for the whole connection, holds unprocessed bytes between start and limit
+  private byte[] buffer;
+  private int start = 0;
+  private int limit = 0;
+
+  // JSON scanner state, kept between reads so no byte is scanned twice
+  private int scan = 0;
+  private int depth = 0;
+  private boolean inString = false;
+  private boolean escaped = false;
+
+  /**
+   * Constructor
+   * @param framing message framing
+   * @param delimiter message terminator used by delimiter framing
+   * @param maxFrameSize maximal message size in bytes
+   */
+  public FrameDecoder(Framing framing, byte delimiter, int maxFrameSize) {
+    this.framing = framing;
+    this.delimiter = delimiter;
+    this.maxFrameSize = maxFrameSize;
+    this.buffer = new byte[Math.min(INITIAL_SIZE, maxFrameSize + LENGTH_PREFIX)];
+  }
+
+  /**
+   * Creates decoder configured in configuration file
+   * @param props program properties
+   * @return FrameDecoder
+   */
+  public static FrameDecoder fromProps(Props props) {
+    return new FrameDecoder(
+      Framing.valueOf(props.getStr("SSLConnection.framing", "json").toUpperCase()),
+      (byte) props.getInt("SSLConnection.frameDelimiter", '\n'),
+      props.getInt("SSLConnection.maxFrameSize", 65536)
+    );
+  }
+
+  /**
+   * Reads from stream straight into decoder buffer
+   * @param inStream socket input stream
+   * @return number of bytes read, -1 at the end of stream
+   * @throws IOException when reading fails
+   */
+  public int read(InputStream inStream) throws IOException {
+    ensureCapacity(1);
+    int length = inStream.read(buffer, limit, buffer.length - limit);
+
+    if (length > 0) {
+      limit += length;
+    }
+    return length;
+  }
+
+  /**
+   * Appends already received bytes, e.g. decrypted TLS data
+   * @param data buffer in read mode, fully consumed
+   */
+  public void feed(ByteBuffer data) {
+    int length = data.remaining();
+    ensureCapacity(length);
+    data.get(buffer, limit, length);
+    limit += length;
+  }
+
+  /**
+   * Returns next complete message
+   * @return Frame or null when more data are required
+   * @throws FrameTooLargeException when message exceeds maximal frame size
+   * @throws CborHelper.MalformedCborException when binary message is not valid CBOR
+   */
+  public Frame next() throws IOException {
+    Frame frame;
+
+    switch (framing) {
+      case DELIMITER:
+        frame = nextDelimited();
+        break;
+      case LENGTH:
+        frame = nextLengthPrefixed();
+        break;
+      default:
+        frame = nextJson();
+        break;
+    }
+
+    if (frame == null && limit - start > maxFrameSize + LENGTH_PREFIX) {
+      throw new FrameTooLargeException(limit - start, maxFrameSize);
+    }
+
+    if (start == limit) {
+      // Nothing left, whole buffer can be reused from the beginning
+      start = 0;
+      limit = 0;
+      scan = 0;
+    }
+    return frame;
+  }
+
+  /**
+   * Size of encoded outbound message including framing
+   * @param message encoded JSON or CBOR message
+   * @return int
+   */
+  public int frameSize(MessageWriter message) {
+    switch (framing) {
+      case DELIMITER:
+        return message.getEncoding() == Frame.Encoding.CBOR ? message.size() : message.size() + 1;
+      case LENGTH:
+        return message.size() + LENGTH_PREFIX;
+      default:
+        return message.size();
+    }
+  }
+
+  /**
+   * Frames outbound message the same way inbound messages are expected
+   * @param message encoded JSON or CBOR message
+   * @param out stream of the connection
+   * @throws IOException when stream fails
+   */
+  public void writeFrame(MessageWriter message, OutputStream out) throws IOException {
+    if (framing == Framing.LENGTH) {
+      int length = message.size();
+      out.write(length >>> 24);
+      out.write(length >>> 16);
+      out.write(length >>> 8);
+      out.write(length);
+    }
+
+    message.writeTo(out);
+
+    // CBOR map is self delimiting
+    if (framing == Framing.DELIMITER && message.getEncoding() != Frame.Encoding.CBOR) {
+      out.write(delimiter);
+    }
+  }
+
+  /**
+   * Frames outbound message the same way inbound messages are expected
+   * @param message encoded JSON or CBOR message
+   * @param out buffer in write mode with at least frameSize bytes remaining
+   */
+  public void writeFrame(MessageWriter message, ByteBuffer out) {
+    if (framing == Framing.LENGTH) {
+      out.putInt(message.size());
+    }
+
+    message.writeTo(out);
+
+    if (framing == Framing.DELIMITER && message.getEncoding() != Frame.Encoding.CBOR) {
+      out.put(delimiter);
+    }
+  }
+
+  /**
+   * Finds end of the top level JSON object or CBOR map, skips whitespace between objects
+   * @return Frame or null
+   * @throws CborHelper.MalformedCborException when binary message is not valid CBOR
+   */
+  private Frame nextJson() throws CborHelper.MalformedCborException {
+    if (scan < start) {
+      scan = start;
+    }
+
+    for (; scan < limit; scan++) {
+      byte current = buffer[scan];
+
+      if (depth == 0) {
+        if (CborHelper.isMapHeader(current)) {
+          start = scan;
+          return nextCbor();
+        } else if (current == '{' || current == '[') {
+          start = scan;
+          depth = 1;
+        } else {
+          // Garbage or whitespace between messages
+          start = scan + 1;
+        }
+        continue;
+      }
+
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (current == '\\') {
+          escaped = true;
+        } else if (current == '"') {
+          inString = false;
+        }
+        continue;
+      }
+
+      if (current == '"') {
+        inString = true;
+      } else if (current == '{' || current == '[') {
+        depth++;
+      } else if ((current == '}' || current == ']') && --depth == 0) {
+        Frame frame = Frame.json(Arrays.copyOfRange(buffer, start, scan + 1));
+        start = ++scan;
+        return frame;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds next delimiter, empty messages are skipped
+   * @return Frame or null
+   * @throws CborHelper.MalformedCborException when binary message is not valid CBOR
+   */
+  private Frame nextDelimited() throws CborHelper.MalformedCborException {
+    if (scan <= start) {
+      scan = start;
+
+      if (scan < limit && CborHelper.isMapHeader(buffer[scan])) {
+        return nextCbor();
+      }
+    }
+
+    for (; scan < limit; scan++) {
+      if (buffer[scan] != delimiter) {
+        continue;
+      }
+
+      int end = scan;
+      // Tolerates CRLF line endings
+      if (delimiter == '\n' && end > start && buffer[end - 1] == '\r') {
+        end--;
+      }
+
+      int frameStart = start;
+      start = ++scan;
+
+      if (end > frameStart) {
+        return Frame.json(Arrays.copyOfRange(buffer, frameStart, end));
+      }
+
+      // Empty message, the next one can be binary
+      if (scan < limit && CborHelper.isMapHeader(buffer[scan])) {
+        return nextCbor();
+      }
+      // Loop increment would skip the first byte of the next message
+      scan--;
+    }
+    return null;
+  }
+
+  /**
+   * Reads big endian length prefix and waits for the whole message
+   * @return Frame or null
+   * @throws FrameTooLargeException when announced length exceeds maximal frame size
+   * @throws CborHelper.MalformedCborException when binary message is not valid CBOR or does not fill the frame
+   */
+  private Frame nextLengthPrefixed() throws IOException {
+    if (limit - start < LENGTH_PREFIX) {
+      return null;
+    }
+
+    int length = ((buffer[start] & 0xff) << 24) | ((buffer[start + 1] & 0xff) << 16)
+      | ((buffer[start + 2] & 0xff) << 8) | (buffer[start + 3] & 0xff);
+
+    if (length < 0 || length > maxFrameSize) {
+      throw new FrameTooLargeException(length, maxFrameSize);
+    }
+
+    if (limit - start < LENGTH_PREFIX + length) {
+      ensureCapacity(LENGTH_PREFIX + length - (limit - start));
+      return null;
+    }
+
+    Frame frame;
+    if (length > 0 && CborHelper.isMapHeader(buffer[start + LENGTH_PREFIX])) {
+      // Validated like a delimited CBOR message, the map has to end exactly where the frame does
+      int cborLength = CborHelper.itemLength(buffer, start + LENGTH_PREFIX, start + LENGTH_PREFIX + length);
+      if (cborLength != length) {
+        throw new CborHelper.MalformedCborException("CBOR message does not fill its frame of " + length + " bytes");
+      }
+      frame = Frame.binary(Arrays.copyOfRange(buffer, start + LENGTH_PREFIX, start + LENGTH_PREFIX + length));
+    } else {
+      frame = Frame.json(Arrays.copyOfRange(buffer, start + LENGTH_PREFIX, start + LENGTH_PREFIX + length));
+    }
+    start += LENGTH_PREFIX + length;
+    return frame;
+  }
+
+  /**
+   * Waits for the whole CBOR map starting at current position
+   * An incomplete map is scanned again from its start once more data arrive
+   * @return Frame or null
+   * @throws CborHelper.MalformedCborException when message is not valid CBOR
+   */
+  private Frame nextCbor() throws CborHelper.MalformedCborException {
+    int length = CborHelper.itemLength(buffer, start, limit);
+
+    if (length < 0) {
+      scan = start;
+      return null;
+    }
+
+    Frame frame = Frame.binary(Arrays.copyOfRange(buffer, start, start + length));
+    start += length;
+    scan = start;
+    return frame;
+  }
+
+  /**
+   * Makes room for more bytes, moves unprocessed data to the beginning before growing
+   * @param required number of bytes to be appended
+   */
+  private void ensureCapacity(int required) {
+    if (buffer.length - limit >= required) {
+      return;
+    }
+
+    int pending = limit - start;
+
+    if (start > 0 && buffer.length - pending >= required) {
+      System.arraycopy(buffer, start, buffer, 0, pending);
+    } else {
+      int size = buffer.length;
+      while (size - pending < required) {
+        size *= 2;
+      }
+      byte[] larger = new byte[size];
+      System.arraycopy(buffer, start, larger, 0, pending);
+      buffer = larger;
+    }
+
+    scan -= start;
+    limit = pending;
+    start = 0;
+  }
+
+  /**
+   * Thrown when AP sends message larger than allowed
+   */
+  public static class FrameTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLargeException(int size, int maxFrameSize) {
+      super("Message of " + size + " B exceeds maximal frame size of " + maxFrameSize + " B");
+    }
+  }
+}
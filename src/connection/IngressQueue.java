@@ -0,0 +1,313 @@
+package connection;
+
+import core.Metrics;
+import core.Props;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of received messages waiting for processing, one per AP
+ * Messages are taken by Frame.Priority, emergency before registration before normal RXL, in order within a class
+ * When full, either stops reading the AP (block) or drops the oldest normal RXL (drop_oldest)
+ * Messages of higher classes are never dropped and do not wait for normal RXL to drain
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class IngressQueue {
+  public enum OverflowPolicy { BLOCK, DROP_OLDEST }
+
+  // Indexed by Frame.Priority ordinal
+  private final ArrayDeque<Frame>[] queues;
+  private final ArrayDeque<Frame> normal;
+  private int size = 0;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final String metricPrefix;
+  private final ReentrantLock lock;
+  private final Condition notEmpty;
+  private final Condition notFull;
+  private boolean closed = false;
+  private long dropped = 0;
+  private long blocked = 0;
+
+  /**
+   * Constructor
+   * @param capacity maximal number of waiting messages
+   * @param policy behaviour of a full queue
+   * @param metricPrefix prefix of exposed metrics, e.g. ap.3.ingress
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public IngressQueue(int capacity, OverflowPolicy policy, String metricPrefix) {
+    this.queues = new ArrayDeque[Frame.Priority.values().length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<>(i == Frame.Priority.NORMAL.ordinal() ? Math.min(capacity, 64) : 4);
+    }
+    this.normal = queues[Frame.Priority.NORMAL.ordinal()];
+    this.capacity = capacity;
+    this.policy = policy;
+    this.metricPrefix = metricPrefix;
+    this.lock = new ReentrantLock();
+    this.notEmpty = lock.newCondition();
+    this.notFull = lock.newCondition();
+
+    Metrics.gauge(metricPrefix + ".depth", this::size);
+    Metrics.gauge(metricPrefix + ".dropped", this::getDropped);
+    Metrics.gauge(metricPrefix + ".blocked", this::getBlocked);
+  }
+
+  /**
+   * Creates queue configured in configuration file
+   * @param props program properties
+   * @param apIdentifier internal ap identifier
+   * @return IngressQueue
+   */
+  public static IngressQueue fromProps(Props props, int apIdentifier) {
+    return new IngressQueue(
+      props.getInt("SSLConnection.ingressCapacity", 1000),
+      OverflowPolicy.valueOf(props.getStr("SSLConnection.overflowPolicy", "block").toUpperCase()),
+      "ap." + apIdentifier + ".ingress"
+    );
+  }
+
+  /**
+   * Inserts message, waits for free space when policy requires it
+   * @param message received message
+   * @throws InterruptedException when interrupted while waiting
+   */
+  public void put(Frame message) throws InterruptedException {
+    ArrayDeque<Frame> target = queues[message.getPriority().ordinal()];
+    lock.lock();
+    try {
+      if (isFull(target) && makeRoom(message)) {
+        return;
+      }
+
+      if (isFull(target)) {
+        blocked++;
+        Metrics.increment("ingress.blocked");
+      }
+
+      while (isFull(target) && !closed) {
+        notFull.await();
+      }
+      enqueue(target, message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Inserts message without waiting, used by selector threads
+   * Caller is expected to stop reading while the queue is full
+   * @param message received message
+   */
+  public void offer(Frame message) {
+    ArrayDeque<Frame> target = queues[message.getPriority().ordinal()];
+    lock.lock();
+    try {
+      if (isFull(target) && makeRoom(message)) {
+        return;
+      }
+      enqueue(target, message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes next message, waits until one is available
+   * @return message or null when queue has been closed and drained
+   * @throws InterruptedException when interrupted while waiting
+   */
+  public Frame take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (size == 0 && !closed) {
+        notEmpty.await();
+      }
+      return dequeue(Frame.Priority.NORMAL);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes next message if any
+   * @return message or null
+   */
+  public Frame poll() {
+    return poll(Frame.Priority.NORMAL);
+  }
+
+  /**
+   * Takes next message of given class or higher if any
+   * @param lowest lowest class taken, e.g. REGISTRATION leaves normal RXL in the queue
+   * @return message or null
+   */
+  public Frame poll(Frame.Priority lowest) {
+    lock.lock();
+    try {
+      return dequeue(lowest);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Whether message of a higher class than normal is waiting
+   * @return boolean
+   */
+  public boolean hasPriority() {
+    lock.lock();
+    try {
+      return size > normal.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * No more messages will arrive, waiting consumers are released once the queue is drained
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes metrics of this queue
+   */
+  public void release() {
+    Metrics.remove(metricPrefix + ".");
+  }
+
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Whether normal RXL are not accepted without dropping or waiting
+   * @return boolean
+   */
+  public boolean isFull() {
+    lock.lock();
+    try {
+      return isFull(normal);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getDropped() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getBlocked() {
+    lock.lock();
+    try {
+      return blocked;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Applies drop policy on a full queue, called with lock held
+   * @param message message to be inserted
+   * @return true if the message has been dropped itself
+   */
+  private boolean makeRoom(Frame message) {
+    // Dropping normal RXL does not make room in queue of a higher class
+    if (policy != OverflowPolicy.DROP_OLDEST || message.getPriority() != Frame.Priority.NORMAL) {
+      return false;
+    }
+
+    Iterator<Frame> iterator = normal.iterator();
+    while (iterator.hasNext()) {
+      if (isDroppable(iterator.next())) {
+        iterator.remove();
+        countDrop();
+        return false;
+      }
+    }
+
+    // Nothing to drop from queue, only RXL may be dropped instead of waiting
+    if (isDroppable(message)) {
+      countDrop();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Normal RXL are bounded by all waiting messages, higher classes only by their own queue
+   * so that they are never stuck behind normal traffic, called with lock held
+   * @param target queue of the message class
+   * @return boolean
+   */
+  private boolean isFull(ArrayDeque<Frame> target) {
+    return (target == normal ? size : target.size()) >= capacity;
+  }
+
+  private void enqueue(ArrayDeque<Frame> target, Frame message) {
+    target.addLast(message);
+    size++;
+    notEmpty.signal();
+  }
+
+  private Frame dequeue(Frame.Priority lowest) {
+    for (int i = 0; i <= lowest.ordinal(); i++) {
+      Frame message = queues[i].pollFirst();
+
+      if (message != null) {
+        size--;
+        // Several producers of different classes may wait
+        notFull.signalAll();
+        return message;
+      }
+    }
+    return null;
+  }
+
+  private void countDrop() {
+    dropped++;
+    Metrics.increment("ingress.dropped");
+  }
+
+  /**
+   * Only normal uplink data messages may be dropped
+   * @param message received message
+   * @return boolean
+   */
+  private static boolean isDroppable(Frame message) {
+    return message.getPriority() == Frame.Priority.NORMAL && "RXL".equals(message.getMessageName());
+  }
+}
@@ -1,5 +1,6 @@
 package connection;
 
+import core.Metrics;
 import core.ProgramResources;
 import traffic.MessageController;
 
@@ -7,12 +8,18 @@ import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages secure connection with AP
@@ -22,11 +29,22 @@ import java.util.Map;
 public class SSLConnection extends Thread {
   private final String keyStore;
   private final String keyStorePassword;
+  private final SSLContext sslContext;
   private final SSLServerSocket serverSocket;
   private final SocketListener messageController;
-  public ArrayList<SocketThread> socketThreadArrayList;
+  public final APRegistry apRegistry;
   private ProgramResources programResources;
-  private int apIterator;
+  private final String[] protocols;
+  private final int handshakeTimeout;
+  private final ExecutorService handshakeWorkers;
+
+  // Non-blocking transport, used when SSLConnection.transport is set to nio
+  private final boolean nioTransport;
+  private ServerSocketChannel serverChannel;
+  private SelectorThread[] selectorThreads;
+  private ExecutorService workers;
+  // Serves AP-s with emergency, setup or registration messages waiting, see Frame.Priority
+  private ExecutorService priorityWorkers;
 
   /***
    * Constructor
@@ -59,9 +77,26 @@ public class SSLConnection extends Thread {
     KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
     kmf.init(ks, password);
 
-    SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+    // Stateless TLS 1.3 session tickets, AP-s resume without server side cache lookup
+    System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+      programResources.props.getStr("SSLConnection.sessionTickets", "true"));
+
+    sslContext = SSLContext.getInstance("TLS");
     sslContext.init(kmf.getKeyManagers(), null, new SecureRandom());
-    SSLServerSocketFactory socketFactory = sslContext.getServerSocketFactory();
+    protocols = programResources.props.getStr("SSLConnection.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*");
+
+    // Resumed sessions skip certificate exchange after mass reconnect
+    SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+    sessionContext.setSessionCacheSize(programResources.props.getInt("SSLConnection.sessionCacheSize", 10000));
+    sessionContext.setSessionTimeout(programResources.props.getInt("SSLConnection.sessionTimeout", 86400));
+
+    // Handshakes run on a bounded pool, acceptor does the handshake itself when the backlog is full
+    int handshakeThreads = programResources.props.getInt("SSLConnection.handshakeThreads", 4);
+    handshakeTimeout = programResources.props.getInt("SSLConnection.handshakeTimeout", 10000);
+    handshakeWorkers = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(programResources.props.getInt("SSLConnection.handshakeBacklog", 1000)),
+      new ThreadPoolExecutor.CallerRunsPolicy());
+    Metrics.gauge("tls.handshake.resumptionRate", SSLConnection::getResumptionRate);
 
     /*
      * DEBUG SECTION
@@ -73,11 +108,31 @@ public class SSLConnection extends Thread {
     */
 
     System.out.println("LONES_PORT: " + System.getenv("LONES_PORT"));
-    serverSocket = (SSLServerSocket) socketFactory.createServerSocket(Integer.parseInt(System.getenv("LONES_PORT")));
+    int port = Integer.parseInt(System.getenv("LONES_PORT"));
+    nioTransport = programResources.props.getStr("SSLConnection.transport", "blocking").equals("nio");
+
+    if (nioTransport) {
+      // Small fixed set of selector threads serves all AP-s, processing runs on a shared worker pool
+      serverSocket = null;
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port));
+      selectorThreads = new SelectorThread[programResources.props.getInt("SSLConnection.selectorThreads", 2)];
+      for (int i = 0; i < selectorThreads.length; i++) {
+        selectorThreads[i] = new SelectorThread(i);
+      }
+      workers = programResources.executionMode.newWorkerPool(programResources.props.getInt("SSLConnection.workerThreads", 4));
+      priorityWorkers = programResources.executionMode.newWorkerPool(programResources.props.getInt("SSLConnection.priorityWorkerThreads", 1));
+    } else {
+      SSLServerSocketFactory socketFactory = sslContext.getServerSocketFactory();
+      serverSocket = (SSLServerSocket) socketFactory.createServerSocket(port);
+      serverSocket.setEnabledProtocols(protocols);
+    }
 
     messageController = new MessageController(programResources);
-    socketThreadArrayList = new ArrayList<>();
-    apIterator = 0;
+    apRegistry = new APRegistry(
+      programResources.props.getInt("SSLConnection.maxParkedDownlinks", 32),
+      programResources.props.getInt("SSLConnection.downlinkParkTime", 10000)
+    );
     System.out.println("Listener for connecting AP-s created successfully!" );
   }
 
@@ -85,6 +140,11 @@ public class SSLConnection extends Thread {
    * Execution thread - infinite loop for catching new AP-s
    */
   public void run() {
+    if (nioTransport) {
+      this.acceptSessions();
+      return;
+    }
+
     while (true) {
       Socket s;
       System.out.println("Listener thread started!");
@@ -92,12 +152,8 @@ public class SSLConnection extends Thread {
         // New AP detected
         s = serverSocket.accept();
         System.out.println("New AP detected on link!");
-        SocketThread st = new SocketThread(s, messageController, apIterator);
-
-        // New AP added into list of AP-s
-        socketThreadArrayList.add(apIterator, st);
-        apIterator++;
-        st.start();
+        SSLSocket socket = (SSLSocket) s;
+        handshakeWorkers.execute(() -> this.handshake(socket));
       } catch (IOException e) {
         try {
           this.shutdown();
@@ -109,13 +165,118 @@ public class SSLConnection extends Thread {
     }
   }
 
+  /**
+   * Completes TLS handshake of accepted AP and starts its listener, runs on handshake pool
+   * @param socket accepted socket
+   */
+  private void handshake(SSLSocket socket) {
+    long start = System.nanoTime();
+    long startMillis = System.currentTimeMillis();
+
+    try {
+      socket.setSoTimeout(handshakeTimeout);
+      socket.startHandshake();
+      socket.setSoTimeout(0);
+      recordHandshake(socket.getSession(), start, startMillis);
+
+      int apIdentifier = apRegistry.nextIdentifier();
+      SocketThread st = new SocketThread(socket, messageController, apIdentifier, FrameDecoder.fromProps(programResources.props),
+        IngressQueue.fromProps(programResources.props, apIdentifier), programResources.executionMode);
+
+      // New AP added into registry of AP-s
+      apRegistry.add(st);
+      st.start();
+    } catch (IOException e) {
+      System.out.println("TLS handshake with AP failed: " + e.getMessage());
+      Metrics.increment("tls.handshake.failed");
+      try {
+        socket.close();
+      } catch (IOException exception) {
+        exception.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Records handshake latency and whether the session has been resumed
+   * @param session established session
+   * @param startNanos System.nanoTime() at the start of handshake
+   * @param startMillis System.currentTimeMillis() at the start of handshake
+   */
+  static void recordHandshake(SSLSession session, long startNanos, long startMillis) {
+    Metrics.recordSince("tls.handshake.latency", startNanos);
+    // Resumed session keeps creation time of the original one
+    if (session.getCreationTime() < startMillis) {
+      Metrics.increment("tls.handshake.resumed");
+    } else {
+      Metrics.increment("tls.handshake.full");
+    }
+  }
+
+  /**
+   * Percentage of resumed handshakes
+   * @return long
+   */
+  private static long getResumptionRate() {
+    long resumed = Metrics.count("tls.handshake.resumed");
+    long total = resumed + Metrics.count("tls.handshake.full");
+    return total == 0 ? 0 : resumed * 100 / total;
+  }
+
+  /**
+   * Non-blocking execution thread - accepts AP-s and spreads them over selector threads
+   */
+  private void acceptSessions() {
+    System.out.println("Listener thread started with " + selectorThreads.length + " selector threads!");
+    for (SelectorThread selectorThread : selectorThreads) {
+      selectorThread.start();
+    }
+
+    while (serverChannel.isOpen()) {
+      try {
+        // New AP detected
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        System.out.println("New AP detected on link!");
+
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        int apIdentifier = apRegistry.nextIdentifier();
+        SelectorThread selectorThread = selectorThreads[apIdentifier % selectorThreads.length];
+        SSLEngineSession session = new SSLEngineSession(channel, engine, selectorThread, messageController, workers, priorityWorkers,
+          handshakeWorkers, FrameDecoder.fromProps(programResources.props),
+          IngressQueue.fromProps(programResources.props, apIdentifier), apIdentifier);
+
+        // New AP added into registry of AP-s
+        apRegistry.add(session);
+        selectorThread.register(session);
+      } catch (IOException e) {
+        if (serverChannel.isOpen()) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
   /**
    * Shutdown function
    */
   public void shutdown() throws Exception {
-    for (SocketThread socketThread : socketThreadArrayList) {
-      socketThread.running = false;
+    for (APConnection connection : apRegistry.getAll()) {
+      connection.close();
+    }
+
+    if (nioTransport) {
+      serverChannel.close();
+      for (SelectorThread selectorThread : selectorThreads) {
+        selectorThread.shutdown();
+      }
+      workers.shutdown();
+      priorityWorkers.shutdown();
+    } else {
+      serverSocket.close();
     }
-    serverSocket.close();
+    handshakeWorkers.shutdown();
   }
 }
@@ -0,0 +1,507 @@
+package connection;
+
+import core.Metrics;
+import message.Downlink;
+import message.MessageWriter;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking TLS session of one AP, driven by its selector thread
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class SSLEngineSession implements APConnection {
+  private final SocketChannel channel;
+  private final SSLEngine engine;
+  private final SelectorThread selectorThread;
+  private final SocketListener listener;
+  private final Executor workers;
+  private final Executor priorityWorkers;
+  private final Executor handshakeWorkers;
+  private final FrameDecoder frameDecoder;
+  private final int internalIdentifier;
+  private volatile String hWIdentifier;
+  private volatile Frame.Encoding encoding = Frame.Encoding.JSON;
+  private volatile boolean closed = false;
+  private SelectionKey key;
+
+  // Buffers are touched only by the selector thread
+  private ByteBuffer netIn;
+  private ByteBuffer netOut;
+  private ByteBuffer appIn;
+  private ByteBuffer appOut;
+  private final ByteBuffer empty = ByteBuffer.allocate(0);
+
+  // Ordered by class of downlinks, see DownlinkWriter
+  private final PriorityBlockingQueue<DownlinkWriter.PendingDownlink> outbound;
+  // Used by selector thread only
+  private final MessageWriter[] writers;
+  private final IngressQueue inbound;
+  private volatile boolean readPaused = false;
+  private volatile boolean handshakeTaskRunning = false;
+  private volatile boolean handshakeTaskDone = false;
+  private boolean handshakeRecorded = false;
+  private long handshakeStart;
+  private long handshakeStartMillis;
+  private final AtomicBoolean dispatching;
+  private final AtomicBoolean downReported;
+
+  /**
+   * Constructor for new instance
+   * @param channel accepted socket channel in non-blocking mode
+   * @param engine server side ssl engine
+   * @param selectorThread selector thread serving this session
+   * @param listener instance of socket listener
+   * @param workers executor running message processing
+   * @param priorityWorkers executor running processing of emergency, setup and registration messages
+   * @param handshakeWorkers bounded executor running handshake tasks
+   * @param frameDecoder decoder splitting stream into messages
+   * @param ingressQueue bounded queue of messages waiting for processing
+   * @param id internal ap identifier
+   */
+  public SSLEngineSession(SocketChannel channel, SSLEngine engine, SelectorThread selectorThread,
+                          SocketListener listener, Executor workers, Executor priorityWorkers, Executor handshakeWorkers, FrameDecoder frameDecoder,
+                          IngressQueue ingressQueue, int id) {
+    this.channel = channel;
+    this.engine = engine;
+    this.selectorThread = selectorThread;
+    this.listener = listener;
+    this.workers = workers;
+    this.priorityWorkers = priorityWorkers;
+    this.handshakeWorkers = handshakeWorkers;
+    this.frameDecoder = frameDecoder;
+    this.internalIdentifier = id;
+    this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+    this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    this.appOut = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    this.outbound = new PriorityBlockingQueue<>(16, DownlinkWriter.PendingDownlink.ORDER);
+    this.writers = new MessageWriter[Frame.Encoding.values().length];
+    this.inbound = ingressQueue;
+    this.dispatching = new AtomicBoolean(false);
+    this.downReported = new AtomicBoolean(false);
+    System.out.println("New AP session created for AP of internal ID: " + this.internalIdentifier);
+  }
+
+  /**
+   * Registers channel with selector and starts TLS handshake, called by selector thread
+   * @param selector selector of owning thread
+   * @throws IOException when channel cannot be registered
+   */
+  void register(Selector selector) throws IOException {
+    this.key = channel.register(selector, SelectionKey.OP_READ, this);
+    this.handshakeStart = System.nanoTime();
+    this.handshakeStartMillis = System.currentTimeMillis();
+    engine.beginHandshake();
+  }
+
+  /**
+   * Sends downlink message to AP, may be called from any thread
+   * @param message downlink message
+   */
+  public void write(Downlink message) throws IOException {
+    if (closed) {
+      throw new IOException("Connection closed");
+    }
+    outbound.add(new DownlinkWriter.PendingDownlink(message, encoding));
+    selectorThread.requestUpdate(this);
+  }
+
+  /**
+   * Removes downlinks which have not been wrapped yet
+   * @return list of downlink messages
+   */
+  public List<Downlink> takePendingDownlinks() {
+    List<Downlink> messages = new ArrayList<>();
+    DownlinkWriter.PendingDownlink downlink;
+
+    while ((downlink = outbound.poll()) != null) {
+      messages.add(downlink.message);
+    }
+    return messages;
+  }
+
+  /**
+   * Encoding of downlinks negotiated in SETR/SETA
+   * @return Frame.Encoding
+   */
+  public Frame.Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Switches encoding of downlinks
+   * @param encoding negotiated encoding
+   */
+  public void setEncoding(Frame.Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  /**
+   * hWIdentifier serves for downlink AP identification
+   * @return String
+   */
+  public String getHwIdentifier() {
+    return hWIdentifier;
+  }
+
+  /**
+   * Setter for ap identifier
+   * @param hWIdentifier access point id
+   */
+  public void setHwIdentifier(String hWIdentifier) {
+    this.hWIdentifier = hWIdentifier;
+  }
+
+  /**
+   * Internal identifier assigned on accept
+   * @return int
+   */
+  public int getInternalIdentifier() {
+    return internalIdentifier;
+  }
+
+  /**
+   * Closes the channel, remaining messages are processed as offline
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    if (key != null) {
+      key.cancel();
+    }
+    inbound.close();
+
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    scheduleDispatch();
+  }
+
+  /**
+   * Reads and decrypts available data, called by selector thread
+   * @throws IOException when connection fails
+   */
+  void onReadable() throws IOException {
+    int length = channel.read(netIn);
+
+    if (length < 0) {
+      try {
+        engine.closeInbound();
+      } catch (SSLException e) {
+        // Peer closed without close_notify
+      }
+      throw new IOException("Connection closed");
+    }
+
+    processInbound();
+    flushOutbound();
+  }
+
+  /**
+   * Continues a write which did not fit into socket buffer, called by selector thread
+   * @throws IOException when connection fails
+   */
+  void onWritable() throws IOException {
+    flushOutbound();
+  }
+
+  /**
+   * Continues handshake after its tasks finished and flushes queued downlinks, called by selector thread
+   * @throws IOException when connection fails
+   */
+  void onUpdate() throws IOException {
+    if (handshakeTaskDone) {
+      handshakeTaskDone = false;
+      processInbound();
+    }
+    flushOutbound();
+  }
+
+  /**
+   * Wraps queued downlinks once the handshake is done and writes them to the channel
+   * Waiting downlinks are coalesced, so several small frames leave in one TLS record
+   * @throws IOException when connection fails
+   */
+  void flushOutbound() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    if (!isHandshaking() && !outbound.isEmpty()) {
+      String metricPrefix = "ap." + internalIdentifier + ".downlink";
+      DownlinkWriter.PendingDownlink downlink;
+      int frames = 0;
+      int writes = 0;
+
+      while ((downlink = outbound.poll()) != null) {
+        MessageWriter message = downlink.encode(writers);
+        int frameSize = frameDecoder.frameSize(message);
+
+        if (appOut.remaining() < frameSize && appOut.position() > 0) {
+          sealRecord(appOut);
+          writes++;
+        }
+
+        if (frameSize > appOut.capacity()) {
+          ByteBuffer frame = ByteBuffer.allocate(frameSize);
+          frameDecoder.writeFrame(message, frame);
+          frame.flip();
+          sealRecord(frame);
+          writes++;
+        } else {
+          frameDecoder.writeFrame(message, appOut);
+        }
+        frames++;
+        Metrics.recordSince(metricPrefix + ".latency", downlink.enqueuedAt);
+      }
+
+      if (appOut.position() > 0) {
+        sealRecord(appOut);
+        writes++;
+      }
+      Metrics.add(metricPrefix + ".frames", frames);
+      Metrics.add(metricPrefix + ".writes", writes);
+    }
+    flushNet();
+  }
+
+  /**
+   * Encrypts whole buffer, appOut is flipped before and cleared afterwards
+   * @param plain plain data
+   * @throws IOException when engine fails
+   */
+  private void sealRecord(ByteBuffer plain) throws IOException {
+    if (plain == appOut) {
+      plain.flip();
+    }
+
+    while (plain.hasRemaining()) {
+      wrap(plain);
+    }
+    plain.clear();
+  }
+
+  /**
+   * Unwraps received records and drives the handshake
+   * @throws IOException when connection fails
+   */
+  private void processInbound() throws IOException {
+    netIn.flip();
+
+    try {
+      while (!closed) {
+        SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+
+        if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+          // Expensive key exchange runs off the selector thread, session is not read meanwhile
+          if (!handshakeTaskRunning) {
+            handshakeTaskRunning = true;
+            handshakeWorkers.execute(this::runHandshakeTasks);
+          }
+          break;
+        }
+
+        if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+          wrap(empty);
+          continue;
+        }
+
+        if (!netIn.hasRemaining()) {
+          break;
+        }
+
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+          appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+          // Incomplete record, waits for more data
+          break;
+        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+          throw new IOException("Connection closed by AP");
+        }
+      }
+    } finally {
+      netIn.compact();
+    }
+
+    if (!netIn.hasRemaining()) {
+      netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+    }
+
+    if (!handshakeRecorded && !isHandshaking()) {
+      handshakeRecorded = true;
+      SSLConnection.recordHandshake(engine.getSession(), handshakeStart, handshakeStartMillis);
+    }
+
+    deliver();
+  }
+
+  /**
+   * Runs delegated handshake tasks and hands the session back to selector thread
+   */
+  private void runHandshakeTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+    handshakeTaskRunning = false;
+    handshakeTaskDone = true;
+    selectorThread.requestUpdate(this);
+  }
+
+  /**
+   * Encrypts plain data into outbound network buffer
+   * @param source plain data
+   * @throws IOException when engine fails
+   */
+  private void wrap(ByteBuffer source) throws IOException {
+    SSLEngineResult result = engine.wrap(source, netOut);
+
+    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+      flushNet();
+      if (netOut.remaining() < engine.getSession().getPacketBufferSize()) {
+        // Socket is full, keeps the data buffered until it becomes writable
+        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+      }
+    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+      throw new IOException("Connection closed");
+    }
+  }
+
+  /**
+   * Writes encrypted data, waits for OP_WRITE when socket buffer is full
+   * @throws IOException when connection fails
+   */
+  private void flushNet() throws IOException {
+    netOut.flip();
+    channel.write(netOut);
+    netOut.compact();
+
+    if (key != null && key.isValid()) {
+      int interest = readPaused || handshakeTaskRunning ? 0 : SelectionKey.OP_READ;
+      key.interestOps(netOut.position() > 0 ? interest | SelectionKey.OP_WRITE : interest);
+    }
+  }
+
+  /**
+   * Hands decrypted messages over to message processing
+   * @throws IOException when message exceeds maximal frame size
+   */
+  private void deliver() throws IOException {
+    appIn.flip();
+    frameDecoder.feed(appIn);
+    appIn.clear();
+
+    Frame message;
+    boolean received = false;
+    while ((message = frameDecoder.next()) != null) {
+      inbound.offer(message);
+      received = true;
+    }
+
+    if (inbound.isFull()) {
+      // Backpressure, AP is not read until its queue is drained
+      readPaused = true;
+    }
+
+    if (received) {
+      scheduleDispatch();
+    }
+  }
+
+  /**
+   * Processes messages by class in order of arrival, at most one worker per session
+   * Waiting message above normal class is taken by a priority worker, so it does not wait
+   * for workers busy with normal traffic of other AP-s
+   */
+  private void scheduleDispatch() {
+    if (dispatching.compareAndSet(false, true)) {
+      if (inbound.hasPriority()) {
+        priorityWorkers.execute(() -> dispatch(Frame.Priority.REGISTRATION));
+      } else {
+        workers.execute(() -> dispatch(Frame.Priority.NORMAL));
+      }
+    }
+  }
+
+  /**
+   * Passes received messages to listener, reports lost connection after the last one
+   * @param lowest lowest class processed, priority worker leaves normal messages to workers
+   */
+  private void dispatch(Frame.Priority lowest) {
+    try {
+      Frame message;
+      while ((message = inbound.poll(lowest)) != null) {
+        listener.process(this, message, !closed, internalIdentifier);
+        resumeRead();
+      }
+
+      if (closed && inbound.size() == 0 && downReported.compareAndSet(false, true)) {
+        inbound.release();
+        Metrics.remove("ap." + internalIdentifier + ".downlink.");
+        listener.socketDown(internalIdentifier);
+      }
+    } finally {
+      dispatching.set(false);
+      // Selector thread may pause reading after the last poll, its scheduleDispatch fails
+      // while this worker holds dispatching, so the pause is checked again after releasing it
+      resumeRead();
+    }
+
+    if (inbound.size() > 0) {
+      scheduleDispatch();
+    }
+  }
+
+  /**
+   * Restores reading of AP paused by backpressure once its queue has room again
+   */
+  private void resumeRead() {
+    if (readPaused && !inbound.isFull()) {
+      readPaused = false;
+      selectorThread.requestUpdate(this);
+    }
+  }
+
+  /**
+   * Checks whether TLS handshake is still in progress
+   * @return boolean
+   */
+  private boolean isHandshaking() {
+    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+    return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED;
+  }
+
+  /**
+   * Returns a copy of buffer with room for at least given amount of bytes
+   * @param buffer buffer in write mode
+   * @param required required free space
+   * @return ByteBuffer
+   */
+  private static ByteBuffer enlarge(ByteBuffer buffer, int required) {
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+}
@@ -0,0 +1,134 @@
+package connection;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves non-blocking TLS sessions of many AP-s from a single thread
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class SelectorThread extends Thread {
+  public volatile boolean running = true;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<SSLEngineSession> pendingSessions;
+  private final ConcurrentLinkedQueue<SSLEngineSession> pendingWrites;
+
+  /**
+   * Constructor
+   * @param id selector thread number
+   * @throws IOException when selector cannot be opened
+   */
+  public SelectorThread(int id) throws IOException {
+    super("lones-selector-" + id);
+    this.selector = Selector.open();
+    this.pendingSessions = new ConcurrentLinkedQueue<>();
+    this.pendingWrites = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Hands a freshly accepted session over to this selector
+   * @param session AP session
+   */
+  public void register(SSLEngineSession session) {
+    pendingSessions.add(session);
+    selector.wakeup();
+  }
+
+  /**
+   * Asks selector thread to continue handshake, flush outbound data and refresh interest of a session
+   * @param session AP session
+   */
+  void requestUpdate(SSLEngineSession session) {
+    pendingWrites.add(session);
+    selector.wakeup();
+  }
+
+  /**
+   * Stops the selector loop and closes all served sessions
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    System.out.println("Selector thread " + getName() + " started!");
+
+    while (running) {
+      try {
+        selector.select();
+        registerPending();
+        flushPending();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          SSLEngineSession session = (SSLEngineSession) key.attachment();
+
+          try {
+            if (key.isValid() && key.isReadable()) {
+              session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              session.onWritable();
+            }
+          } catch (IOException e) {
+            System.out.println("Connection with AP " + session.getInternalIdentifier() + " failed: " + e.getMessage());
+            session.close();
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    // Turn off function
+    for (SelectionKey key : selector.keys()) {
+      ((SSLEngineSession) key.attachment()).close();
+    }
+
+    try {
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Registers accepted sessions with the selector
+   */
+  private void registerPending() {
+    SSLEngineSession session;
+
+    while ((session = pendingSessions.poll()) != null) {
+      try {
+        session.register(selector);
+      } catch (IOException e) {
+        e.printStackTrace();
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Serves sessions updated by other threads, e.g. queued downlinks or finished handshake tasks
+   */
+  private void flushPending() {
+    SSLEngineSession session;
+
+    while ((session = pendingWrites.poll()) != null) {
+      try {
+        session.onUpdate();
+      } catch (IOException e) {
+        System.out.println("Unable to write to AP " + session.getInternalIdentifier() + ": " + e.getMessage());
+        session.close();
+      }
+    }
+  }
+}
@@ -6,6 +6,6 @@ package connection;
  * @version 0.3
  */
 public interface SocketListener {
-  void process(SocketThread st, String message, boolean online, int apIdentifier);
+  void process(APConnection st, Frame message, boolean online, int apIdentifier);
   void socketDown(int apIdentifier);
 }
@@ -1,26 +1,32 @@
 package connection;
 
-import java.io.ByteArrayOutputStream;
+import core.ExecutionMode;
+import message.Downlink;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
 
 /**
  * Creates socket thread for listening
  * @author Karol Cagáň
  * @version 0.3
  */
-public class SocketThread extends Thread
+public class SocketThread implements Runnable, APConnection
 {
+  // Time given to writer to send queued downlinks before the socket is closed
+  private static final long WRITER_CLOSE_TIMEOUT = 5000;
+
   public volatile boolean running = true;
   private final Socket socket;
-  private OutputStream outStream = null;
   private InputStream inStream = null;
   private final ProcessThread processThread;
+  private final DownlinkWriter downlinkWriter;
+  private final FrameDecoder frameDecoder;
+  private final ExecutionMode executionMode;
   private String hWIdentifier;
+  private volatile Frame.Encoding encoding = Frame.Encoding.JSON;
   private final int internalIdentifier;
 
   /**
@@ -28,25 +34,39 @@ public class SocketThread extends Thread
    * @param socket instance of socket
    * @param listener instance of socket listener
    * @param id internal ap identifier
+   * @param frameDecoder decoder splitting stream into messages
+   * @param ingressQueue bounded queue of messages waiting for processing
+   * @param executionMode decides kind of listening and processing threads
+   * @throws IOException when socket output stream is not available
    */
-  public SocketThread(Socket socket, SocketListener listener, int id) {
+  public SocketThread(Socket socket, SocketListener listener, int id, FrameDecoder frameDecoder,
+                      IngressQueue ingressQueue, ExecutionMode executionMode) throws IOException {
     this.socket = socket;
-    this.processThread = new ProcessThread(listener, this);
+    this.downlinkWriter = new DownlinkWriter(socket.getOutputStream(), frameDecoder, "ap." + id + ".downlink");
+    this.frameDecoder = frameDecoder;
+    this.executionMode = executionMode;
+    this.processThread = new ProcessThread(listener, this, ingressQueue);
     this.internalIdentifier = id;
     System.out.println("New AP listener created for AP of internal ID: " + this.internalIdentifier);
   }
 
+  /**
+   * Starts listening on a thread of configured kind
+   */
+  public void start() {
+    executionMode.start("ap-" + internalIdentifier + "-writer", downlinkWriter);
+    executionMode.start("ap-" + internalIdentifier + "-reader", this);
+  }
+
   @Override
   public void run() {
-    super.run();
-
     // Starting message processing thread
-    new Thread(processThread).start();
+    executionMode.start("ap-" + internalIdentifier + "-process", processThread);
 
     // While running listens for incoming messages
     while (running && socket.isConnected()) {
       try {
-        String inData = this.read();
+        Frame inData = this.read();
         System.out.println(inData);
         processThread.putToQueue(inData);
       } catch (IOException | InterruptedException e) {
@@ -56,11 +76,15 @@ public class SocketThread extends Thread
 
     // Turn off function
     try {
-      processThread.running = false;
-      processThread.putToQueue("ENDING");
+      processThread.jobQueue.close();
+      downlinkWriter.close();
 
-      if (outStream != null) {
-        outStream.close();
+      try {
+        if (!downlinkWriter.awaitClosed(WRITER_CLOSE_TIMEOUT)) {
+          System.out.println("Downlinks of AP " + internalIdentifier + " not written in " + WRITER_CLOSE_TIMEOUT + " ms, closing socket");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
 
       if (inStream != null) {
@@ -74,18 +98,41 @@ public class SocketThread extends Thread
       if (this.processThread.listener != null) {
         this.processThread.listener.socketDown(internalIdentifier);
       }
-    } catch (IOException | InterruptedException e) {
+    } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
   /**
-   * Sends downlink message to AP
-   * @param jsonText json message as a string
+   * Queues downlink message for AP writer
+   * @param message downlink message
+   */
+  public void write(Downlink message) throws IOException {
+    downlinkWriter.write(message, encoding);
+  }
+
+  /**
+   * Removes downlinks which have not been written yet
+   * @return list of downlink messages
+   */
+  public List<Downlink> takePendingDownlinks() {
+    return downlinkWriter.takePending();
+  }
+
+  /**
+   * Encoding of downlinks negotiated in SETR/SETA
+   * @return Frame.Encoding
+   */
+  public Frame.Encoding getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Switches encoding of downlinks
+   * @param encoding negotiated encoding
    */
-  public void write(String jsonText) throws IOException {
-    outStream = socket.getOutputStream();
-    outStream.write(jsonText.getBytes(StandardCharsets.UTF_8));
+  public void setEncoding(Frame.Encoding encoding) {
+    this.encoding = encoding;
   }
 
   /**
@@ -105,73 +152,80 @@ public class SocketThread extends Thread
   }
 
   /**
-   * Reads data from buffer, returns JSON string
+   * Internal identifier assigned on accept
+   * @return int
    */
-  private String read() throws IOException {
-    inStream = socket.getInputStream();
-    ByteArrayOutputStream result = new ByteArrayOutputStream();
-    byte[] buffer = new byte[1024];
-    int length;
-
-    do {
-      length = inStream.read(buffer);
+  public int getInternalIdentifier() {
+    return internalIdentifier;
+  }
 
-      if (length <= 0) {
-        throw new IOException("Connection closed");
-      }
+  /**
+   * Stops listening, closing the socket releases blocked read
+   */
+  public void close() {
+    this.running = false;
+    try {
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
 
-      result.write(buffer, 0, length);
+  /**
+   * Reads data until a whole message is framed, returns JSON or CBOR message
+   */
+  private Frame read() throws IOException {
+    if (inStream == null) {
+      inStream = socket.getInputStream();
+    }
 
-    } while (inStream.available() != 0);
+    Frame message;
 
-    return result.toString(StandardCharsets.UTF_8);
+    while ((message = frameDecoder.next()) == null) {
+      if (frameDecoder.read(inStream) < 0) {
+        throw new IOException("Connection closed");
+      }
+    }
+    return message;
   }
 
   /**
-   * Unprocessed messages wain in a quee until server is ready to accept them
+   * Unprocessed messages wait in a bounded queue until server is ready to accept them
    */
   private class ProcessThread implements Runnable {
-    private volatile boolean running = true;
-    private final LinkedBlockingQueue<String> jobQueue;
+    private final IngressQueue jobQueue;
     private final SocketListener listener;
     private final SocketThread parent;
 
-    public ProcessThread(SocketListener listener, SocketThread parent) {
+    public ProcessThread(SocketListener listener, SocketThread parent, IngressQueue jobQueue) {
       this.listener = listener;
       this.parent = parent;
-      this.jobQueue = new LinkedBlockingQueue<>();
+      this.jobQueue = jobQueue;
     }
 
-    public void putToQueue(String insert) throws InterruptedException {
+    /**
+     * Inserts message, blocks the reader while the queue is full
+     * @param insert received message
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void putToQueue(Frame insert) throws InterruptedException {
       this.jobQueue.put(insert);
     }
 
     @Override
     public void run() {
       System.out.println("Starting process thread");
-      String inData = null;
+      Frame inData;
 
-      while (running) {
-        try {
-          inData = jobQueue.take();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-        // NETWORK DOWN
-        if (!running){
-          break; // lasts messages + ENDING message
-        }
-        this.listener.process(parent, inData, running, internalIdentifier);
-      }
-
-      // Powerdown function
-      if (!running) {
-        int leftover = jobQueue.size() - 1; // REMOVE ENDING message
-        for (int i =0; i<leftover; i++) {
-          inData = jobQueue.poll();
-          this.listener.process(parent, inData, false, internalIdentifier);
+      try {
+        // After the network is down, leftover messages are processed as offline
+        while ((inData = jobQueue.take()) != null) {
+          this.listener.process(parent, inData, !jobQueue.isClosed(), internalIdentifier);
         }
+      } catch (InterruptedException e) {
+        e.printStackTrace();
       }
+      jobQueue.release();
     }
   }
 }
@@ -0,0 +1,112 @@
+package core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides whether blocking workloads run on platform or virtual threads
+ * Virtual threads are looked up at runtime, so the server still builds and runs on JDK 11
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class ExecutionMode {
+  public static final String PLATFORM = "platform";
+  public static final String VIRTUAL = "virtual";
+
+  private final boolean virtual;
+  private final Method ofVirtual;
+  private final Method builderName;
+  private final Method builderUnstarted;
+
+  /**
+   * Constructor
+   * @param mode platform or virtual
+   */
+  public ExecutionMode(String mode) {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderUnstarted = null;
+
+    if (mode.equalsIgnoreCase(VIRTUAL)) {
+      try {
+        ofVirtual = Thread.class.getMethod("ofVirtual");
+        Class<?> builder = Class.forName("java.lang.Thread$Builder");
+        builderName = builder.getMethod("name", String.class);
+        builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads are not supported by " + System.getProperty("java.version") + ", using platform threads");
+        ofVirtual = null;
+      }
+    }
+
+    this.virtual = ofVirtual != null;
+    this.ofVirtual = ofVirtual;
+    this.builderName = builderName;
+    this.builderUnstarted = builderUnstarted;
+    System.out.println("Execution mode: " + (this.virtual ? VIRTUAL : PLATFORM) + " threads");
+  }
+
+  /**
+   * Creates execution mode configured in configuration file
+   * @param props program properties
+   * @return ExecutionMode
+   */
+  public static ExecutionMode fromProps(Props props) {
+    return new ExecutionMode(props.getStr("ServerSetting.executionMode", PLATFORM));
+  }
+
+  /**
+   * Whether virtual threads are used
+   * @return boolean
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * Creates unstarted thread of configured kind
+   * @param name thread name
+   * @param task executed task
+   * @return Thread
+   */
+  public Thread newThread(String name, Runnable task) {
+    if (virtual) {
+      try {
+        Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+        return (Thread) builderUnstarted.invoke(builder, task);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Unable to create virtual thread", e);
+      }
+    }
+    return new Thread(task, name);
+  }
+
+  /**
+   * Creates and starts thread of configured kind
+   * @param name thread name
+   * @param task executed task
+   * @return Thread
+   */
+  public Thread start(String name, Runnable task) {
+    Thread thread = newThread(name, task);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Executor for short blocking tasks, one virtual thread per task or fixed pool of platform threads
+   * @param poolSize number of platform threads
+   * @return ExecutorService
+   */
+  public ExecutorService newWorkerPool(int poolSize) {
+    if (virtual) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Unable to create virtual thread executor", e);
+      }
+    }
+    return Executors.newFixedThreadPool(poolSize);
+  }
+}
@@ -0,0 +1,192 @@
+package core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel running many short timeouts on one thread
+ * Timeouts are kept in buckets by expiry tick, one tick touches only its bucket,
+ * so cost does not grow with the number of pending timeouts
+ * Expired tasks are handed to given executor, a direct executor suits only tasks which hand slow work off
+ * Metrics: [name].pending, [name].lateness (expiry after deadline), [name].tick (time spent per tick), [name].expired
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class HashedWheelTimer implements Runnable {
+  // Limits work done per tick when timeouts arrive faster than they expire
+  private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+  private final String name;
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Executor executor;
+  private final ConcurrentLinkedQueue<Timeout> added;
+  private final AtomicInteger pending;
+  private final long startTime;
+  private long tick = 0;
+
+  /**
+   * Constructor, starts the wheel thread
+   * @param name thread and metric name
+   * @param tickMillis tick duration, timeouts expire at most one tick late
+   * @param wheelSize number of buckets, rounded up to power of two
+   * @param executor runs expired tasks
+   */
+  public HashedWheelTimer(String name, long tickMillis, int wheelSize, Executor executor) {
+    this.name = name;
+    this.tickNanos = Math.max(1, tickMillis) * 1000000L;
+    this.wheel = new Bucket[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+    this.mask = wheel.length - 1;
+    this.executor = executor;
+    this.added = new ConcurrentLinkedQueue<>();
+    this.pending = new AtomicInteger();
+    this.startTime = System.nanoTime();
+
+    for (int i = 0; i < wheel.length; i++) {
+      wheel[i] = new Bucket();
+    }
+
+    Metrics.gauge(name + ".pending", pending::get);
+    Thread thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+    System.out.println("Timer " + name + " started with " + tickMillis + " ms tick and " + wheel.length + " buckets");
+  }
+
+  /**
+   * Schedules task, may be called from any thread
+   * @param task task run by executor after delay
+   * @param delayMillis delay in ms, task is submitted to executor right away when not positive
+   */
+  public void schedule(Runnable task, long delayMillis) {
+    if (delayMillis <= 0) {
+      executor.execute(task);
+      return;
+    }
+
+    pending.incrementAndGet();
+    added.add(new Timeout(task, System.nanoTime() + delayMillis * 1000000L));
+  }
+
+  /**
+   * Number of scheduled timeouts which have not expired yet
+   * @return int
+   */
+  public int getPending() {
+    return pending.get();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      long deadline = startTime + (tick + 1) * tickNanos;
+      long now = System.nanoTime();
+
+      while (now < deadline) {
+        LockSupport.parkNanos(deadline - now);
+        now = System.nanoTime();
+      }
+
+      transferAdded();
+      expire(wheel[(int) (tick & mask)], now);
+      Metrics.recordSince(name + ".tick", now);
+      tick++;
+    }
+  }
+
+  /**
+   * Moves newly scheduled timeouts into buckets, done by wheel thread only
+   */
+  private void transferAdded() {
+    Timeout timeout;
+
+    for (int i = 0; i < MAX_TRANSFER_PER_TICK && (timeout = added.poll()) != null; i++) {
+      long expiryTick = (timeout.deadline - startTime) / tickNanos;
+      timeout.rounds = Math.max(0, (expiryTick - tick) / wheel.length);
+      // Timeout already due expires in current tick
+      wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+    }
+  }
+
+  /**
+   * Expires timeouts of current round in bucket, others wait for next turn of the wheel
+   * @param bucket bucket of current tick
+   * @param now time of the tick
+   */
+  private void expire(Bucket bucket, long now) {
+    Timeout previous = null;
+    Timeout timeout = bucket.head;
+    int expired = 0;
+
+    while (timeout != null) {
+      Timeout next = timeout.next;
+
+      if (timeout.rounds > 0) {
+        timeout.rounds--;
+        previous = timeout;
+      } else {
+        bucket.remove(previous, timeout);
+        pending.decrementAndGet();
+        Metrics.record(name + ".lateness", now - timeout.deadline);
+        expired++;
+
+        try {
+          executor.execute(timeout.task);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      timeout = next;
+    }
+
+    if (expired > 0) {
+      Metrics.add(name + ".expired", expired);
+    }
+  }
+
+  /**
+   * Singly linked list of timeouts, touched by wheel thread only
+   */
+  private static class Bucket {
+    Timeout head;
+    Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.next = null;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    void remove(Timeout previous, Timeout timeout) {
+      if (previous == null) {
+        head = timeout.next;
+      } else {
+        previous.next = timeout.next;
+      }
+
+      if (tail == timeout) {
+        tail = previous;
+      }
+      timeout.next = null;
+    }
+  }
+
+  private static class Timeout {
+    final Runnable task;
+    final long deadline;
+    long rounds;
+    Timeout next;
+
+    Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime counters, gauges and timers of the server
+ * Values are printed periodically into log, see ServerSetting.metricsInterval
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class Metrics {
+  private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+  /**
+   * Increments counter by one
+   * @param name counter name
+   */
+  public static void increment(String name) {
+    add(name, 1);
+  }
+
+  /**
+   * Increments counter by given value
+   * @param name counter name
+   * @param delta increment
+   */
+  public static void add(String name, long delta) {
+    counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+  }
+
+  /**
+   * Returns current counter value
+   * @param name counter name
+   * @return long
+   */
+  public static long count(String name) {
+    LongAdder counter = counters.get(name);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  /**
+   * Registers value read at report time
+   * @param name gauge name
+   * @param supplier value supplier
+   */
+  public static void gauge(String name, LongSupplier supplier) {
+    gauges.put(name, supplier);
+  }
+
+  /**
+   * Records duration of an operation
+   * @param name timer name
+   * @param nanos duration in nanoseconds
+   */
+  public static void record(String name, long nanos) {
+    timers.computeIfAbsent(name, k -> new Timer()).record(nanos);
+  }
+
+  /**
+   * Records duration since given start
+   * @param name timer name
+   * @param startNanos System.nanoTime() at the start of operation
+   */
+  public static void recordSince(String name, long startNanos) {
+    record(name, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Removes all metrics with given prefix, e.g. of disconnected AP
+   * @param prefix metric name prefix
+   */
+  public static void remove(String prefix) {
+    counters.keySet().removeIf(name -> name.startsWith(prefix));
+    gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    timers.keySet().removeIf(name -> name.startsWith(prefix));
+  }
+
+  /**
+   * Returns all metrics as sorted lines
+   * @return String
+   */
+  public static String report() {
+    Map<String, String> lines = new TreeMap<>();
+    counters.forEach((name, counter) -> lines.put(name, Long.toString(counter.sum())));
+    gauges.forEach((name, gauge) -> lines.put(name, Long.toString(gauge.getAsLong())));
+    timers.forEach((name, timer) -> lines.put(name, timer.toString()));
+
+    StringBuilder report = new StringBuilder();
+    lines.forEach((name, value) -> report.append(name).append(' ').append(value).append('\n'));
+    return report.toString();
+  }
+
+  /**
+   * Starts daemon thread printing report into log
+   * @param intervalSeconds report period, disabled when not positive
+   */
+  public static void startReporter(int intervalSeconds) {
+    if (intervalSeconds <= 0) {
+      return;
+    }
+
+    Thread reporter = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(intervalSeconds * 1000L);
+        } catch (InterruptedException e) {
+          return;
+        }
+        System.out.println(DateManager.formatDate("dd.MM.yyyy HH:mm:ss") + " Metrics\n" + report());
+      }
+    }, "lones-metrics");
+    reporter.setDaemon(true);
+    reporter.start();
+  }
+
+  /**
+   * Count, mean and maximum of recorded durations
+   */
+  private static class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+      count.increment();
+      total.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    @Override
+    public String toString() {
+      long n = count.sum();
+      double mean = n == 0 ? 0 : total.sum() / (double) n / 1000000.0;
+      return String.format("count=%d mean=%.3fms max=%.3fms", n, mean, max.get() / 1000000.0);
+    }
+  }
+}
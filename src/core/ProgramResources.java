@@ -23,6 +23,7 @@ public class ProgramResources {
   public LoRaConcentrator loRaConcentrator;
   public EDProcessor edProcessor;
   public Props props;
+  public ExecutionMode executionMode;
 
   /**
    * Program resources initialization
@@ -32,6 +33,8 @@ public class ProgramResources {
     try {
       if (test) {
         this.props = new Props(this);
+        this.executionMode = ExecutionMode.fromProps(this.props);
+        Metrics.startReporter(this.props.getInt("ServerSetting.metricsInterval", 60));
         System.out.println(DateManager.formatDate("dd.MM.yyyy HH:mm:ss") + " Logging started");
         this.loRaConcentrator = new LoRaConcentrator(this);
         this.apProcessor = new APProcessor(this);
@@ -40,6 +43,8 @@ public class ProgramResources {
         TestClass.test1(this);
       } else {
         this.props = new Props(this);
+        this.executionMode = ExecutionMode.fromProps(this.props);
+        Metrics.startReporter(this.props.getInt("ServerSetting.metricsInterval", 60));
         PrintStream o = new PrintStream(new File("logs/" + System.getenv("LONES_LOGFILE")));
         //System.setOut(o);
         System.out.println(DateManager.formatDate("dd.MM.yyyy HH:mm:ss") + " Logging started");
@@ -47,4 +47,25 @@ public class Props {
   public int getInt(String propertyName) {
     return Integer.parseInt(this.prop.getProperty(propertyName));
   }
+
+  /**
+   * Get property as String, falls back to default value when property is missing
+   * @param propertyName property name from config file
+   * @param defaultValue value used when property is not set
+   * @return String
+   */
+  public String getStr(String propertyName, String defaultValue) {
+    return this.prop.getProperty(propertyName, defaultValue).trim();
+  }
+
+  /**
+   * Get property as int, falls back to default value when property is missing
+   * @param propertyName property name from config file
+   * @param defaultValue value used when property is not set
+   * @return int
+   */
+  public int getInt(String propertyName, int defaultValue) {
+    String value = this.prop.getProperty(propertyName);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
 }
@@ -0,0 +1,169 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs tasks on a fixed number of single threaded lanes chosen by key
+ * Tasks with the same key run in submission order, tasks with different keys run in parallel
+ * Urgent task runs ahead of normal tasks of other keys, waiting tasks of its own key are moved ahead with it
+ * Metrics: [name].[lane].queued, [name].urgent.wait (queueing of urgent tasks), [name].promoted
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class ShardedExecutor {
+  private final String name;
+  private final Lane[] lanes;
+
+  /**
+   * Constructor
+   * @param name thread and metric name prefix
+   * @param laneCount number of lanes, number of CPU cores when not positive
+   * @param executionMode decides kind of lane threads
+   */
+  public ShardedExecutor(String name, int laneCount, ExecutionMode executionMode) {
+    int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+    this.name = name;
+    this.lanes = new Lane[count];
+
+    for (int i = 0; i < count; i++) {
+      lanes[i] = new Lane();
+      executionMode.start(name + "-" + i, lanes[i]);
+      Metrics.gauge(name + "." + i + ".queued", lanes[i]::size);
+    }
+    System.out.println("Sharded executor " + name + " created with " + count + " lanes");
+  }
+
+  /**
+   * Queues task on the lane of given key
+   * @param key e.g. device id, tasks of one key never run concurrently
+   * @param task executed task
+   */
+  public void execute(Object key, Runnable task) {
+    execute(key, task, false);
+  }
+
+  /**
+   * Queues task on the lane of given key
+   * @param key e.g. device id, tasks of one key never run concurrently
+   * @param task executed task
+   * @param urgent whether task runs ahead of normal tasks of other keys
+   */
+  public void execute(Object key, Runnable task, boolean urgent) {
+    int hash = key.hashCode();
+    // Spreads keys differing only in upper bits
+    hash ^= hash >>> 16;
+    lanes[Math.floorMod(hash, lanes.length)].add(new Task(key, task, urgent));
+  }
+
+  /**
+   * Number of lanes
+   * @return int
+   */
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * Single thread serving urgent tasks before normal ones
+   */
+  private class Lane implements Runnable {
+    private final ArrayDeque<Task> urgent = new ArrayDeque<>();
+    private final ArrayDeque<Task> normal = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    void add(Task task) {
+      lock.lock();
+      try {
+        if (task.urgent) {
+          promote(task.key);
+          urgent.addLast(task);
+        } else {
+          normal.addLast(task);
+        }
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Moves waiting normal tasks of key ahead, so urgent task does not overtake them, called with lock held
+     * @param key key of urgent task
+     */
+    private void promote(Object key) {
+      Iterator<Task> iterator = normal.iterator();
+
+      while (iterator.hasNext()) {
+        Task waiting = iterator.next();
+
+        if (waiting.key.equals(key)) {
+          iterator.remove();
+          urgent.addLast(waiting);
+          Metrics.increment(name + ".promoted");
+        }
+      }
+    }
+
+    int size() {
+      lock.lock();
+      try {
+        return urgent.size() + normal.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private Task take() throws InterruptedException {
+      lock.lock();
+      try {
+        while (urgent.isEmpty() && normal.isEmpty()) {
+          notEmpty.await();
+        }
+        return !urgent.isEmpty() ? urgent.pollFirst() : normal.pollFirst();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Task task;
+
+        try {
+          task = take();
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        if (task.urgent) {
+          Metrics.recordSince(name + ".urgent.wait", task.queuedAt);
+        }
+
+        try {
+          task.task.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private static class Task {
+    final Object key;
+    final Runnable task;
+    final boolean urgent;
+    final long queuedAt;
+
+    Task(Object key, Runnable task, boolean urgent) {
+      this.key = key;
+      this.task = task;
+      this.urgent = urgent;
+      this.queuedAt = System.nanoTime();
+    }
+  }
+}
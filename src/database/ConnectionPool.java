@@ -0,0 +1,372 @@
+package database;
+
+import core.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size pool of JDBC connections shared by all processing threads
+ * Connection is borrowed for a single operation and returned by closing the PooledConnection
+ * Broken connection is dropped when returned and reopened by the next borrower
+ * Each connection keeps its prepared statements, they are reused by later borrowers and closed with the connection
+ * Metrics: db.pool.acquire (time waited for a connection), db.pool.idle, db.pool.active, db.pool.timeouts,
+ * db.statement.[name].prepare, db.statement.[name].query, db.statement.[name].batch, db.statement.cache.hit,
+ * db.statement.cache.miss
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class ConnectionPool {
+  // Connection idle for longer is checked before it is handed out
+  private static final long VALIDATION_INTERVAL_NANOS = 30000000000L;
+  private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+  private final String url;
+  private final String user;
+  private final String password;
+  private final long acquireTimeoutMillis;
+  private final int statementCacheSize;
+  private final ArrayBlockingQueue<PooledConnection> idle;
+  private final AtomicInteger active;
+  // Slots whose connection has been dropped, reopened on demand
+  private final AtomicInteger missing;
+  private final int size;
+
+  /**
+   * Constructor, opens all connections up front
+   * @param url JDBC url
+   * @param user database user
+   * @param password database password
+   * @param size number of connections
+   * @param acquireTimeoutMillis maximal wait for a free connection
+   * @param statementCacheSize maximal number of prepared statements kept by a connection
+   * @throws SQLException when a connection cannot be opened
+   */
+  public ConnectionPool(String url, String user, String password, int size, long acquireTimeoutMillis, int statementCacheSize) throws SQLException {
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.size = Math.max(1, size);
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.statementCacheSize = Math.max(1, statementCacheSize);
+    this.idle = new ArrayBlockingQueue<>(this.size);
+    this.active = new AtomicInteger();
+    this.missing = new AtomicInteger();
+
+    for (int i = 0; i < this.size; i++) {
+      idle.add(open());
+    }
+
+    Metrics.gauge("db.pool.idle", idle::size);
+    Metrics.gauge("db.pool.active", active::get);
+    System.out.println("Connection pool created with " + this.size + " connections");
+  }
+
+  /**
+   * Borrows connection, waits while all are in use
+   * @return connection to be closed after the operation
+   * @throws SQLException when no connection is available in time or it cannot be reopened
+   */
+  public PooledConnection acquire() throws SQLException {
+    long start = System.nanoTime();
+    PooledConnection connection = idle.poll();
+
+    if (connection == null) {
+      connection = reopenMissing();
+    }
+
+    if (connection == null) {
+      try {
+        connection = idle.poll(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for database connection", e);
+      }
+    }
+
+    if (connection == null) {
+      Metrics.increment("db.pool.timeouts");
+      throw new SQLException("No database connection available within " + acquireTimeoutMillis + " ms");
+    }
+
+    connection = validate(connection);
+    active.incrementAndGet();
+    Metrics.recordSince("db.pool.acquire", start);
+    return connection;
+  }
+
+  /**
+   * Number of connections of the pool
+   * @return int
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Closes idle connections, borrowed ones are closed when returned
+   */
+  public void close() {
+    PooledConnection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.closeQuietly();
+    }
+  }
+
+  /**
+   * Returns connection borrowed by acquire
+   * @param connection borrowed connection
+   */
+  void release(PooledConnection connection) {
+    active.decrementAndGet();
+
+    if (connection.isBroken()) {
+      connection.closeQuietly();
+      missing.incrementAndGet();
+      return;
+    }
+    connection.touch();
+    idle.offer(connection);
+  }
+
+  /**
+   * Replaces connection idle for a long time when it no longer responds
+   * @param connection idle connection
+   * @return usable connection
+   * @throws SQLException when connection cannot be reopened
+   */
+  private PooledConnection validate(PooledConnection connection) throws SQLException {
+    if (System.nanoTime() - connection.getLastUsed() < VALIDATION_INTERVAL_NANOS) {
+      return connection;
+    }
+
+    try {
+      if (connection.getConnection().isValid(VALIDATION_TIMEOUT_SECONDS)) {
+        return connection;
+      }
+
+      System.out.println("Reconnecting stale database connection");
+      connection.closeQuietly();
+      return open();
+    } catch (SQLException e) {
+      connection.closeQuietly();
+      missing.incrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens connection in place of a dropped one
+   * @return connection or null when no slot is free
+   * @throws SQLException when connection cannot be opened
+   */
+  private PooledConnection reopenMissing() throws SQLException {
+    int slots;
+    do {
+      slots = missing.get();
+      if (slots == 0) {
+        return null;
+      }
+    } while (!missing.compareAndSet(slots, slots - 1));
+
+    try {
+      return open();
+    } catch (SQLException e) {
+      missing.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private PooledConnection open() throws SQLException {
+    return new PooledConnection(this, DriverManager.getConnection(url, user, password), statementCacheSize);
+  }
+
+  /**
+   * Borrowed connection, closing returns it to the pool
+   * Used by one borrower at a time, so its statement cache needs no locking
+   */
+  public static class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    // Statements by SQL in access order, least recently used is closed when the cache is full
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    // Metric name prefix of each cached statement
+    private final IdentityHashMap<PreparedStatement, String> names;
+    private long lastUsed;
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+      this.pool = pool;
+      this.connection = connection;
+      this.names = new IdentityHashMap<>();
+      this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+          if (size() <= statementCacheSize) {
+            return false;
+          }
+          names.remove(eldest.getValue());
+          closeStatement(eldest.getValue());
+          return true;
+        }
+      };
+      this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Returns statement prepared by an earlier borrower of this connection or prepares it
+     * Statement stays owned by the connection, caller must not close it, only its result sets
+     * @param name statement name used in metrics
+     * @param sql constant statement
+     * @return PreparedStatement with cleared parameters
+     * @throws SQLException when statement cannot be prepared
+     */
+    public PreparedStatement prepareStatement(String name, String sql) throws SQLException {
+      PreparedStatement statement = statements.get(sql);
+
+      if (statement != null) {
+        Metrics.increment("db.statement.cache.hit");
+        statement.clearParameters();
+        return statement;
+      }
+
+      long start = System.nanoTime();
+      statement = connection.prepareStatement(sql);
+      Metrics.recordSince("db.statement." + name + ".prepare", start);
+      Metrics.increment("db.statement.cache.miss");
+      names.put(statement, "db.statement." + name);
+      statements.put(sql, statement);
+      return statement;
+    }
+
+    /**
+     * Executes query of a statement prepared by this connection and records its time
+     * @param statement prepared statement
+     * @return ResultSet to be closed by the caller
+     * @throws SQLException when query fails
+     */
+    public ResultSet executeQuery(PreparedStatement statement) throws SQLException {
+      long start = System.nanoTime();
+      ResultSet result = statement.executeQuery();
+      Metrics.recordSince(metricName(statement) + ".query", start);
+      return result;
+    }
+
+    /**
+     * Executes queued batch of a statement prepared by this connection and records its time
+     * @param statement prepared statement with added batch
+     * @return number of affected rows of each batch entry
+     * @throws SQLException when any entry fails
+     */
+    public int[] executeBatch(PreparedStatement statement) throws SQLException {
+      long start = System.nanoTime();
+      int[] rows = statement.executeBatch();
+      Metrics.recordSince(metricName(statement) + ".batch", start);
+      return rows;
+    }
+
+    /**
+     * Starts transaction, it has to end by commit or rollback before the connection is returned
+     * @throws SQLException when auto-commit cannot be switched off
+     */
+    public void begin() throws SQLException {
+      connection.setAutoCommit(false);
+    }
+
+    /**
+     * Commits transaction started by begin and returns to auto-commit
+     * @throws SQLException when commit fails, transaction has to be rolled back
+     */
+    public void commit() throws SQLException {
+      connection.commit();
+      connection.setAutoCommit(true);
+    }
+
+    /**
+     * Rolls back transaction started by begin and returns to auto-commit
+     * Connection which cannot be rolled back is closed, so it is dropped when returned
+     */
+    public void rollback() {
+      try {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      } catch (SQLException e) {
+        e.printStackTrace();
+        closeQuietly();
+      }
+    }
+
+    /**
+     * Executes update of a statement prepared by this connection and records its time
+     * @param statement prepared statement
+     * @return number of affected rows
+     * @throws SQLException when update fails
+     */
+    public int executeUpdate(PreparedStatement statement) throws SQLException {
+      long start = System.nanoTime();
+      int rows = statement.executeUpdate();
+      Metrics.recordSince(metricName(statement) + ".query", start);
+      return rows;
+    }
+
+    public Connection getConnection() {
+      return connection;
+    }
+
+    @Override
+    public void close() {
+      pool.release(this);
+    }
+
+    long getLastUsed() {
+      return lastUsed;
+    }
+
+    void touch() {
+      lastUsed = System.nanoTime();
+    }
+
+    boolean isBroken() {
+      try {
+        return connection.isClosed();
+      } catch (SQLException e) {
+        return true;
+      }
+    }
+
+    void closeQuietly() {
+      for (PreparedStatement statement : statements.values()) {
+        closeStatement(statement);
+      }
+      statements.clear();
+      names.clear();
+
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private String metricName(PreparedStatement statement) {
+      String name = names.get(statement);
+      return name == null ? "db.statement.uncached" : name;
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        // Connection is already broken
+      }
+    }
+  }
+}
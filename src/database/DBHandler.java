@@ -1,8 +1,12 @@
 package database;
 
 import core.DateManager;
+import core.ExecutionMode;
+import core.Metrics;
 import core.ProgramResources;
-import org.json.JSONException;
+import core.Props;
+import database.ConnectionPool.PooledConnection;
+import message.Uplink;
 import org.json.JSONObject;
 
 import java.sql.*;
@@ -13,6 +17,11 @@ import java.util.ArrayList;
 
 /**
  * Handles database connection, read and write operations
+ * Thread safe, every operation borrows a pooled connection, so processing threads run database work in parallel up to the pool size
+ * Statements are prepared once per connection and reused, only result sets are closed by the operation
+ * Reads and writes of a node wait until its writes queued by WriteBehind are committed,
+ * except readNode, which sees queued sequence number instead
+ * Metrics: db.uplink.rows, db.uplink.roundtrips (database round trips spent writing uplink rows)
  * @author Karol Cagáň
  * @author Alexander Valach
  * @version 0.3
@@ -29,19 +38,48 @@ public class DBHandler {
   private final String USER;
   private final String PASS;
 
-  private Connection conn = null;
-  private PreparedStatement preparedStmt = null;
-  private ResultSet rs = null;
+  private ConnectionPool pool;
+  private final int poolSize;
+  private final int acquireTimeout;
+  private final int statementCacheSize;
   private final int maxPower;
   private final int maxSPF;
   private final int rssiHarmonizationLimit;
   private final DateFormat dateFormat;
+  private final WriteBehind writeBehind;
+
+  static final String UPDATE_SEQUENCE = "UPDATE nodes SET last_seq = ? WHERE id = ?";
+  static final String INSERT_SENT_DOWNLINK = "INSERT INTO downlink_messages " +
+    "(app_data, duty_cycle_remaining, sent, ack_required, delivered, send_time, " +
+    "frequency, spf, power, airtime, coderate, bandwidth, ap_id, node_id, net_data) " +
+    "VALUES (?, ?, true, false, true, ? , ?, ?, ?, ?, ?, ?, ? ,? ,?::json)";
+  static final String MARK_DOWNLINK_SENT = "UPDATE downlink_messages SET sent = TRUE, duty_cycle_remaining = ?, delivered = TRUE, send_time = ? WHERE id = ?";
+  static final String INSERT_UPLINK = "INSERT INTO uplink_messages " +
+    "(app_data, snr, rssi, duty_cycle_remaining, is_primary, receive_time, " +
+    "msg_group_number, seq, frequency, spf, power, airtime, coderate, bandwidth, " +
+    "message_type_id, ap_id, node_id) " +
+    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  // Same columns in the same order as INSERT_UPLINK, rows are streamed as CSV
+  static final String COPY_UPLINK = "COPY uplink_messages " +
+    "(app_data, snr, rssi, duty_cycle_remaining, is_primary, receive_time, " +
+    "msg_group_number, seq, frequency, spf, power, airtime, coderate, bandwidth, " +
+    "message_type_id, ap_id, node_id) " +
+    "FROM STDIN WITH (FORMAT csv)";
 
   /**
    * Class initialization
    * @param programResources instance of program resources
    */
   public DBHandler(ProgramResources programResources) {
+    this(programResources.props, programResources.executionMode);
+  }
+
+  /**
+   * Class initialization without other program resources, e.g. for benchmarks
+   * @param props configuration
+   * @param executionMode decides kind of write-behind threads
+   */
+  public DBHandler(Props props, ExecutionMode executionMode) {
     this.DB_DRIVER = System.getenv("DB_DRIVER");
     this.USER = System.getenv("DB_USER");
     this.PASS = System.getenv("DB_PASSWORD");
@@ -49,17 +87,37 @@ public class DBHandler {
     this.PORT = System.getenv("DB_PORT");
     this.DB_NAME = System.getenv("DB_NAME");
     this.DB_PROTOCOL = System.getenv("DB_PROTOCOL");
-    this.maxSPF = programResources.props.getInt("LoRaSettings.maxSpf");
-    this.maxPower = programResources.props.getInt("LoRaSettings.maxPower");
+    this.maxSPF = props.getInt("LoRaSettings.maxSpf");
+    this.maxPower = props.getInt("LoRaSettings.maxPower");
     
     this.DB_URL = this.DB_PROTOCOL + "://" + this.HOST + ":" + this.PORT + "/" + this.DB_NAME;
 
-    this.rssiHarmonizationLimit = programResources.props.getInt("LoRaSettings.rssiHarmonizingMsgCount");
+    this.rssiHarmonizationLimit = props.getInt("LoRaSettings.rssiHarmonizingMsgCount");
+    this.poolSize = props.getInt("DBHandler.poolSize", 8);
+    this.acquireTimeout = props.getInt("DBHandler.acquireTimeout", 5000);
+    this.statementCacheSize = props.getInt("DBHandler.statementCacheSize", 64);
     this.dateFormat = new SimpleDateFormat("hh:mm:ss");
     this.connect();
+    this.writeBehind = new WriteBehind(this, pool, props, executionMode);
     System.out.println("Database Handler created successfully!");
   }
 
+  /**
+   * Queue of writes done after TXL has been sent
+   * @return WriteBehind
+   */
+  public WriteBehind getWriteBehind() {
+    return writeBehind;
+  }
+
+  /**
+   * Flushes queued writes and closes the pooled connections, the handler is not usable afterwards
+   */
+  public void close() {
+    writeBehind.close();
+    pool.close();
+  }
+
   /**
    * Connection establishment and environment setup
    */
@@ -68,8 +126,7 @@ public class DBHandler {
     try {
       Class.forName(this.DB_DRIVER);
       System.out.println("Connecting to database...");
-      this.conn = DriverManager.getConnection(DB_URL, USER, PASS);
-      Statement stmt = conn.createStatement();
+      this.pool = new ConnectionPool(DB_URL, USER, PASS, poolSize, acquireTimeout, statementCacheSize);
     } catch (Exception e) {
       System.out.println("Connection refused by database server! Is it functional and running?");
       System.out.println("LoRa Network Server will now exit");
@@ -97,8 +154,8 @@ public class DBHandler {
       return;
     }
 
-    try {
-      preparedStmt = conn.prepareStatement("INSERT INTO aps (id, protocol_ver, max_power, channels_num, duty_cycle_refresh, lora_protocol, lora_protocol_ver, transmission_param_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeAp", "INSERT INTO aps (id, protocol_ver, max_power, channels_num, duty_cycle_refresh, lora_protocol, lora_protocol_ver, transmission_param_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
       preparedStmt.setString(1, id);
       preparedStmt.setString(2, protocolVersion);
       preparedStmt.setInt(3, maxPower);
@@ -107,7 +164,7 @@ public class DBHandler {
       preparedStmt.setString(6, loraProtocol);
       preparedStmt.setString(7, loraProtocolVer);
       preparedStmt.setInt(8, transmissionParamId);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("New AP written into database with ID: " + id);
     } catch (Exception e) {
       e.printStackTrace();
@@ -121,20 +178,23 @@ public class DBHandler {
    * @param dhKey diffie-hellman key
    */
   public void writeKey(String id, int lastSeq, String dhKey) {
-    try {
+    // Queued sequence update must not overwrite the new one
+    writeBehind.awaitDevice(id);
+
+    try (PooledConnection conn = pool.acquire()) {
       if (!dhKey.equals("")) {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET dh_key = ?, last_seq = ? WHERE id = ?");
+        PreparedStatement preparedStmt = conn.prepareStatement("writeKey", "UPDATE nodes SET dh_key = ?, last_seq = ? WHERE id = ?");
         preparedStmt.setString(1, dhKey);
         preparedStmt.setInt(2, lastSeq);
         preparedStmt.setString(3, id);
-        preparedStmt.executeUpdate();
+        conn.executeUpdate(preparedStmt);
         System.out.println("DH Key: " + dhKey);
         System.out.println("New KEY written into database for node ID: " + id);
       } else {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET last_seq = ? WHERE id = ?");
+        PreparedStatement preparedStmt = conn.prepareStatement("updateSequence", UPDATE_SEQUENCE);
         preparedStmt.setInt(1, lastSeq);
         preparedStmt.setString(2, id);
-        preparedStmt.executeUpdate();
+        conn.executeUpdate(preparedStmt);
         System.out.println("Seq updated to " + lastSeq + " for node " + id);
       }
     } catch (Exception e) {
@@ -148,11 +208,11 @@ public class DBHandler {
    * @param lastSeq new sequence number value
    */
   public void updateSequence(String id, int lastSeq) {
-    try {
-      preparedStmt = conn.prepareStatement("UPDATE nodes SET last_seq = ? WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("updateSequence", UPDATE_SEQUENCE);
       preparedStmt.setInt(1, lastSeq);
       preparedStmt.setString(2, id);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("SEQ updated to " + lastSeq + " for node " + id);
     } catch (Exception e) {
       e.printStackTrace();
@@ -183,66 +243,111 @@ public class DBHandler {
                              Timestamp receiveTime, int msgGroupNumber, int seqNum, float frequency, int spf,
                              int power, int airtime, String coderate, int bandwidth, int messageTypeId,
                              String apId, String nodeId) {
-    try {
-      preparedStmt = conn.prepareStatement("INSERT INTO uplink_messages " +
-              "(app_data, snr, rssi, duty_cycle_remaining, is_primary, receive_time, " +
-              "msg_group_number, seq, frequency, spf, power, airtime, coderate, bandwidth, " +
-              "message_type_id, ap_id, node_id) " +
-              "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-      preparedStmt.setString(1, appData);
-      preparedStmt.setFloat(2, snr);
-      preparedStmt.setFloat(3, rssi);
-      preparedStmt.setInt(4, dutyCRemaining);
-      preparedStmt.setBoolean(5, isPrimary);
-      preparedStmt.setTimestamp(6, receiveTime);
-      preparedStmt.setInt(7, msgGroupNumber);
-      preparedStmt.setInt(8, seqNum);
-      preparedStmt.setFloat(9, frequency);
-      preparedStmt.setFloat(10, spf);
-      preparedStmt.setInt(11, power);
-      preparedStmt.setInt(12, airtime);
-      preparedStmt.setString(13, coderate);
-      preparedStmt.setInt(14, bandwidth);
-      preparedStmt.setInt(15, messageTypeId);
-      preparedStmt.setString(16, apId);
-      preparedStmt.setString(17, nodeId);
-      preparedStmt.executeUpdate();
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeUplinkMsg", INSERT_UPLINK);
+      setUplinkParams(preparedStmt, appData, snr, rssi, dutyCRemaining, isPrimary, receiveTime, msgGroupNumber, seqNum,
+        frequency, spf, power, airtime, coderate, bandwidth, messageTypeId, apId, nodeId);
+      conn.executeUpdate(preparedStmt);
+      Metrics.increment("db.uplink.rows");
+      Metrics.increment("db.uplink.roundtrips");
       System.out.println("New UPLINK MSG from " + nodeId + " written into database for AP " + apId);
-    } catch (Exception e) {
+    } catch (SQLException e) {
       e.printStackTrace();
     }
   }
 
   /***
-   * Saves all messages into DB
+   * Sets parameters of uplink insert, see writeUplinkMsg
+   */
+  static void setUplinkParams(PreparedStatement preparedStmt, String appData, float snr, float rssi, int dutyCRemaining, boolean isPrimary,
+                              Timestamp receiveTime, int msgGroupNumber, int seqNum, float frequency, int spf,
+                              int power, int airtime, String coderate, int bandwidth, int messageTypeId,
+                              String apId, String nodeId) throws SQLException {
+    preparedStmt.setString(1, appData);
+    preparedStmt.setFloat(2, snr);
+    preparedStmt.setFloat(3, rssi);
+    preparedStmt.setInt(4, dutyCRemaining);
+    preparedStmt.setBoolean(5, isPrimary);
+    preparedStmt.setTimestamp(6, receiveTime);
+    preparedStmt.setInt(7, msgGroupNumber);
+    preparedStmt.setInt(8, seqNum);
+    preparedStmt.setFloat(9, frequency);
+    preparedStmt.setFloat(10, spf);
+    preparedStmt.setInt(11, power);
+    preparedStmt.setInt(12, airtime);
+    preparedStmt.setString(13, coderate);
+    preparedStmt.setInt(14, bandwidth);
+    preparedStmt.setInt(15, messageTypeId);
+    preparedStmt.setString(16, apId);
+    preparedStmt.setString(17, nodeId);
+  }
+
+  /***
+   * Saves all messages of a group into DB as one batch in one transaction, either all replicas are written or none
+   * Costs two round trips, the batch and the commit, instead of one per replica
    * @param currentGrape batch with all message replicas
-   * @param primary single message marked as primary
+   * @param primary single message marked as primary, null when all messages are late replicas
    * @param msgGroupId message group id
    * @param msgTypeId message type id
-   * @throws JSONException
-   */
-  public void bulkInsertUplinkMessages (ArrayList<JSONObject> currentGrape, JSONObject primary, int msgGroupId, int msgTypeId) throws JSONException {
-    // TODO: Make bulk insert as a transcation
-    for (JSONObject message : currentGrape) {
-      this.writeUplinkMsg(
-        message.getString("data"),
-        Float.parseFloat(message.getString("snr")),
-        Float.parseFloat(message.getString("rssi")),
-        message.getInt("duty_c"),
-        message.toString().equals(primary.toString()),
-        DateManager.getTimestamp(),
-        msgGroupId,
-        message.getInt("seq"),
-        Float.parseFloat(message.getString("freq")),
-        message.getInt("sf"),
-        message.getInt("power"),
-        message.getInt("time"),
-        message.getString("cr"),
-        message.getInt("band"),
-        msgTypeId,
-        message.getString("hWIdentifier"),
-        message.getString("dev_id")
-      );
+   */
+  public void bulkInsertUplinkMessages (ArrayList<Uplink> currentGrape, Uplink primary, int msgGroupId, int msgTypeId) {
+    this.bulkInsertUplinkMessages(currentGrape, primary, msgGroupId, msgTypeId, DateManager.getTimestamp());
+  }
+
+  /***
+   * Saves all messages of a group with given receive time, see public variant
+   */
+  void bulkInsertUplinkMessages (ArrayList<Uplink> currentGrape, Uplink primary, int msgGroupId, int msgTypeId, Timestamp receiveTime) {
+    if (currentGrape.isEmpty()) {
+      return;
+    }
+
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeUplinkMsg", INSERT_UPLINK);
+      conn.begin();
+
+      try {
+        for (Uplink message : currentGrape) {
+          setUplinkParams(
+            preparedStmt,
+            message.getData(),
+            message.getSnr(),
+            message.getRssi(),
+            message.getDutyC(),
+            message == primary,
+            receiveTime,
+            msgGroupId,
+            message.getSeq(),
+            message.getFreq(),
+            message.getSf(),
+            message.getPower(),
+            (int) message.getTime(),
+            message.getCr(),
+            message.getBand(),
+            msgTypeId,
+            message.getHwIdentifier(),
+            message.getDevId()
+          );
+          preparedStmt.addBatch();
+        }
+        conn.executeBatch(preparedStmt);
+        conn.commit();
+      } catch (SQLException e) {
+        // Cleared before rollback, which closes the statement with its connection when it fails
+        try {
+          preparedStmt.clearBatch();
+        } catch (SQLException clearFailure) {
+          e.addSuppressed(clearFailure);
+        }
+        conn.rollback();
+        throw e;
+      }
+
+      Metrics.add("db.uplink.rows", currentGrape.size());
+      Metrics.add("db.uplink.roundtrips", 2);
+      System.out.println(currentGrape.size() + " UPLINK MSGs from " + currentGrape.get(0).getDevId() + " written into database in group " + msgGroupId);
+    } catch (SQLException e) {
+      e.printStackTrace();
     }
   }
 
@@ -258,37 +363,52 @@ public class DBHandler {
    */
   public void writeNode(String id, int upPower, int downPower, int spf, String formattedDate,
                         int appId, int transmissionParam) {
+    writeBehind.awaitDevice(id);
+
     if (this.endNodeExists(id)) {
       System.out.println("Node with ID " + id + " already exists");
       return;
     }
 
-    try {
-      preparedStmt = conn.prepareStatement("INSERT INTO nodes " +
+    try (PooledConnection conn = pool.acquire()) {
+      try {
+        PreparedStatement preparedStmt = conn.prepareStatement("writeNode", "INSERT INTO nodes " +
               "(id, upstream_power, downstream_power, spf, duty_cycle_refresh, application_id, transmission_param_id) " +
               "VALUES (?, ?, ?, ?, ?, ?, ?)");
-      preparedStmt.setString(1, id);
-      preparedStmt.setInt(2, upPower);
-      preparedStmt.setInt(3, downPower);
-      preparedStmt.setInt(4, spf);
-      preparedStmt.setTime(5, new Time(dateFormat.parse(formattedDate).getTime()));
-      preparedStmt.setInt(6, appId);
-      preparedStmt.setInt(7, transmissionParam);
-      preparedStmt.executeUpdate();
-      System.out.println("New Node written into database: " + id);
-    } catch (SQLException | ParseException e) {
-      e.printStackTrace();
+        Time dutyCycleRefresh;
+        // SimpleDateFormat is not thread safe
+        synchronized (dateFormat) {
+          dutyCycleRefresh = new Time(dateFormat.parse(formattedDate).getTime());
+        }
+        preparedStmt.setString(1, id);
+        preparedStmt.setInt(2, upPower);
+        preparedStmt.setInt(3, downPower);
+        preparedStmt.setInt(4, spf);
+        preparedStmt.setTime(5, dutyCycleRefresh);
+        preparedStmt.setInt(6, appId);
+        preparedStmt.setInt(7, transmissionParam);
+        conn.executeUpdate(preparedStmt);
+        System.out.println("New Node written into database: " + id);
+        return;
+      } catch (SQLException | ParseException e) {
+        e.printStackTrace();
+      }
+
       try {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET dh_key = '' WHERE ID = ?");
+        PreparedStatement preparedStmt = conn.prepareStatement("deleteKey", "UPDATE nodes SET dh_key = '' WHERE ID = ?");
         preparedStmt.setString(1, id);
-        preparedStmt.executeUpdate();
+        conn.executeUpdate(preparedStmt);
         System.out.println("DH key deleted for node: " + id);
+        return;
       } catch (SQLException e1) {
         e1.printStackTrace();
-        this.increasePower(id, 0, 0);
       }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return;
     }
-
+    // Connection is returned before borrowing another one
+    this.increasePower(id, 0, 0);
   }
 
   /**
@@ -298,13 +418,13 @@ public class DBHandler {
    * @param nodeId end node identifier
    */
   public void writeUnsentDownlinkMsg(String appData, String apId, String nodeId) {
-    try {
-      // Version 1.0 does not support downstream ACK edit here
-      preparedStmt = conn.prepareStatement("INSERT INTO downlink_messages (app_data, sent, delivered, ap_id, node_id) VALUES (?, false, false, ?, ?)");
+    // Version 1.0 does not support downstream ACK edit here
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeUnsentDownlinkMsg", "INSERT INTO downlink_messages (app_data, sent, delivered, ap_id, node_id) VALUES (?, false, false, ?, ?)");
       preparedStmt.setString(1, appData);
       preparedStmt.setString(2, apId);
       preparedStmt.setString(3, nodeId);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("New Unsent MSG_D written into database for node " + nodeId);
     } catch (SQLException e) {
       e.printStackTrace();
@@ -320,32 +440,48 @@ public class DBHandler {
   public void writeSentDownlinkMsg(String appData, String netData, int dutyCRemaining, float frequency,
                                    int spf, int power, int airtime, String coderate, int bandwidth,
                                    String apId, String nodeId) {
-    try {
-      // Version 1.0 does not support downstream ACK edit here
-      preparedStmt = conn.prepareStatement("INSERT INTO downlink_messages " +
-              "(app_data, duty_cycle_remaining, sent, ack_required, delivered, send_time, " +
-              "frequency, spf, power, airtime, coderate, bandwidth, ap_id, node_id, net_data) " +
-              "VALUES (?, ?, true, false, true, ? , ?, ?, ?, ?, ?, ?, ? ,? ,?::json)");
+    this.writeSentDownlinkMsg(appData, netData, dutyCRemaining, frequency, spf, power, airtime, coderate, bandwidth,
+      apId, nodeId, DateManager.getTimestamp());
+  }
 
-      preparedStmt.setString(1, appData);
-      preparedStmt.setInt(2, dutyCRemaining);
-      preparedStmt.setTimestamp(3, DateManager.getTimestamp());
-      preparedStmt.setFloat(4, frequency);
-      preparedStmt.setInt(5, spf);
-      preparedStmt.setInt(6, power);
-      preparedStmt.setInt(7, airtime);
-      preparedStmt.setString(8, coderate);
-      preparedStmt.setInt(9, bandwidth);
-      preparedStmt.setString(10, apId);
-      preparedStmt.setString(11, nodeId);
-      preparedStmt.setString(12, netData);
-      preparedStmt.executeUpdate();
+  /***
+   * Writes sent downlink message with given send time, see public variant
+   */
+  void writeSentDownlinkMsg(String appData, String netData, int dutyCRemaining, float frequency,
+                            int spf, int power, int airtime, String coderate, int bandwidth,
+                            String apId, String nodeId, Timestamp sendTime) {
+    // Version 1.0 does not support downstream ACK edit here
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeSentDownlinkMsg", INSERT_SENT_DOWNLINK);
+      setSentDownlinkParams(preparedStmt, appData, netData, dutyCRemaining, frequency, spf, power, airtime, coderate,
+        bandwidth, apId, nodeId, sendTime);
+      conn.executeUpdate(preparedStmt);
       System.out.println("New Sent MSG_D written into database for Node: " + nodeId);
     } catch (SQLException e) {
       e.printStackTrace();
     }
   }
 
+  /***
+   * Sets parameters of sent downlink insert, see writeSentDownlinkMsg
+   */
+  static void setSentDownlinkParams(PreparedStatement preparedStmt, String appData, String netData, int dutyCRemaining,
+                                    float frequency, int spf, int power, int airtime, String coderate, int bandwidth,
+                                    String apId, String nodeId, Timestamp sendTime) throws SQLException {
+    preparedStmt.setString(1, appData);
+    preparedStmt.setInt(2, dutyCRemaining);
+    preparedStmt.setTimestamp(3, sendTime);
+    preparedStmt.setFloat(4, frequency);
+    preparedStmt.setInt(5, spf);
+    preparedStmt.setInt(6, power);
+    preparedStmt.setInt(7, airtime);
+    preparedStmt.setString(8, coderate);
+    preparedStmt.setInt(9, bandwidth);
+    preparedStmt.setString(10, apId);
+    preparedStmt.setString(11, nodeId);
+    preparedStmt.setString(12, netData);
+  }
+
   /**
    * Updates node power settings in DB
    * @param nodeId hardware identifier
@@ -358,26 +494,31 @@ public class DBHandler {
     try {
       // Special usage: sets device to full power
       if (upPowerDecrement == 0 && downPowerDecrement == 0 && spfDecrement == 0) {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET downstream_power = ?, upstream_power = ?, spf = ? WHERE id = ?");
-        preparedStmt.setInt(1, maxPower);
-        preparedStmt.setInt(2, maxPower);
-        preparedStmt.setInt(3, maxSPF);
-        preparedStmt.setString(4, nodeId);
-        preparedStmt.executeUpdate();
+        try (PooledConnection conn = pool.acquire()) {
+          PreparedStatement preparedStmt = conn.prepareStatement("resetPower", "UPDATE nodes SET downstream_power = ?, upstream_power = ?, spf = ? WHERE id = ?");
+          preparedStmt.setInt(1, maxPower);
+          preparedStmt.setInt(2, maxPower);
+          preparedStmt.setInt(3, maxSPF);
+          preparedStmt.setString(4, nodeId);
+          conn.executeUpdate(preparedStmt);
+        }
         System.out.println("Node power and SPF reset");
         return true;
       }
 
+      // Read borrows its own connection, before the update borrows one
       JSONObject originalValue = new JSONObject(this.readNode(nodeId));
       int newPower = originalValue.getInt("upstream_power") - upPowerDecrement;
       int newSpf = originalValue.getInt("spf") - spfDecrement;
 
       if (newPower > 4 && newSpf > 6) {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET upstream_power = ?, spf = ? WHERE id = ?");
-        preparedStmt.setInt(1, newPower);
-        preparedStmt.setInt(2, newSpf);
-        preparedStmt.setString(3, nodeId);
-        preparedStmt.executeUpdate();
+        try (PooledConnection conn = pool.acquire()) {
+          PreparedStatement preparedStmt = conn.prepareStatement("updatePower", "UPDATE nodes SET upstream_power = ?, spf = ? WHERE id = ?");
+          preparedStmt.setInt(1, newPower);
+          preparedStmt.setInt(2, newSpf);
+          preparedStmt.setString(3, nodeId);
+          conn.executeUpdate(preparedStmt);
+        }
         System.out.println("Node power updated to " + newPower + " and SF to " + newSpf);
         return true;
       }
@@ -402,11 +543,13 @@ public class DBHandler {
       int newSpf = originalvalue.getInt("spf") + spfIncrement;
 
       if (newPower <= maxPower && newSpf <= maxSPF) {
-        preparedStmt = conn.prepareStatement("UPDATE nodes SET upstream_power = ?, spf = ? WHERE id = ?");
-        preparedStmt.setInt(1, newPower);
-        preparedStmt.setInt(2, newSpf);
-        preparedStmt.setString(3, nodeId);
-        preparedStmt.executeUpdate();
+        try (PooledConnection conn = pool.acquire()) {
+          PreparedStatement preparedStmt = conn.prepareStatement("updatePower", "UPDATE nodes SET upstream_power = ?, spf = ? WHERE id = ?");
+          preparedStmt.setInt(1, newPower);
+          preparedStmt.setInt(2, newSpf);
+          preparedStmt.setString(3, nodeId);
+          conn.executeUpdate(preparedStmt);
+        }
         System.out.println("Node power updated to " + newPower + " and SPF to " + newSpf);
         return true;
       }
@@ -424,13 +567,20 @@ public class DBHandler {
    * @param dutyCRemaining remaining duty cycle value
    */
   public void markDownlinkAsSent(int msgId, int dutyCRemaining) {
-    try {
-      // Version 1.0 does not support downstream ACK edit here
-      preparedStmt = conn.prepareStatement("UPDATE downlink_messages SET sent = TRUE, duty_cycle_remaining = ?, delivered = TRUE, send_time = ? WHERE id = ?");
+    this.markDownlinkAsSent(msgId, dutyCRemaining, DateManager.getTimestamp());
+  }
+
+  /***
+   * Marks downlink message as sent with given send time, see public variant
+   */
+  void markDownlinkAsSent(int msgId, int dutyCRemaining, Timestamp sendTime) {
+    // Version 1.0 does not support downstream ACK edit here
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("markDownlinkAsSent", MARK_DOWNLINK_SENT);
       preparedStmt.setInt(1, dutyCRemaining);
-      preparedStmt.setTimestamp(2, DateManager.getTimestamp());
+      preparedStmt.setTimestamp(2, sendTime);
       preparedStmt.setInt(3, msgId);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("MSG " + msgId + " marked as send");
     } catch (Exception e) {
       e.printStackTrace();
@@ -443,12 +593,13 @@ public class DBHandler {
    * @return String
    */
   public String readTransmissionParams(int transmissionParamId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT row_to_json(t) FROM (select * from transmission_params tpars WHERE tpars.id = ?) t");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readTransmissionParams", "SELECT row_to_json(t) FROM (select * from transmission_params tpars WHERE tpars.id = ?) t");
       preparedStmt.setInt(1, transmissionParamId);
-      rs = preparedStmt.executeQuery();
-      rs.next();
-      return rs.getString("row_to_json");
+      try (ResultSet rs = conn.executeQuery(preparedStmt)) {
+        rs.next();
+        return rs.getString("row_to_json");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -461,11 +612,13 @@ public class DBHandler {
    * @return String
    */
   public String readNode(String id) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT row_to_json(t) FROM (select * from nodes WHERE id = ?) t");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readNode", "SELECT row_to_json(t) FROM (select * from nodes WHERE id = ?) t");
       preparedStmt.setString(1, id);
-      rs = preparedStmt.executeQuery();
-      return !rs.next() ? null : rs.getString("row_to_json");
+      try (ResultSet rs = conn.executeQuery(preparedStmt)) {
+        // Does not wait for queued writes, processing reads its node right after queueing them
+        return !rs.next() ? null : writeBehind.overlay(id, rs.getString("row_to_json"));
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -478,11 +631,14 @@ public class DBHandler {
    * @return String
    */
   public String readDownlinkMsg(String nodeId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT row_to_json(t) FROM (select * from downlink_messages ms WHERE ms.node_id = ? AND ms.sent = FALSE) t");
+    writeBehind.awaitDevice(nodeId);
+
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readDownlinkMsg", "SELECT row_to_json(t) FROM (select * from downlink_messages ms WHERE ms.node_id = ? AND ms.sent = FALSE) t");
       preparedStmt.setString(1, nodeId);
-      rs = preparedStmt.executeQuery();
-      return !rs.next() ? "{}" : rs.getString("row_to_json");
+      try (ResultSet rs = conn.executeQuery(preparedStmt)) {
+        return !rs.next() ? "{}" : rs.getString("row_to_json");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -495,11 +651,14 @@ public class DBHandler {
    * @return String
    */
   public String readUplinkMsg(String nodeId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT row_to_json(t) FROM (select * from uplink_messages ms WHERE ms.node_id = ? AND ms.is_primary = TRUE) t");
+    writeBehind.awaitRows(nodeId);
+
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readUplinkMsg", "SELECT row_to_json(t) FROM (select * from uplink_messages ms WHERE ms.node_id = ? AND ms.is_primary = TRUE) t");
       preparedStmt.setString(1, nodeId);
-      rs = preparedStmt.executeQuery();
-      return !rs.next() ? "{}" : rs.getString("row_to_json");
+      try (ResultSet rs = conn.executeQuery(preparedStmt)) {
+        return !rs.next() ? "{}" : rs.getString("row_to_json");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -512,12 +671,15 @@ public class DBHandler {
    * @return String
    */
   public String readLastNMessages(String nodeId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT array_to_json(array_agg(t)) FROM (SELECT * FROM uplink_messages ms WHERE ms.node_id = ? AND ms.is_primary = TRUE ORDER BY ms.id DESC LIMIT ?) t");
+    writeBehind.awaitRows(nodeId);
+
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readLastNMessages", "SELECT array_to_json(array_agg(t)) FROM (SELECT * FROM uplink_messages ms WHERE ms.node_id = ? AND ms.is_primary = TRUE ORDER BY ms.id DESC LIMIT ?) t");
       preparedStmt.setString(1, nodeId);
       preparedStmt.setInt(2, rssiHarmonizationLimit);
-      rs = preparedStmt.executeQuery();
-      return !rs.next() ? "[]" : rs.getString("array_to_json");
+      try (ResultSet rs = conn.executeQuery(preparedStmt)) {
+        return !rs.next() ? "[]" : rs.getString("array_to_json");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
       return "[]";
@@ -530,11 +692,12 @@ public class DBHandler {
    * @return Boolean
    */
   public Boolean accessPointExists (String id) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT id FROM aps WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("accessPointExists", "SELECT id FROM aps WHERE id = ?");
       preparedStmt.setString(1, id);
-      ResultSet result = preparedStmt.executeQuery();
-      return result.next();
+      try (ResultSet result = conn.executeQuery(preparedStmt)) {
+        return result.next();
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -547,11 +710,12 @@ public class DBHandler {
    * @return Boolean
    */
   public Boolean endNodeExists (String id) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT id FROM nodes WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("endNodeExists", "SELECT id FROM nodes WHERE id = ?");
       preparedStmt.setString(1, id);
-      ResultSet result = preparedStmt.executeQuery();
-      return result.next();
+      try (ResultSet result = conn.executeQuery(preparedStmt)) {
+        return result.next();
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -564,11 +728,12 @@ public class DBHandler {
    * @return int
    */
   public int readMessageType (String message_name) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT id FROM message_types WHERE name = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readMessageType", "SELECT id FROM message_types WHERE name = ?");
       preparedStmt.setString(1, message_name);
-      ResultSet result = preparedStmt.executeQuery();
-      return !result.next() ? 1 : result.getInt("id");
+      try (ResultSet result = conn.executeQuery(preparedStmt)) {
+        return !result.next() ? 1 : result.getInt("id");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -581,11 +746,12 @@ public class DBHandler {
    * @return json array
    */
   public String readEnStatModel (String devId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT stat_model FROM nodes WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readEnStatModel", "SELECT stat_model FROM nodes WHERE id = ?");
       preparedStmt.setString(1, devId);
-      ResultSet result = preparedStmt.executeQuery();
-      return !result.next() ? "[]" : result.getString("stat_model");
+      try (ResultSet result = conn.executeQuery(preparedStmt)) {
+        return !result.next() ? "[]" : result.getString("stat_model");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -598,11 +764,12 @@ public class DBHandler {
    * @return json array
    */
   public String readApStatModel (String apId) {
-    try {
-      preparedStmt = conn.prepareStatement("SELECT stat_model FROM aps WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("readApStatModel", "SELECT stat_model FROM aps WHERE id = ?");
       preparedStmt.setString(1, apId);
-      ResultSet result = preparedStmt.executeQuery();
-      return !result.next() ?  "[]" : result.getString("stat_model");
+      try (ResultSet result = conn.executeQuery(preparedStmt)) {
+        return !result.next() ?  "[]" : result.getString("stat_model");
+      }
     } catch (SQLException e) {
       e.printStackTrace();
     }
@@ -615,11 +782,11 @@ public class DBHandler {
    * @param statModel statistical model
    */
   public void updateEnStatModel(String devId, String statModel) {
-    try {
-      preparedStmt = conn.prepareStatement("UPDATE nodes SET stat_model = ?::json WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("updateEnStatModel", "UPDATE nodes SET stat_model = ?::json WHERE id = ?");
       preparedStmt.setString(1, statModel);
       preparedStmt.setString(2, devId);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("Updated statistical model for node " + devId);
     } catch (SQLException e) {
       e.printStackTrace();
@@ -632,11 +799,11 @@ public class DBHandler {
    * @param statModel statistical model
    */
   public void updateApStatModel(String hwId, String statModel) {
-    try {
-      preparedStmt = conn.prepareStatement("UPDATE aps SET stat_model = ?::json WHERE id = ?");
+    try (PooledConnection conn = pool.acquire()) {
+      PreparedStatement preparedStmt = conn.prepareStatement("updateApStatModel", "UPDATE aps SET stat_model = ?::json WHERE id = ?");
       preparedStmt.setString(1, statModel);
       preparedStmt.setString(2, hwId);
-      preparedStmt.executeUpdate();
+      conn.executeUpdate(preparedStmt);
       System.out.println("Updated statistical model for ap " + hwId);
     } catch (SQLException e) {
       e.printStackTrace();
@@ -0,0 +1,783 @@
+package database;
+
+import core.DateManager;
+import core.ExecutionMode;
+import core.Metrics;
+import core.Props;
+import database.ConnectionPool.PooledConnection;
+import message.Uplink;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persists writes of RXL processing after its TXL has been sent
+ * Writes of many devices are committed by one thread in one transaction per flush (group commit),
+ * a flush which fails is written again one record at a time, so one bad record does not lose the others
+ * Queue is bounded, processing blocks while it is full, queued writes are flushed on shutdown
+ * Reads and synchronous writes of a device wait until its queued writes are committed, see awaitDevice,
+ * node read sees its queued sequence number right away, see overlay
+ * Uplink rows may be streamed by PostgreSQL COPY instead, in larger batches collected by a separate copier thread,
+ * see WriteBehind.uplinkIngest, only reads of uplink rows wait for them and they have them copied right away, see awaitRows
+ * Metrics: db.writebehind.queued, db.writebehind.flushes, db.writebehind.records, db.writebehind.roundtrips, db.writebehind.flush (commit time),
+ * db.writebehind.lag (oldest record queued until committed), db.writebehind.blocked, db.writebehind.wait, db.writebehind.fallback,
+ * db.writebehind.copy (COPY time), db.writebehind.copy.queued, db.writebehind.copy.rows, db.writebehind.copy.requested
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class WriteBehind implements Runnable {
+  private static final long POLL_MILLIS = 100;
+  // Queued by a read waiting for uplink rows, copier copies what it has collected right away
+  private static final Record COPY_NOW = new Record(null) {
+    @Override
+    PreparedStatement bind(PooledConnection conn) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    void write(DBHandler dbHandler) {
+    }
+  };
+
+  private final DBHandler dbHandler;
+  private final ConnectionPool pool;
+  private final boolean enabled;
+  private final ArrayBlockingQueue<Record> queue;
+  private final int maxBatch;
+  // Time a flush waits for more records after the first one
+  private final long lingerNanos;
+  private final int shutdownTimeout;
+  // Uplink rows go to copier instead of flusher
+  private final boolean copy;
+  private final ArrayBlockingQueue<Record> copyQueue;
+  private final int copyRows;
+  private final long copyIntervalNanos;
+  private final AtomicBoolean copyRequested = new AtomicBoolean();
+  // Queued records of each device, uplink rows waiting for COPY are counted apart
+  private final ConcurrentHashMap<String, Integer> pending;
+  private final ConcurrentHashMap<String, Integer> pendingRows;
+  // Last queued sequence number of each device, until committed
+  private final ConcurrentHashMap<String, Integer> sequences;
+  private final Object committed = new Object();
+  // Producers hold read lock while queueing, closing takes write lock, so no record is queued after the flusher ended
+  private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+  private volatile boolean closed;
+  private Thread flusher;
+  private Thread copier;
+
+  /**
+   * Constructor, starts flusher thread and registers flush on shutdown
+   * @param dbHandler synchronous writes used when disabled, closed and as fallback
+   * @param pool connection pool of the handler
+   * @param props configuration
+   * @param executionMode decides kind of flusher thread
+   */
+  WriteBehind(DBHandler dbHandler, ConnectionPool pool, Props props, ExecutionMode executionMode) {
+    this.dbHandler = dbHandler;
+    this.pool = pool;
+    this.enabled = props.getStr("WriteBehind.enabled", "true").equals("true");
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, props.getInt("WriteBehind.capacity", 10000)));
+    this.maxBatch = Math.max(1, props.getInt("WriteBehind.maxBatch", 500));
+    this.lingerNanos = props.getInt("WriteBehind.flushInterval", 5) * 1000000L;
+    this.shutdownTimeout = props.getInt("WriteBehind.shutdownTimeout", 10000);
+    this.copy = props.getStr("WriteBehind.uplinkIngest", "insert").equals("copy");
+    this.copyQueue = new ArrayBlockingQueue<>(copy ? queue.remainingCapacity() : 1);
+    this.copyRows = Math.max(1, props.getInt("WriteBehind.copyRows", 5000));
+    this.copyIntervalNanos = props.getInt("WriteBehind.copyInterval", 1000) * 1000000L;
+    this.pending = new ConcurrentHashMap<>();
+    this.pendingRows = new ConcurrentHashMap<>();
+    this.sequences = new ConcurrentHashMap<>();
+
+    if (!enabled) {
+      return;
+    }
+
+    Metrics.gauge("db.writebehind.queued", queue::size);
+    this.flusher = executionMode.start("db-writebehind", this);
+
+    if (copy) {
+      Metrics.gauge("db.writebehind.copy.queued", copyQueue::size);
+      this.copier = executionMode.start("db-writebehind-copy", this::runCopier);
+      System.out.println("Uplink rows are written by COPY, up to " + copyRows + " rows at once");
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "db-writebehind-shutdown"));
+    System.out.println("Write-behind queue started with capacity " + queue.remainingCapacity());
+  }
+
+  /**
+   * Queues sequence number update of a node
+   * @param id end node id
+   * @param lastSeq new sequence number value
+   */
+  public void updateSequence(String id, int lastSeq) {
+    this.queue(new SequenceUpdate(id, lastSeq));
+  }
+
+  /**
+   * Queues all replicas of a message group
+   * @param currentGrape batch with all message replicas
+   * @param primary single message marked as primary, null when all messages are late replicas
+   * @param msgGroupId message group id
+   * @param msgTypeId message type id
+   */
+  public void bulkInsertUplinkMessages(ArrayList<Uplink> currentGrape, Uplink primary, int msgGroupId, int msgTypeId) {
+    if (currentGrape.isEmpty()) {
+      return;
+    }
+    this.queue(new UplinkRows(currentGrape, primary, msgGroupId, msgTypeId));
+  }
+
+  /**
+   * Queues entry about sent downlink message
+   * @param appData base64 encoded data
+   * @param netData network data in json
+   * @param dutyCRemaining remaining duty cycle
+   * @param frequency frequency
+   * @param spf spreading factor
+   * @param power power
+   * @param airtime time on air
+   * @param coderate coding rate
+   * @param bandwidth bandwidth
+   * @param apId access point hardware identifier
+   * @param nodeId end node identifier
+   */
+  public void writeSentDownlinkMsg(String appData, String netData, int dutyCRemaining, float frequency,
+                                   int spf, int power, int airtime, String coderate, int bandwidth,
+                                   String apId, String nodeId) {
+    this.queue(new SentDownlink(appData, netData, dutyCRemaining, frequency, spf, power, airtime, coderate, bandwidth, apId, nodeId));
+  }
+
+  /**
+   * Queues marking of buffered downlink message as sent
+   * @param msgId downlink_message id from database
+   * @param dutyCRemaining remaining duty cycle value
+   * @param nodeId end node the message was sent to
+   */
+  public void markDownlinkAsSent(int msgId, int dutyCRemaining, String nodeId) {
+    this.queue(new DownlinkSent(msgId, dutyCRemaining, nodeId));
+  }
+
+  /**
+   * Waits until queued writes of a device are committed, so its reads see them
+   * Uplink rows waiting for COPY are not waited for, reads of uplink_messages use awaitRows
+   * Returns right away for a device with nothing queued, which is the usual case
+   * @param devId end node identifier
+   */
+  void awaitDevice(String devId) {
+    if (!pending.containsKey(devId) || Thread.currentThread() == flusher || Thread.currentThread() == copier) {
+      return;
+    }
+    this.await(devId, false);
+  }
+
+  /**
+   * Waits until queued writes of a device including its uplink rows are committed
+   * Uplink rows waiting for COPY are copied right away instead of after copyInterval
+   * @param devId end node identifier
+   */
+  void awaitRows(String devId) {
+    boolean rows = pendingRows.containsKey(devId);
+
+    if (!rows && !pending.containsKey(devId) || Thread.currentThread() == flusher || Thread.currentThread() == copier) {
+      return;
+    }
+
+    if (rows && copyRequested.compareAndSet(false, true)) {
+      Metrics.increment("db.writebehind.copy.requested");
+      if (!copyQueue.offer(COPY_NOW)) {
+        // Full queue is copied without asking
+        copyRequested.set(false);
+      }
+    }
+    this.await(devId, true);
+  }
+
+  private void await(String devId, boolean rows) {
+    long start = System.nanoTime();
+    synchronized (committed) {
+      while (pending.containsKey(devId) || rows && pendingRows.containsKey(devId)) {
+        try {
+          committed.wait(POLL_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+    Metrics.recordSince("db.writebehind.wait", start);
+  }
+
+  /**
+   * Replaces last_seq of a node read from DB by its queued sequence number
+   * @param devId end node identifier
+   * @param node node row in json
+   * @return node row seen after queued writes
+   */
+  String overlay(String devId, String node) {
+    Integer lastSeq = sequences.get(devId);
+
+    if (lastSeq == null) {
+      return node;
+    }
+
+    try {
+      return new JSONObject(node).put("last_seq", lastSeq.intValue()).toString();
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    return node;
+  }
+
+  /**
+   * Stops queueing and waits until queued writes are flushed, later writes are done synchronously
+   */
+  public void close() {
+    closing.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    } finally {
+      closing.writeLock().unlock();
+    }
+
+    if (flusher == null) {
+      return;
+    }
+
+    long deadline = System.currentTimeMillis() + shutdownTimeout;
+    try {
+      flusher.join(shutdownTimeout);
+      if (copier != null) {
+        copier.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (flusher.isAlive() || copier != null && copier.isAlive()) {
+      System.out.println("Write-behind queue not flushed within " + shutdownTimeout + " ms, " + (queue.size() + copyQueue.size()) + " records lost");
+    } else {
+      System.out.println("Write-behind queue flushed");
+    }
+  }
+
+  /**
+   * Flusher, takes whatever has been queued while the previous flush was committing, up to maxBatch records
+   */
+  @Override
+  public void run() {
+    ArrayList<Record> batch = new ArrayList<>(maxBatch);
+
+    while (true) {
+      try {
+        Record first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (first == null) {
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        batch.add(first);
+
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxBatch) {
+          if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+            continue;
+          }
+
+          long wait = deadline - System.nanoTime();
+          if (closed || wait <= 0) {
+            break;
+          }
+
+          Record next = queue.poll(wait, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // Only close ends the flusher, what has been taken is flushed below
+      }
+
+      if (!batch.isEmpty()) {
+        this.flush(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Copier, collects uplink rows until copyRows are buffered, copyInterval passed since the first of them
+   * or a read asked for them
+   */
+  private void runCopier() {
+    ArrayList<Record> batch = new ArrayList<>();
+    int rows = 0;
+    long deadline = 0;
+    boolean requested = false;
+
+    while (true) {
+      try {
+        long wait = batch.isEmpty() ? POLL_MILLIS * 1000000L : deadline - System.nanoTime();
+        Record next = wait > 0 && !(closed && !batch.isEmpty()) ? copyQueue.poll(wait, TimeUnit.NANOSECONDS) : null;
+
+        if (next == null && batch.isEmpty()) {
+          if (closed && copyQueue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+
+        while (next != null) {
+          if (next == COPY_NOW) {
+            // Rows the read waits for were queued ahead of the request, so they are in the batch or copied already
+            requested = true;
+            copyRequested.set(false);
+          } else {
+            if (batch.isEmpty()) {
+              deadline = System.nanoTime() + copyIntervalNanos;
+            }
+            batch.add(next);
+            rows += next.rows();
+          }
+          next = rows < copyRows ? copyQueue.poll() : null;
+        }
+
+        // Waits for more rows unless the buffer is full, its interval passed, a read asked for them or queue is being closed
+        if (rows < copyRows && System.nanoTime() < deadline && !requested && !closed) {
+          continue;
+        }
+      } catch (InterruptedException e) {
+        // Only close ends the copier, what has been taken is copied below
+      }
+
+      requested = false;
+      if (!batch.isEmpty()) {
+        this.copy(batch, rows);
+        batch.clear();
+        rows = 0;
+      }
+    }
+  }
+
+  /**
+   * Streams uplink rows with one COPY, it is atomic on its own
+   * @param batch queued uplink rows
+   * @param rows number of rows
+   */
+  private void copy(ArrayList<Record> batch, int rows) {
+    long start = System.nanoTime();
+    StringBuilder csv = new StringBuilder(rows * 160);
+
+    for (Record record : batch) {
+      ((UplinkRows) record).appendCsv(csv);
+    }
+
+    try (PooledConnection conn = pool.acquire()) {
+      CopyManager copyManager = conn.getConnection().unwrap(PGConnection.class).getCopyAPI();
+      long copied = copyManager.copyIn(DBHandler.COPY_UPLINK, new StringReader(csv.toString()));
+
+      Metrics.recordSince("db.writebehind.copy", start);
+      Metrics.add("db.writebehind.copy.rows", copied);
+      Metrics.add("db.writebehind.records", batch.size());
+      Metrics.add("db.writebehind.roundtrips", 1);
+      Metrics.add("db.uplink.rows", copied);
+      Metrics.recordSince("db.writebehind.lag", batch.get(0).queuedAt);
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+      Metrics.add("db.writebehind.fallback", batch.size());
+
+      for (Record record : batch) {
+        record.write(dbHandler);
+      }
+    }
+
+    this.notifyCommitted(batch);
+  }
+
+  /**
+   * Queues record, writes it right away when disabled or closed
+   * @param record write to be done
+   */
+  private void queue(Record record) {
+    closing.readLock().lock();
+    try {
+      if (!enabled || closed) {
+        record.write(dbHandler);
+        return;
+      }
+
+      boolean copied = this.isCopied(record);
+      (copied ? pendingRows : pending).merge(record.devId, 1, Integer::sum);
+      record.queued(sequences);
+
+      ArrayBlockingQueue<Record> target = copied ? copyQueue : queue;
+
+      if (!target.offer(record)) {
+        Metrics.increment("db.writebehind.blocked");
+        target.put(record);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.done(record);
+      record.write(dbHandler);
+    } finally {
+      closing.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes batch in one transaction, each statement is sent as one JDBC batch
+   * @param batch queued records
+   */
+  private void flush(ArrayList<Record> batch) {
+    long start = System.nanoTime();
+    LinkedHashSet<PreparedStatement> statements = new LinkedHashSet<>();
+
+    try (PooledConnection conn = pool.acquire()) {
+      conn.begin();
+
+      try {
+        for (Record record : batch) {
+          statements.add(record.bind(conn));
+        }
+        for (PreparedStatement statement : statements) {
+          conn.executeBatch(statement);
+        }
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        this.clearBatches(statements);
+        throw e;
+      }
+
+      Metrics.recordSince("db.writebehind.flush", start);
+      Metrics.increment("db.writebehind.flushes");
+      Metrics.add("db.writebehind.records", batch.size());
+      // Batches and the commit are shared by all records of the flush
+      Metrics.add("db.writebehind.roundtrips", statements.size() + 1);
+      for (Record record : batch) {
+        Metrics.add("db.uplink.rows", record.rows());
+      }
+      Metrics.recordSince("db.writebehind.lag", batch.get(0).queuedAt);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      Metrics.add("db.writebehind.fallback", batch.size());
+
+      for (Record record : batch) {
+        record.write(dbHandler);
+      }
+    }
+
+    this.notifyCommitted(batch);
+  }
+
+  /**
+   * Releases reads waiting for records of the batch
+   * @param batch committed or written records
+   */
+  private void notifyCommitted(ArrayList<Record> batch) {
+    for (Record record : batch) {
+      this.done(record);
+    }
+
+    synchronized (committed) {
+      committed.notifyAll();
+    }
+  }
+
+  private void clearBatches(LinkedHashSet<PreparedStatement> statements) {
+    for (PreparedStatement statement : statements) {
+      try {
+        statement.clearBatch();
+      } catch (SQLException e) {
+        // Statement was closed with its broken connection
+      }
+    }
+  }
+
+  private void done(Record record) {
+    record.done(sequences);
+    (this.isCopied(record) ? pendingRows : pending).computeIfPresent(record.devId, (k, count) -> count > 1 ? count - 1 : null);
+  }
+
+  /**
+   * Whether record goes to copier instead of flusher
+   */
+  private boolean isCopied(Record record) {
+    return copy && record.rows() > 0;
+  }
+
+  /**
+   * Queued write of one device
+   */
+  private abstract static class Record {
+    final String devId;
+    final long queuedAt;
+    // Time of the event, not of the flush
+    final Timestamp time;
+
+    Record(String devId) {
+      this.devId = devId;
+      this.queuedAt = System.nanoTime();
+      this.time = DateManager.getTimestamp();
+    }
+
+    /**
+     * Adds record to batch of its statement
+     * @param conn connection of the flush
+     * @return statement the record was added to
+     * @throws SQLException when statement cannot be prepared
+     */
+    abstract PreparedStatement bind(PooledConnection conn) throws SQLException;
+
+    /**
+     * Called once record is queued
+     * @param sequences last queued sequence number of each device
+     */
+    void queued(ConcurrentHashMap<String, Integer> sequences) {
+    }
+
+    /**
+     * Called once record is committed or written on its own
+     * @param sequences last queued sequence number of each device
+     */
+    void done(ConcurrentHashMap<String, Integer> sequences) {
+    }
+
+    /**
+     * Number of uplink rows written by the record
+     * @return int
+     */
+    int rows() {
+      return 0;
+    }
+
+    /**
+     * Writes record on its own, errors are logged by the handler
+     * @param dbHandler database handler
+     */
+    abstract void write(DBHandler dbHandler);
+  }
+
+  private static class SequenceUpdate extends Record {
+    private final int lastSeq;
+
+    SequenceUpdate(String devId, int lastSeq) {
+      super(devId);
+      this.lastSeq = lastSeq;
+    }
+
+    @Override
+    PreparedStatement bind(PooledConnection conn) throws SQLException {
+      PreparedStatement preparedStmt = conn.prepareStatement("updateSequence", DBHandler.UPDATE_SEQUENCE);
+      preparedStmt.setInt(1, lastSeq);
+      preparedStmt.setString(2, devId);
+      preparedStmt.addBatch();
+      return preparedStmt;
+    }
+
+    @Override
+    void queued(ConcurrentHashMap<String, Integer> sequences) {
+      sequences.put(devId, lastSeq);
+    }
+
+    @Override
+    void done(ConcurrentHashMap<String, Integer> sequences) {
+      // Newer update of the device stays
+      sequences.remove(devId, lastSeq);
+    }
+
+    @Override
+    void write(DBHandler dbHandler) {
+      dbHandler.updateSequence(devId, lastSeq);
+    }
+  }
+
+  private static class UplinkRows extends Record {
+    private final ArrayList<Uplink> currentGrape;
+    private final Uplink primary;
+    private final int msgGroupId;
+    private final int msgTypeId;
+
+    UplinkRows(ArrayList<Uplink> currentGrape, Uplink primary, int msgGroupId, int msgTypeId) {
+      super(currentGrape.get(0).getDevId());
+      this.currentGrape = currentGrape;
+      this.primary = primary;
+      this.msgGroupId = msgGroupId;
+      this.msgTypeId = msgTypeId;
+    }
+
+    @Override
+    PreparedStatement bind(PooledConnection conn) throws SQLException {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeUplinkMsg", DBHandler.INSERT_UPLINK);
+
+      for (Uplink message : currentGrape) {
+        DBHandler.setUplinkParams(
+          preparedStmt,
+          message.getData(),
+          message.getSnr(),
+          message.getRssi(),
+          message.getDutyC(),
+          message == primary,
+          time,
+          msgGroupId,
+          message.getSeq(),
+          message.getFreq(),
+          message.getSf(),
+          message.getPower(),
+          (int) message.getTime(),
+          message.getCr(),
+          message.getBand(),
+          msgTypeId,
+          message.getHwIdentifier(),
+          message.getDevId()
+        );
+        preparedStmt.addBatch();
+      }
+      return preparedStmt;
+    }
+
+    @Override
+    int rows() {
+      return currentGrape.size();
+    }
+
+    /**
+     * Appends replicas as CSV rows in columns of DBHandler.COPY_UPLINK
+     * @param csv COPY buffer
+     */
+    void appendCsv(StringBuilder csv) {
+      for (Uplink message : currentGrape) {
+        appendText(csv, message.getData()).append(',');
+        csv.append(message.getSnr()).append(',');
+        csv.append(message.getRssi()).append(',');
+        csv.append(message.getDutyC()).append(',');
+        csv.append(message == primary).append(',');
+        csv.append(time).append(',');
+        csv.append(msgGroupId).append(',');
+        csv.append(message.getSeq()).append(',');
+        csv.append(message.getFreq()).append(',');
+        csv.append(message.getSf()).append(',');
+        csv.append(message.getPower()).append(',');
+        csv.append((int) message.getTime()).append(',');
+        appendText(csv, message.getCr()).append(',');
+        csv.append(message.getBand()).append(',');
+        csv.append(msgTypeId).append(',');
+        appendText(csv, message.getHwIdentifier()).append(',');
+        appendText(csv, message.getDevId()).append('\n');
+      }
+    }
+
+    /**
+     * Quotes text for CSV, null is written as unquoted empty value, which COPY reads as NULL
+     */
+    private static StringBuilder appendText(StringBuilder csv, String text) {
+      if (text == null) {
+        return csv;
+      }
+
+      csv.append('"');
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '"') {
+          csv.append('"');
+        }
+        csv.append(c);
+      }
+      return csv.append('"');
+    }
+
+    @Override
+    void write(DBHandler dbHandler) {
+      dbHandler.bulkInsertUplinkMessages(currentGrape, primary, msgGroupId, msgTypeId, time);
+    }
+  }
+
+  private static class SentDownlink extends Record {
+    private final String appData;
+    private final String netData;
+    private final int dutyCRemaining;
+    private final float frequency;
+    private final int spf;
+    private final int power;
+    private final int airtime;
+    private final String coderate;
+    private final int bandwidth;
+    private final String apId;
+
+    SentDownlink(String appData, String netData, int dutyCRemaining, float frequency, int spf, int power, int airtime,
+                 String coderate, int bandwidth, String apId, String nodeId) {
+      super(nodeId);
+      this.appData = appData;
+      this.netData = netData;
+      this.dutyCRemaining = dutyCRemaining;
+      this.frequency = frequency;
+      this.spf = spf;
+      this.power = power;
+      this.airtime = airtime;
+      this.coderate = coderate;
+      this.bandwidth = bandwidth;
+      this.apId = apId;
+    }
+
+    @Override
+    PreparedStatement bind(PooledConnection conn) throws SQLException {
+      PreparedStatement preparedStmt = conn.prepareStatement("writeSentDownlinkMsg", DBHandler.INSERT_SENT_DOWNLINK);
+      DBHandler.setSentDownlinkParams(preparedStmt, appData, netData, dutyCRemaining, frequency, spf, power, airtime,
+        coderate, bandwidth, apId, devId, time);
+      preparedStmt.addBatch();
+      return preparedStmt;
+    }
+
+    @Override
+    void write(DBHandler dbHandler) {
+      dbHandler.writeSentDownlinkMsg(appData, netData, dutyCRemaining, frequency, spf, power, airtime, coderate,
+        bandwidth, apId, devId, time);
+    }
+  }
+
+  private static class DownlinkSent extends Record {
+    private final int msgId;
+    private final int dutyCRemaining;
+
+    DownlinkSent(int msgId, int dutyCRemaining, String nodeId) {
+      super(nodeId);
+      this.msgId = msgId;
+      this.dutyCRemaining = dutyCRemaining;
+    }
+
+    @Override
+    PreparedStatement bind(PooledConnection conn) throws SQLException {
+      PreparedStatement preparedStmt = conn.prepareStatement("markDownlinkAsSent", DBHandler.MARK_DOWNLINK_SENT);
+      preparedStmt.setInt(1, dutyCRemaining);
+      preparedStmt.setTimestamp(2, time);
+      preparedStmt.setInt(3, msgId);
+      preparedStmt.addBatch();
+      return preparedStmt;
+    }
+
+    @Override
+    void write(DBHandler dbHandler) {
+      dbHandler.markDownlinkAsSent(msgId, dutyCRemaining, time);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package helpers;
+
+import java.io.IOException;
+
+/***
+ * Compact binary encoding of STIoT messages (CBOR, RFC 8949)
+ * Message is a CBOR map with the same keys as its JSON form, byte strings stand for base64 strings
+ * Only framing is done here, messages are decoded by MessageDecoder and encoded by CborWriter
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class CborHelper {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_BYTES = 2;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int MAJOR_SIMPLE = 7;
+
+  private static final int INDEFINITE = 31;
+  private static final int BREAK = 0xff;
+  private static final int MAX_DEPTH = 32;
+
+  /***
+   * Checks whether byte starts a CBOR map, JSON message never starts with such byte
+   * @param first first byte of a message
+   * @return boolean
+   */
+  public static boolean isMapHeader(byte first) {
+    return ((first & 0xff) >>> 5) == MAJOR_MAP;
+  }
+
+  /***
+   * Returns length of the CBOR item starting at offset
+   * @param data buffer
+   * @param offset start of the item
+   * @param limit end of available data
+   * @return item length in bytes or -1 if more data are required
+   * @throws MalformedCborException when data are not valid CBOR
+   */
+  public static int itemLength(byte[] data, int offset, int limit) throws MalformedCborException {
+    long end = skip(data, offset, limit, 0);
+    return end < 0 ? -1 : (int) (end - offset);
+  }
+
+  /***
+   * Converts IEEE 754 half precision float
+   * @param half 16 bit value
+   * @return double
+   */
+  public static double halfToDouble(int half) {
+    int exponent = (half >> 10) & 0x1f;
+    int mantissa = half & 0x3ff;
+    double value;
+
+    if (exponent == 0) {
+      value = mantissa * Math.pow(2, -24);
+    } else if (exponent == 31) {
+      value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+    }
+    return (half & 0x8000) != 0 ? -value : value;
+  }
+
+  /***
+   * Finds end of item without decoding it
+   * @return position after the item or -1 if incomplete
+   */
+  private static long skip(byte[] data, long position, int limit, int depth) throws MalformedCborException {
+    if (depth > MAX_DEPTH) {
+      throw new MalformedCborException("CBOR nesting too deep");
+    }
+
+    if (position >= limit) {
+      return -1;
+    }
+
+    int header = data[(int) position] & 0xff;
+    int major = header >>> 5;
+    int info = header & 0x1f;
+    position++;
+
+    if (info == INDEFINITE) {
+      if (major == MAJOR_UNSIGNED || major == MAJOR_NEGATIVE || major == MAJOR_TAG || major == MAJOR_SIMPLE) {
+        throw new MalformedCborException("Unexpected break or indefinite length");
+      }
+
+      // Items (chunks for strings) follow until break
+      while (true) {
+        if (position >= limit) {
+          return -1;
+        }
+
+        if ((data[(int) position] & 0xff) == BREAK) {
+          return position + 1;
+        }
+        position = skip(data, position, limit, depth + 1);
+
+        if (position < 0) {
+          return -1;
+        }
+
+        if (major == MAJOR_MAP) {
+          position = skip(data, position, limit, depth + 1);
+          if (position < 0) {
+            return -1;
+          }
+        }
+      }
+    }
+
+    if (info > 27) {
+      throw new MalformedCborException("Reserved additional information " + info);
+    }
+
+    int argumentLength = info < 24 ? 0 : 1 << (info - 24);
+    if (position + argumentLength > limit) {
+      return -1;
+    }
+
+    long argument = info < 24 ? info : 0;
+    for (int i = 0; i < argumentLength; i++) {
+      argument = argument << 8 | (data[(int) position++] & 0xff);
+    }
+
+    switch (major) {
+      case MAJOR_BYTES:
+      case MAJOR_TEXT:
+        if (argument < 0 || argument > limit - position) {
+          return -1;
+        }
+        return position + argument;
+      case MAJOR_ARRAY:
+      case MAJOR_MAP:
+        long items = major == MAJOR_MAP ? argument * 2 : argument;
+        if (items < 0) {
+          throw new MalformedCborException("CBOR container too large");
+        }
+        for (long i = 0; i < items; i++) {
+          position = skip(data, position, limit, depth + 1);
+          if (position < 0) {
+            return -1;
+          }
+        }
+        return position;
+      case MAJOR_TAG:
+        return skip(data, position, limit, depth + 1);
+      default:
+        return position;
+    }
+  }
+
+  /***
+   * Thrown when AP sends invalid CBOR message
+   */
+  public static class MalformedCborException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedCborException(String message) {
+      super(message);
+    }
+  }
+}
@@ -10,37 +10,23 @@ import org.json.JSONObject;
  * @version 0.3
  */
 public class MessageHelper {
-  public static int getMsgCost(JSONObject msgBody, int spf, int bandwidth) {
+  public static int getMsgCost(int netDataLength, String appData, int spf, int bandwidth) {
     // Values initialization
     int cr = 1; // According to code rate 4/5
     int loraFiitOverheadBytes = 12; // 4B LoRa@FIIT data and 8B Lora preamble
     int netDataBytes = 0;
     int appDataBytes = 0;
-    JSONArray netData;
-    String appData = "";
 
-    try {
-      netData = msgBody.getJSONArray("net_data");
-
-      // Length for sending limited config
-      if (netData.length() == 1) {
-        netDataBytes = 3;
-        // System.out.println("**** Short network data");
-      } else if (netData.length() > 1) {
-        netDataBytes = 11 + 5;
-        // System.out.println("**** Long network data");
-      }
-    } catch (JSONException e) {
-      // System.out.println("Network data are not present");
-    }
-
-    try {
-      appData = msgBody.getString("app_data");
-    } catch (JSONException e) {
-      // System.out.println("App data are not present");
+    // Length for sending limited config
+    if (netDataLength == 1) {
+      netDataBytes = 3;
+      // System.out.println("**** Short network data");
+    } else if (netDataLength > 1) {
+      netDataBytes = 11 + 5;
+      // System.out.println("**** Long network data");
     }
 
-    if (!appData.equals("")) {
+    if (appData != null && !appData.equals("")) {
       appDataBytes = (appData.length() * 3 / 4) + 1;
       //System.out.println("************Nastavil som dlzku APP data na: "+AppDataBytes);
     }
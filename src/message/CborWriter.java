@@ -0,0 +1,140 @@
+package message;
+
+import connection.Frame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR (RFC 8949) with definite lengths
+ * @author Alexander Valach
+ * @version 0.3
+ */
+final class CborWriter extends MessageWriter {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+
+  @Override
+  public Frame.Encoding getEncoding() {
+    return Frame.Encoding.CBOR;
+  }
+
+  @Override
+  public MessageWriter beginObject(int entries) {
+    writeHeader(MAJOR_MAP, entries);
+    return this;
+  }
+
+  @Override
+  public MessageWriter endObject() {
+    return this;
+  }
+
+  @Override
+  public MessageWriter beginArray(int items) {
+    writeHeader(MAJOR_ARRAY, items);
+    return this;
+  }
+
+  @Override
+  public MessageWriter endArray() {
+    return this;
+  }
+
+  @Override
+  public MessageWriter key(Key key) {
+    writeBytes(key.cbor);
+    return this;
+  }
+
+  @Override
+  public MessageWriter key(String name) {
+    return value(name);
+  }
+
+  @Override
+  public MessageWriter value(String value) {
+    if (value == null) {
+      return nullValue();
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeHeader(MAJOR_TEXT, bytes.length);
+    writeBytes(bytes);
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(long value) {
+    if (value >= 0) {
+      writeHeader(MAJOR_UNSIGNED, value);
+    } else {
+      writeHeader(MAJOR_NEGATIVE, -1 - value);
+    }
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return value((long) value);
+    }
+
+    writeByte(0xfb);
+    writeBigEndian(Double.doubleToLongBits(value), 8);
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(boolean value) {
+    writeByte(value ? 0xf5 : 0xf4);
+    return this;
+  }
+
+  @Override
+  public MessageWriter nullValue() {
+    writeByte(0xf6);
+    return this;
+  }
+
+  @Override
+  public MessageWriter fragment(Fragment fragment) {
+    writeBytes(fragment.cbor);
+    return this;
+  }
+
+  @Override
+  public MessageWriter entries(Fragment fragment) {
+    writeBytes(fragment.cbor);
+    return this;
+  }
+
+  private void writeHeader(int major, long argument) {
+    int type = major << 5;
+
+    if (argument < 24) {
+      writeByte(type | (int) argument);
+    } else if (argument < 0x100) {
+      writeByte(type | 24);
+      writeByte((int) argument);
+    } else if (argument < 0x10000) {
+      writeByte(type | 25);
+      writeBigEndian(argument, 2);
+    } else if (argument < 0x100000000L) {
+      writeByte(type | 26);
+      writeBigEndian(argument, 4);
+    } else {
+      writeByte(type | 27);
+      writeBigEndian(argument, 8);
+    }
+  }
+
+  private void writeBigEndian(long value, int bytes) {
+    ensureCapacity(bytes);
+    for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+      buffer[size++] = (byte) (value >>> shift);
+    }
+  }
+}
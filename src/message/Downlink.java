@@ -0,0 +1,79 @@
+package message;
+
+import connection.Frame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Outbound STIoT message, written straight into MessageWriter without building a JSON tree
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public abstract class Downlink implements MessageWriter.Writable {
+  public static final String TXL = "TXL";
+  public static final String REGA = "REGA";
+  public static final String KEYA = "KEYA";
+  public static final String SETA = "SETA";
+
+  private static final MessageWriter.Key MESSAGE_NAME = new MessageWriter.Key("message_name");
+  private static final MessageWriter.Key MESSAGE_BODY = new MessageWriter.Key("message_body");
+
+  private final String name;
+  // TXL is normal traffic unless it answers emergency, the rest answers setup, registration and keys
+  private Frame.Priority priority;
+
+  protected Downlink(String name) {
+    this.name = name;
+    this.priority = TXL.equals(name) ? Frame.Priority.NORMAL : Frame.Priority.REGISTRATION;
+  }
+
+  /**
+   * Message name, one of the constants above
+   * @return String
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Class of the downlink, higher class is written ahead of queued lower ones
+   * @return Frame.Priority
+   */
+  public Frame.Priority getPriority() {
+    return priority;
+  }
+
+  /**
+   * Changes class of the downlink, to be called before it is queued
+   * @param priority e.g. EMERGENCY for TXL answering emergency uplink
+   */
+  public void setPriority(Frame.Priority priority) {
+    this.priority = priority;
+  }
+
+  @Override
+  public void writeTo(MessageWriter writer) {
+    writer.beginObject(2);
+    writer.key(MESSAGE_NAME).value(name);
+    writer.key(MESSAGE_BODY);
+    writeBody(writer);
+    writer.endObject();
+  }
+
+  /**
+   * Writes value of message_body
+   * @param writer target writer
+   */
+  protected abstract void writeBody(MessageWriter writer);
+
+  /**
+   * Message as JSON text, used for logging
+   * @return String
+   */
+  @Override
+  public String toString() {
+    MessageWriter writer = new JsonWriter();
+    writeTo(writer);
+    return new String(writer.getBuffer(), 0, writer.size(), StandardCharsets.UTF_8);
+  }
+}
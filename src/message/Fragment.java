@@ -0,0 +1,66 @@
+package message;
+
+import connection.Frame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Part of a message encoded in advance in both encodings, e.g. constant parameter blocks
+ * Fragment is either a single value, or object entries or array items without brackets
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class Fragment implements MessageWriter.Writable {
+  final byte[] json;
+  final byte[] cbor;
+  private final int entries;
+
+  private Fragment(MessageWriter.Writable content, int entries) {
+    this.json = render(Frame.Encoding.JSON, content);
+    this.cbor = render(Frame.Encoding.CBOR, content);
+    this.entries = entries;
+  }
+
+  /**
+   * Encodes single value
+   * @param content writes exactly one value
+   * @return Fragment
+   */
+  public static Fragment value(MessageWriter.Writable content) {
+    return new Fragment(content, 1);
+  }
+
+  /**
+   * Encodes object entries or array items to be placed into another object or array
+   * @param entries number of keys or items written by content
+   * @param content writes key and value pairs or items
+   * @return Fragment
+   */
+  public static Fragment entries(int entries, MessageWriter.Writable content) {
+    return new Fragment(content, entries);
+  }
+
+  /**
+   * Number of object entries or array items, 1 for a value
+   * @return int
+   */
+  public int getEntries() {
+    return entries;
+  }
+
+  @Override
+  public void writeTo(MessageWriter writer) {
+    writer.fragment(this);
+  }
+
+  @Override
+  public String toString() {
+    return new String(json, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] render(Frame.Encoding encoding, MessageWriter.Writable content) {
+    MessageWriter writer = MessageWriter.create(encoding);
+    content.writeTo(writer);
+    return writer.toByteArray();
+  }
+}
@@ -0,0 +1,224 @@
+package message;
+
+import connection.Frame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes JSON as UTF-8 bytes
+ * @author Alexander Valach
+ * @version 0.3
+ */
+final class JsonWriter extends MessageWriter {
+  private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+  private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+  private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  // Whether a value or an entry has been written at the current level
+  private boolean separate = false;
+
+  @Override
+  public Frame.Encoding getEncoding() {
+    return Frame.Encoding.JSON;
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    separate = false;
+  }
+
+  @Override
+  public MessageWriter beginObject(int entries) {
+    separator();
+    writeByte('{');
+    separate = false;
+    return this;
+  }
+
+  @Override
+  public MessageWriter endObject() {
+    writeByte('}');
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter beginArray(int items) {
+    separator();
+    writeByte('[');
+    separate = false;
+    return this;
+  }
+
+  @Override
+  public MessageWriter endArray() {
+    writeByte(']');
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter key(Key key) {
+    separator();
+    writeBytes(key.json);
+    // Value follows the key without a comma
+    separate = false;
+    return this;
+  }
+
+  @Override
+  public MessageWriter key(String name) {
+    value(name);
+    writeByte(':');
+    separate = false;
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(String value) {
+    if (value == null) {
+      return nullValue();
+    }
+
+    separator();
+    ensureCapacity(value.length() + 2);
+    buffer[size++] = '"';
+
+    for (int i = 0; i < value.length(); i++) {
+      char current = value.charAt(i);
+
+      if (current >= 0x80) {
+        // Not ASCII, rare in STIoT messages
+        writeEscaped(value.substring(i));
+        break;
+      }
+      writeChar(current);
+    }
+
+    writeByte('"');
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(long value) {
+    separator();
+
+    if (value == Long.MIN_VALUE) {
+      writeBytes(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+      separate = true;
+      return this;
+    }
+
+    ensureCapacity(20);
+    if (value < 0) {
+      buffer[size++] = '-';
+      value = -value;
+    }
+
+    int digits = 1;
+    for (long rest = value / 10; rest > 0; rest /= 10) {
+      digits++;
+    }
+
+    for (int i = size + digits - 1; i >= size; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    size += digits;
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return nullValue();
+    }
+
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return value((long) value);
+    }
+
+    separator();
+    writeBytes(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter value(boolean value) {
+    separator();
+    writeBytes(value ? TRUE : FALSE);
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter nullValue() {
+    separator();
+    writeBytes(NULL);
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter fragment(Fragment fragment) {
+    separator();
+    writeBytes(fragment.json);
+    separate = true;
+    return this;
+  }
+
+  @Override
+  public MessageWriter entries(Fragment fragment) {
+    if (fragment.json.length == 0) {
+      return this;
+    }
+
+    separator();
+    writeBytes(fragment.json);
+    separate = true;
+    return this;
+  }
+
+  private void separator() {
+    if (separate) {
+      writeByte(',');
+    }
+  }
+
+  private void writeChar(char current) {
+    if (current == '"' || current == '\\') {
+      writeByte('\\');
+      writeByte(current);
+    } else if (current < 0x20) {
+      writeByte('\\');
+      writeByte('u');
+      writeByte('0');
+      writeByte('0');
+      writeByte(HEX[current >> 4]);
+      writeByte(HEX[current & 0xf]);
+    } else {
+      writeByte(current);
+    }
+  }
+
+  private void writeEscaped(String rest) {
+    StringBuilder escaped = new StringBuilder(rest.length());
+
+    for (int i = 0; i < rest.length(); i++) {
+      char current = rest.charAt(i);
+      if (current == '"' || current == '\\') {
+        escaped.append('\\').append(current);
+      } else if (current < 0x20) {
+        escaped.append(String.format("\\u%04x", (int) current));
+      } else {
+        escaped.append(current);
+      }
+    }
+    writeBytes(escaped.toString().getBytes(StandardCharsets.UTF_8));
+  }
+}
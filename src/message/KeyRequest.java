@@ -0,0 +1,24 @@
+package message;
+
+/**
+ * KEYR message, AP asks for encryption key of a node
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class KeyRequest extends StiotMessage {
+  private final String devId;
+
+  KeyRequest(MessageFields fields) {
+    super(KEYR);
+    this.devId = fields.devId;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  @Override
+  public String toString() {
+    return "KEYR{dev_id=" + devId + "}";
+  }
+}
@@ -0,0 +1,38 @@
+package message;
+
+/**
+ * KEYA message, encryption key of a node for AP
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class KeyResponse extends Downlink {
+  private static final MessageWriter.Key DEV_ID = new MessageWriter.Key("dev_id");
+  private static final MessageWriter.Key SEQ = new MessageWriter.Key("seq");
+  private static final MessageWriter.Key KEY = new MessageWriter.Key("key");
+
+  private final String devId;
+  private final long seq;
+  private final String key;
+
+  /**
+   * Constructor
+   * @param devId end node id
+   * @param seq last sequence number of the node
+   * @param key shared key, null when the node has none
+   */
+  public KeyResponse(String devId, long seq, String key) {
+    super(KEYA);
+    this.devId = devId;
+    this.seq = seq;
+    this.key = key;
+  }
+
+  @Override
+  protected void writeBody(MessageWriter writer) {
+    writer.beginObject(3);
+    writer.key(DEV_ID).value(devId);
+    writer.key(SEQ).value(seq);
+    writer.key(KEY).value(key);
+    writer.endObject();
+  }
+}
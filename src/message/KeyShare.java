@@ -0,0 +1,36 @@
+package message;
+
+/**
+ * KEYS message, AP shares encryption key negotiated with a node
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class KeyShare extends StiotMessage {
+  private final String devId;
+  private final int seq;
+  private final String key;
+
+  KeyShare(MessageFields fields) {
+    super(KEYS);
+    this.devId = fields.devId;
+    this.seq = fields.seq;
+    this.key = fields.key;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  public int getSeq() {
+    return seq;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  @Override
+  public String toString() {
+    return "KEYS{dev_id=" + devId + ", seq=" + seq + "}";
+  }
+}
@@ -0,0 +1,1074 @@
+package message;
+
+import connection.Frame;
+import helpers.CborHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Streaming decoder of inbound STIoT messages
+ * Reads JSON or CBOR bytes straight into typed messages, no DOM is built and unknown fields are skipped
+ * Numbers are accepted both plain and quoted, e.g. "rssi":-98 and "rssi":"-98"
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class MessageDecoder {
+  private static final String[] NAMES = { StiotMessage.RXL, StiotMessage.REGR, StiotMessage.KEYR, StiotMessage.KEYS, StiotMessage.SETR };
+  private static final String[] TYPES = { Uplink.TYPE_NORMAL, Uplink.TYPE_EMERGENCY, Uplink.TYPE_REGISTRATION };
+  private static final String[] ACKS = { Uplink.ACK_UNSUPPORTED, Uplink.ACK_VOLATILE, Uplink.ACK_MANDATORY };
+
+  // Scopes of nested objects
+  private static final int SCOPE_MESSAGE = 0;
+  private static final int SCOPE_BODY = 1;
+  private static final int SCOPE_LORA_STAND = 2;
+
+  // Known keys, index into KEYS
+  private static final int END = -2;
+  private static final int UNKNOWN = -1;
+  private static final int MESSAGE_NAME = 0;
+  private static final int MESSAGE_BODY = 1;
+  private static final int DEV_ID = 2;
+  private static final int DATA = 3;
+  private static final int TYPE = 4;
+  private static final int ACK = 5;
+  private static final int CONF_NEED = 6;
+  private static final int RSSI = 7;
+  private static final int SNR = 8;
+  private static final int FREQ = 9;
+  private static final int DUTY_C = 10;
+  private static final int SEQ = 11;
+  private static final int SF = 12;
+  private static final int POWER = 13;
+  private static final int TIME = 14;
+  private static final int CR = 15;
+  private static final int BAND = 16;
+  private static final int KEY = 17;
+  private static final int ID = 18;
+  private static final int MAX_POWER = 19;
+  private static final int CHANNELS = 20;
+  private static final int LORA_STAND = 21;
+  private static final int NAME = 22;
+  private static final int VERSION = 23;
+  private static final int ENCODINGS = 24;
+
+  // Body fields read by processing of a received uplink
+  private static final int RXL_FIELDS = bits(DEV_ID, DATA, SEQ, SF, FREQ, BAND, RSSI, SNR);
+
+  private static final byte[][] KEYS = ascii(
+    "message_name", "message_body", "dev_id", "data", "type", "ack", "conf_need", "rssi", "snr", "freq", "duty_c",
+    "seq", "sf", "power", "time", "cr", "band", "key", "id", "max_power", "channels", "lora_stand", "name", "version",
+    "encodings"
+  );
+
+  /**
+   * Decodes received message
+   * @param frame JSON or CBOR message
+   * @param apIdentifier internal identifier of AP which received the message
+   * @param hWIdentifier hardware identifier of AP which received the message
+   * @return typed message or null when message name is not supported
+   * @throws MalformedMessageException when message cannot be decoded
+   */
+  public static StiotMessage decode(Frame frame, int apIdentifier, String hWIdentifier) throws MalformedMessageException {
+    byte[] data = frame.toBytes();
+    Parser parser = frame.isBinary() ? new CborParser(data) : new JsonParser(data);
+    MessageFields fields = new MessageFields();
+
+    readObject(parser, fields, SCOPE_MESSAGE);
+
+    if (fields.name == null) {
+      return null;
+    }
+
+    switch (fields.name) {
+      case StiotMessage.RXL:
+        require(fields, RXL_FIELDS);
+        require(fields.devId, "dev_id", fields.name);
+        require(fields.data, "data", fields.name);
+        return new Uplink(fields, apIdentifier, hWIdentifier);
+      case StiotMessage.REGR:
+        require(fields.devId, "dev_id", fields.name);
+        return new Uplink(fields, apIdentifier, hWIdentifier);
+      case StiotMessage.KEYR:
+        require(fields.devId, "dev_id", fields.name);
+        return new KeyRequest(fields);
+      case StiotMessage.KEYS:
+        require(fields.devId, "dev_id", fields.name);
+        require(fields.key, "key", fields.name);
+        return new KeyShare(fields);
+      case StiotMessage.SETR:
+        require(fields.id, "id", fields.name);
+        return new SetupRequest(fields);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Reads STIoT message name without decoding the whole message
+   * @param frame JSON or CBOR message
+   * @return message name or null if not present or message is malformed
+   */
+  public static String readMessageName(Frame frame) {
+    return peek(frame, false, MESSAGE_NAME, NAMES);
+  }
+
+  /**
+   * Reads type of message_body without decoding the whole message
+   * @param frame JSON or CBOR message
+   * @return type or null if not present or message is malformed
+   */
+  public static String readBodyType(Frame frame) {
+    return peek(frame, true, TYPE, TYPES);
+  }
+
+  /**
+   * Reads text field of top level object or of message_body, other values are skipped
+   */
+  private static String peek(Frame frame, boolean body, int key, String[] constants) {
+    byte[] data = frame.toBytes();
+    Parser parser = frame.isBinary() ? new CborParser(data) : new JsonParser(data);
+
+    try {
+      return peek(parser, body, key, constants);
+    } catch (MalformedMessageException e) {
+      return null;
+    }
+  }
+
+  private static String peek(Parser parser, boolean body, int wanted, String[] constants) throws MalformedMessageException {
+    if (!parser.beginObject()) {
+      return null;
+    }
+
+    int key;
+    while ((key = parser.nextKey()) != END) {
+      if (body && key == MESSAGE_BODY) {
+        return peek(parser, false, wanted, constants);
+      }
+
+      if (!body && key == wanted) {
+        return parser.readConstant(constants);
+      }
+      parser.skipValue();
+    }
+    return null;
+  }
+
+  /**
+   * Reads object of given scope, value which is not an object is skipped
+   */
+  private static void readObject(Parser parser, MessageFields fields, int scope) throws MalformedMessageException {
+    if (!parser.beginObject()) {
+      parser.skipValue();
+      return;
+    }
+
+    int key;
+    while ((key = parser.nextKey()) != END) {
+      readField(parser, fields, scope, key);
+    }
+  }
+
+  /**
+   * Stores value of a known field, everything else is skipped
+   */
+  private static void readField(Parser parser, MessageFields fields, int scope, int key) throws MalformedMessageException {
+    if (scope == SCOPE_MESSAGE) {
+      if (key == MESSAGE_NAME) {
+        fields.name = parser.readConstant(NAMES);
+      } else if (key == MESSAGE_BODY) {
+        readObject(parser, fields, SCOPE_BODY);
+      } else {
+        parser.skipValue();
+      }
+      return;
+    }
+
+    if (scope == SCOPE_LORA_STAND) {
+      if (key == NAME) {
+        fields.loraStandName = parser.readString();
+      } else if (key == VERSION) {
+        fields.loraStandVersion = parser.readString();
+      } else {
+        parser.skipValue();
+      }
+      return;
+    }
+
+    if (key >= 0) {
+      fields.present |= 1 << key;
+    }
+
+    switch (key) {
+      case DEV_ID:
+        fields.devId = parser.readString();
+        break;
+      case DATA:
+        fields.data = parser.readString();
+        break;
+      case TYPE:
+        fields.type = parser.readConstant(TYPES);
+        break;
+      case ACK:
+        fields.ack = parser.readConstant(ACKS);
+        break;
+      case CONF_NEED:
+        fields.confNeed = parser.readBoolean();
+        break;
+      case RSSI:
+        fields.rssi = (float) parser.readNumber();
+        break;
+      case SNR:
+        fields.snr = (float) parser.readNumber();
+        break;
+      case FREQ:
+        fields.freq = (float) parser.readNumber();
+        break;
+      case DUTY_C:
+        fields.dutyC = (int) parser.readNumber();
+        break;
+      case SEQ:
+        fields.seq = (int) parser.readNumber();
+        break;
+      case SF:
+        fields.sf = (int) parser.readNumber();
+        break;
+      case POWER:
+        fields.power = (int) parser.readNumber();
+        break;
+      case TIME:
+        fields.time = (long) parser.readNumber();
+        break;
+      case CR:
+        fields.cr = parser.readString();
+        break;
+      case BAND:
+        fields.band = (int) parser.readNumber();
+        break;
+      case KEY:
+        fields.key = parser.readString();
+        break;
+      case ID:
+        fields.id = parser.readString();
+        break;
+      case MAX_POWER:
+        fields.maxPower = (int) parser.readNumber();
+        break;
+      case CHANNELS:
+        fields.channels = (int) parser.readNumber();
+        break;
+      case LORA_STAND:
+        readObject(parser, fields, SCOPE_LORA_STAND);
+        break;
+      case ENCODINGS:
+        fields.encodings = parser.readStringArray();
+        break;
+      default:
+        parser.skipValue();
+        break;
+    }
+  }
+
+  private static void require(Object value, String field, String name) throws MalformedMessageException {
+    if (value == null) {
+      throw new MalformedMessageException(name + " message without " + field);
+    }
+  }
+
+  /**
+   * Checks that all given body fields were present
+   * @param required bits of key indexes, see bits
+   */
+  private static void require(MessageFields fields, int required) throws MalformedMessageException {
+    int missing = required & ~fields.present;
+
+    if (missing != 0) {
+      String key = new String(KEYS[Integer.numberOfTrailingZeros(missing)], StandardCharsets.US_ASCII);
+      throw new MalformedMessageException(fields.name + " message without " + key);
+    }
+  }
+
+  private static int bits(int... keys) {
+    int bits = 0;
+    for (int key : keys) {
+      bits |= 1 << key;
+    }
+    return bits;
+  }
+
+  private static byte[][] ascii(String... keys) {
+    byte[][] bytes = new byte[keys.length][];
+    for (int i = 0; i < keys.length; i++) {
+      bytes[i] = keys[i].getBytes(StandardCharsets.US_ASCII);
+    }
+    return bytes;
+  }
+
+  /**
+   * Finds known key or constant equal to given bytes
+   * @return index or UNKNOWN
+   */
+  private static int match(byte[][] known, byte[] data, int offset, int length) {
+    for (int i = 0; i < known.length; i++) {
+      byte[] candidate = known[i];
+
+      if (candidate.length != length) {
+        continue;
+      }
+
+      int j = 0;
+      while (j < length && candidate[j] == data[offset + j]) {
+        j++;
+      }
+
+      if (j == length) {
+        return i;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private static int match(String[] constants, byte[] data, int offset, int length) {
+    for (int i = 0; i < constants.length; i++) {
+      String candidate = constants[i];
+
+      if (candidate.length() != length) {
+        continue;
+      }
+
+      int j = 0;
+      while (j < length && candidate.charAt(j) == data[offset + j]) {
+        j++;
+      }
+
+      if (j == length) {
+        return i;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Parses decimal number from ASCII bytes without creating a string
+   * @return double
+   * @throws MalformedMessageException when bytes are not a number
+   */
+  private static double parseNumber(byte[] data, int offset, int end) throws MalformedMessageException {
+    int position = offset;
+    boolean negative = false;
+
+    if (position < end && (data[position] == '-' || data[position] == '+')) {
+      negative = data[position++] == '-';
+    }
+
+    long mantissa = 0;
+    int scale = 0;
+    int digits = 0;
+
+    while (position < end && data[position] >= '0' && data[position] <= '9') {
+      if (mantissa < Long.MAX_VALUE / 10 - 10) {
+        mantissa = mantissa * 10 + (data[position] - '0');
+      } else {
+        scale++;
+      }
+      position++;
+      digits++;
+    }
+
+    if (position < end && data[position] == '.') {
+      position++;
+      while (position < end && data[position] >= '0' && data[position] <= '9') {
+        if (mantissa < Long.MAX_VALUE / 10 - 10) {
+          mantissa = mantissa * 10 + (data[position] - '0');
+          scale--;
+        }
+        position++;
+        digits++;
+      }
+    }
+
+    if (position < end && (data[position] == 'e' || data[position] == 'E')) {
+      position++;
+      boolean negativeExponent = false;
+
+      if (position < end && (data[position] == '-' || data[position] == '+')) {
+        negativeExponent = data[position++] == '-';
+      }
+
+      int exponent = 0;
+      int exponentStart = position;
+      while (position < end && data[position] >= '0' && data[position] <= '9' && exponent < 1000) {
+        exponent = exponent * 10 + (data[position++] - '0');
+      }
+
+      if (position == exponentStart) {
+        digits = 0;
+      }
+      scale += negativeExponent ? -exponent : exponent;
+    }
+
+    if (digits == 0 || position != end) {
+      throw new MalformedMessageException("Invalid number " + new String(data, offset, end - offset, StandardCharsets.UTF_8));
+    }
+
+    double value = scale == 0 ? mantissa : scale > 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+    return negative ? -value : value;
+  }
+
+  /**
+   * Primitive reads shared by JSON and CBOR, field mapping lives in the decoder
+   */
+  private abstract static class Parser {
+    final byte[] data;
+    int position = 0;
+
+    Parser(byte[] data) {
+      this.data = data;
+    }
+
+    /**
+     * Enters object if the next value is one
+     * @return false when the next value is not an object, nothing is consumed then
+     */
+    abstract boolean beginObject() throws MalformedMessageException;
+
+    /**
+     * Reads next key of current object including separator
+     * @return key index, UNKNOWN or END after the last key
+     */
+    abstract int nextKey() throws MalformedMessageException;
+
+    /**
+     * Reads string, numbers and booleans are returned in their text form
+     * @return String or null
+     */
+    abstract String readString() throws MalformedMessageException;
+
+    /**
+     * Reads string, returns shared constant instead of a new string when it matches
+     * @return String or null
+     */
+    abstract String readConstant(String[] constants) throws MalformedMessageException;
+
+    /**
+     * Reads number or quoted number
+     * @return double, null is read as zero
+     */
+    abstract double readNumber() throws MalformedMessageException;
+
+    /**
+     * Reads boolean or quoted boolean
+     * @return boolean, null is read as false
+     */
+    abstract boolean readBoolean() throws MalformedMessageException;
+
+    /**
+     * Reads array of strings, other values are skipped
+     * @return List or null
+     */
+    abstract List<String> readStringArray() throws MalformedMessageException;
+
+    abstract void skipValue() throws MalformedMessageException;
+
+    /**
+     * Byte at given index, a read past the end means the message is truncated
+     */
+    byte at(int index) throws MalformedMessageException {
+      if (index >= data.length) {
+        throw new MalformedMessageException("Message is truncated");
+      }
+      return data[index];
+    }
+  }
+
+  /**
+   * JSON tokenizer working on UTF-8 bytes
+   */
+  private static class JsonParser extends Parser {
+    JsonParser(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    boolean beginObject() throws MalformedMessageException {
+      if (peek() != '{') {
+        return false;
+      }
+      position++;
+      return true;
+    }
+
+    @Override
+    int nextKey() throws MalformedMessageException {
+      byte current = peek();
+
+      if (current == ',') {
+        position++;
+        current = peek();
+      }
+
+      if (current == '}') {
+        position++;
+        return END;
+      }
+
+      if (current != '"') {
+        throw unexpected();
+      }
+
+      int start = ++position;
+      boolean escaped = false;
+      while (at(position) != '"') {
+        if (at(position) == '\\') {
+          escaped = true;
+          position++;
+        }
+        position++;
+      }
+      int end = position++;
+
+      if (peek() != ':') {
+        throw unexpected();
+      }
+      position++;
+
+      if (escaped) {
+        byte[] key = unescape(start, end).getBytes(StandardCharsets.UTF_8);
+        return match(KEYS, key, 0, key.length);
+      }
+      return match(KEYS, data, start, end - start);
+    }
+
+    @Override
+    String readString() throws MalformedMessageException {
+      byte current = peek();
+
+      if (current == '"') {
+        int start = ++position;
+        boolean escaped = false;
+
+        while (at(position) != '"') {
+          if (at(position) == '\\') {
+            escaped = true;
+            position++;
+          }
+          position++;
+        }
+        return escaped ? unescape(start, position++) : new String(data, start, position++ - start, StandardCharsets.UTF_8);
+      }
+
+      if (current == '{' || current == '[') {
+        throw unexpected();
+      }
+
+      int start = position;
+      int end = skipLiteral();
+      return isNull(start, end) ? null : new String(data, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    String readConstant(String[] constants) throws MalformedMessageException {
+      if (peek() == '"') {
+        int start = position + 1;
+        int end = start;
+        while (at(end) != '"' && at(end) != '\\') {
+          end++;
+        }
+
+        int index = at(end) == '"' ? match(constants, data, start, end - start) : UNKNOWN;
+        if (index != UNKNOWN) {
+          position = end + 1;
+          return constants[index];
+        }
+      }
+      return readString();
+    }
+
+    @Override
+    double readNumber() throws MalformedMessageException {
+      if (peek() == '"') {
+        int start = ++position;
+        while (at(position) != '"') {
+          position++;
+        }
+        int end = position++;
+        return start == end ? 0 : parseNumber(data, start, end);
+      }
+
+      int start = position;
+      int end = skipLiteral();
+      return isNull(start, end) ? 0 : parseNumber(data, start, end);
+    }
+
+    @Override
+    boolean readBoolean() throws MalformedMessageException {
+      boolean quoted = peek() == '"';
+      if (quoted) {
+        position++;
+      }
+
+      boolean value = at(position) == 't' || at(position) == 'T' || at(position) == '1';
+      if (quoted) {
+        while (at(position) != '"') {
+          position++;
+        }
+        position++;
+      } else {
+        skipLiteral();
+      }
+      return value;
+    }
+
+    @Override
+    List<String> readStringArray() throws MalformedMessageException {
+      if (peek() != '[') {
+        skipValue();
+        return null;
+      }
+      position++;
+
+      List<String> values = new ArrayList<>();
+      while (true) {
+        byte current = peek();
+
+        if (current == ',') {
+          position++;
+          current = peek();
+        }
+
+        if (current == ']') {
+          position++;
+          return values;
+        }
+
+        if (current == '"') {
+          values.add(readString());
+        } else {
+          skipValue();
+        }
+      }
+    }
+
+    @Override
+    void skipValue() throws MalformedMessageException {
+      byte current = peek();
+
+      if (current == '"') {
+        position++;
+        while (at(position) != '"') {
+          if (at(position) == '\\') {
+            position++;
+          }
+          position++;
+        }
+        position++;
+      } else if (current == '{' || current == '[') {
+        int depth = 0;
+
+        do {
+          current = at(position++);
+          if (current == '"') {
+            while (at(position) != '"') {
+              if (at(position) == '\\') {
+                position++;
+              }
+              position++;
+            }
+            position++;
+          } else if (current == '{' || current == '[') {
+            depth++;
+          } else if (current == '}' || current == ']') {
+            depth--;
+          }
+        } while (depth > 0);
+      } else {
+        skipLiteral();
+      }
+    }
+
+    /**
+     * Skips whitespace and returns the next byte without consuming it
+     */
+    private byte peek() throws MalformedMessageException {
+      while (position < data.length) {
+        byte current = at(position);
+        if (current != ' ' && current != '\n' && current != '\r' && current != '\t') {
+          return current;
+        }
+        position++;
+      }
+      throw new MalformedMessageException("Message is truncated");
+    }
+
+    /**
+     * Skips number, true, false or null
+     * @return end of the literal
+     */
+    private int skipLiteral() throws MalformedMessageException {
+      int start = position;
+      while (position < data.length) {
+        byte current = at(position);
+        if (current == ',' || current == '}' || current == ']' || current == ' ' || current == '\n' || current == '\r' || current == '\t') {
+          break;
+        }
+        position++;
+      }
+
+      if (position == start) {
+        throw unexpected();
+      }
+      return position;
+    }
+
+    private boolean isNull(int start, int end) {
+      return end - start == 4 && data[start] == 'n' && data[start + 1] == 'u' && data[start + 2] == 'l' && data[start + 3] == 'l';
+    }
+
+    /**
+     * Decodes string with escape sequences, rare in STIoT messages
+     */
+    private String unescape(int start, int end) throws MalformedMessageException {
+      StringBuilder builder = new StringBuilder(end - start);
+      int index = start;
+
+      while (index < end) {
+        int chunk = index;
+        while (index < end && data[index] != '\\') {
+          index++;
+        }
+        builder.append(new String(data, chunk, index - chunk, StandardCharsets.UTF_8));
+
+        if (index >= end) {
+          break;
+        }
+
+        char escape = (char) at(index + 1);
+        index += 2;
+        switch (escape) {
+          case 'b':
+            builder.append('\b');
+            break;
+          case 'f':
+            builder.append('\f');
+            break;
+          case 'n':
+            builder.append('\n');
+            break;
+          case 'r':
+            builder.append('\r');
+            break;
+          case 't':
+            builder.append('\t');
+            break;
+          case 'u':
+            if (index + 4 > end) {
+              throw new MalformedMessageException("Invalid unicode escape");
+            }
+            try {
+              builder.append((char) Integer.parseInt(new String(data, index, 4, StandardCharsets.US_ASCII), 16));
+            } catch (NumberFormatException e) {
+              throw new MalformedMessageException("Invalid unicode escape");
+            }
+            index += 4;
+            break;
+          default:
+            builder.append(escape);
+            break;
+        }
+      }
+      return builder.toString();
+    }
+
+    private MalformedMessageException unexpected() {
+      return new MalformedMessageException("Unexpected character '" + (char) data[position] + "' at " + position);
+    }
+  }
+
+  /**
+   * CBOR reader, byte strings are returned as base64 strings
+   */
+  private static class CborParser extends Parser {
+    // Deepest STIoT object is lora_stand inside message_body
+    private static final int MAX_DEPTH = 8;
+
+    // Remaining entries of entered maps, -1 for indefinite length
+    private final long[] remaining = new long[MAX_DEPTH];
+    private int depth = 0;
+
+    CborParser(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    boolean beginObject() throws MalformedMessageException {
+      int header = at(position) & 0xff;
+
+      if (header >>> 5 != 5) {
+        return false;
+      }
+
+      if (depth == MAX_DEPTH) {
+        throw new MalformedMessageException("CBOR nesting too deep");
+      }
+      position++;
+      // Entries take at least a byte each, so their count is checked like a length
+      remaining[depth++] = (header & 0x1f) == 31 ? -1 : readLength(header);
+      return true;
+    }
+
+    @Override
+    int nextKey() throws MalformedMessageException {
+      long entries = remaining[depth - 1];
+
+      if (entries == 0 || entries < 0 && (at(position) & 0xff) == 0xff) {
+        if (entries < 0) {
+          position++;
+        }
+        depth--;
+        return END;
+      }
+
+      if (entries > 0) {
+        remaining[depth - 1]--;
+      }
+
+      int header = at(position) & 0xff;
+      if (header >>> 5 == 3 && (header & 0x1f) != 31) {
+        position++;
+        int length = readLength(header);
+        int key = match(KEYS, data, position, length);
+        position += length;
+        return key;
+      }
+
+      skipValue();
+      return UNKNOWN;
+    }
+
+    @Override
+    String readString() throws MalformedMessageException {
+      int header = at(position) & 0xff;
+      int major = header >>> 5;
+
+      if (major == 3 && (header & 0x1f) != 31) {
+        position++;
+        int length = readLength(header);
+        position += length;
+        return new String(data, position - length, length, StandardCharsets.UTF_8);
+      }
+
+      if (major == 3 || major == 2) {
+        byte[] bytes = readBytes();
+        return major == 3 ? new String(bytes, StandardCharsets.UTF_8) : Base64.getEncoder().encodeToString(bytes);
+      }
+
+      if (major == 0 || major == 1) {
+        return Long.toString((long) readNumber());
+      }
+
+      if (header == 0xf4 || header == 0xf5) {
+        return Boolean.toString(readBoolean());
+      }
+
+      skipValue();
+      return null;
+    }
+
+    @Override
+    String readConstant(String[] constants) throws MalformedMessageException {
+      int header = at(position) & 0xff;
+
+      if (header >>> 5 == 3 && (header & 0x1f) != 31) {
+        int start = position;
+        position++;
+        int length = readLength(header);
+        int index = match(constants, data, position, length);
+
+        if (index != UNKNOWN) {
+          position += length;
+          return constants[index];
+        }
+        position = start;
+      }
+      return readString();
+    }
+
+    @Override
+    double readNumber() throws MalformedMessageException {
+      int header = at(position++) & 0xff;
+
+      // Tags are ignored
+      while (header >>> 5 == 6) {
+        readArgument(header);
+        header = at(position++) & 0xff;
+      }
+      int major = header >>> 5;
+
+      switch (major) {
+        case 0:
+          return readArgument(header);
+        case 1:
+          return -1 - readArgument(header);
+        case 3: {
+          if ((header & 0x1f) == 31) {
+            position--;
+            byte[] text = readBytes();
+            return text.length == 0 ? 0 : parseNumber(text, 0, text.length);
+          }
+          int length = readLength(header);
+          int start = position;
+          position += length;
+          return length == 0 ? 0 : parseNumber(data, start, start + length);
+        }
+        case 7:
+          if (header == 0xf9) {
+            return CborHelper.halfToDouble((int) readArgument(header));
+          } else if (header == 0xfa) {
+            return Float.intBitsToFloat((int) readArgument(header));
+          } else if (header == 0xfb) {
+            return Double.longBitsToDouble(readArgument(header));
+          } else if (header == 0xf6 || header == 0xf7) {
+            return 0;
+          }
+          break;
+        default:
+          break;
+      }
+      throw new MalformedMessageException("CBOR item of major type " + major + " is not a number");
+    }
+
+    @Override
+    boolean readBoolean() throws MalformedMessageException {
+      int header = at(position) & 0xff;
+
+      if (header == 0xf5 || header == 0xf4) {
+        position++;
+        return header == 0xf5;
+      }
+
+      if (header >>> 5 == 3) {
+        String value = readString();
+        return value != null && (value.equalsIgnoreCase("true") || value.equals("1"));
+      }
+      return readNumber() != 0;
+    }
+
+    @Override
+    List<String> readStringArray() throws MalformedMessageException {
+      int header = at(position) & 0xff;
+
+      if (header >>> 5 != 4) {
+        skipValue();
+        return null;
+      }
+      position++;
+
+      boolean indefinite = (header & 0x1f) == 31;
+      long items = indefinite ? Long.MAX_VALUE : readLength(header);
+      List<String> values = new ArrayList<>();
+
+      for (long i = 0; i < items; i++) {
+        if (indefinite && (at(position) & 0xff) == 0xff) {
+          position++;
+          break;
+        }
+
+        if ((at(position) & 0xff) >>> 5 == 3) {
+          values.add(readString());
+        } else {
+          skipValue();
+        }
+      }
+      return values;
+    }
+
+    @Override
+    void skipValue() throws MalformedMessageException {
+      try {
+        int length = CborHelper.itemLength(data, position, data.length);
+
+        if (length < 0) {
+          throw new MalformedMessageException("Message is truncated");
+        }
+        position += length;
+      } catch (CborHelper.MalformedCborException e) {
+        throw new MalformedMessageException(e.getMessage());
+      }
+    }
+
+    /**
+     * Reads length or count following the header, it cannot exceed the rest of the message
+     */
+    private int readLength(int header) throws MalformedMessageException {
+      long length = readArgument(header);
+
+      if (length < 0 || length > data.length - position) {
+        throw new MalformedMessageException("Message is truncated");
+      }
+      return (int) length;
+    }
+
+    /**
+     * Reads argument following the header, header is already consumed
+     */
+    private long readArgument(int header) throws MalformedMessageException {
+      int info = header & 0x1f;
+
+      if (info < 24) {
+        return info;
+      }
+
+      if (info > 27) {
+        throw new MalformedMessageException("Unexpected CBOR additional information " + info);
+      }
+
+      long argument = 0;
+      for (int i = 0; i < 1 << (info - 24); i++) {
+        argument = argument << 8 | (at(position++) & 0xff);
+      }
+      return argument;
+    }
+
+    /**
+     * Reads text or byte string including indefinite length ones
+     */
+    private byte[] readBytes() throws MalformedMessageException {
+      int header = at(position++) & 0xff;
+
+      if ((header & 0x1f) != 31) {
+        byte[] bytes = new byte[readLength(header)];
+        System.arraycopy(data, position, bytes, 0, bytes.length);
+        position += bytes.length;
+        return bytes;
+      }
+
+      ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+      while ((at(position) & 0xff) != 0xff) {
+        // Chunks are definite length strings, nested indefinite ones are not allowed
+        if ((at(position) & 0x1f) == 31) {
+          throw new MalformedMessageException("Nested indefinite length CBOR string");
+        }
+        byte[] chunk = readBytes();
+        chunks.write(chunk, 0, chunk.length);
+      }
+      position++;
+      return chunks.toByteArray();
+    }
+  }
+
+  /**
+   * Thrown when AP sends message which cannot be decoded
+   */
+  public static class MalformedMessageException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedMessageException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package message;
+
+import java.util.List;
+
+/**
+ * Values collected while decoding a message, body may precede message name so all known fields are kept
+ * @author Alexander Valach
+ * @version 0.3
+ */
+final class MessageFields {
+  String name;
+  // Bit per index of known body key which was present
+  int present;
+
+  // RXL, REGR, KEYR, KEYS
+  String devId;
+  String data;
+  String type;
+  String ack;
+  boolean confNeed;
+  float rssi;
+  float snr;
+  float freq;
+  int dutyC;
+  int seq;
+  int sf;
+  int power;
+  long time;
+  String cr;
+  int band;
+  String key;
+
+  // SETR
+  String id;
+  int maxPower;
+  int channels;
+  String loraStandName;
+  String loraStandVersion;
+  List<String> encodings;
+}
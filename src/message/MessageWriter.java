@@ -0,0 +1,218 @@
+package message;
+
+import connection.Frame;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Writes outbound messages straight into a reusable byte buffer as JSON or CBOR
+ * One writer serves one thread, it is reset before every message
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public abstract class MessageWriter {
+  private static final int INITIAL_SIZE = 512;
+
+  protected byte[] buffer = new byte[INITIAL_SIZE];
+  protected int size = 0;
+
+  /**
+   * Creates writer of given encoding
+   * @param encoding wire encoding
+   * @return MessageWriter
+   */
+  public static MessageWriter create(Frame.Encoding encoding) {
+    return encoding == Frame.Encoding.CBOR ? new CborWriter() : new JsonWriter();
+  }
+
+  public abstract Frame.Encoding getEncoding();
+
+  /**
+   * Starts a new message, buffer is kept
+   */
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * Encoded content, valid up to size()
+   * @return byte[]
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public byte[] toByteArray() {
+    byte[] copy = new byte[size];
+    System.arraycopy(buffer, 0, copy, 0, size);
+    return copy;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, size);
+  }
+
+  public void writeTo(ByteBuffer out) {
+    out.put(buffer, 0, size);
+  }
+
+  /**
+   * Starts object, CBOR requires number of entries in advance
+   * @param entries number of keys
+   * @return this
+   */
+  public abstract MessageWriter beginObject(int entries);
+
+  public abstract MessageWriter endObject();
+
+  /**
+   * Starts array, CBOR requires number of items in advance
+   * @param items number of items
+   * @return this
+   */
+  public abstract MessageWriter beginArray(int items);
+
+  public abstract MessageWriter endArray();
+
+  public abstract MessageWriter key(Key key);
+
+  /**
+   * Writes key not known in advance, e.g. read from database
+   * @param name key, escaped as needed
+   * @return this
+   */
+  public abstract MessageWriter key(String name);
+
+  public abstract MessageWriter value(String value);
+
+  public abstract MessageWriter value(long value);
+
+  public abstract MessageWriter value(double value);
+
+  public abstract MessageWriter value(boolean value);
+
+  public abstract MessageWriter nullValue();
+
+  /**
+   * Writes precomputed value
+   * @param fragment value encoded in advance
+   * @return this
+   */
+  public abstract MessageWriter fragment(Fragment fragment);
+
+  /**
+   * Writes precomputed object entries into the current object
+   * @param fragment entries encoded in advance, counted in beginObject
+   * @return this
+   */
+  public abstract MessageWriter entries(Fragment fragment);
+
+  /**
+   * Writes value read from database or configuration
+   * @param value JSONObject, JSONArray, number, boolean, string or null
+   * @return this
+   */
+  public MessageWriter json(Object value) {
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      beginObject(object.length());
+      Iterator<?> keys = object.keys();
+
+      while (keys.hasNext()) {
+        String name = String.valueOf(keys.next());
+        key(name);
+        json(object.opt(name));
+      }
+      return endObject();
+    }
+
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      beginArray(array.length());
+
+      for (int i = 0; i < array.length(); i++) {
+        json(array.opt(i));
+      }
+      return endArray();
+    }
+
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      return value(((Number) value).longValue());
+    }
+
+    if (value instanceof Number) {
+      return value(((Number) value).doubleValue());
+    }
+
+    if (value instanceof Boolean) {
+      return value((boolean) (Boolean) value);
+    }
+
+    if (value == null || value == JSONObject.NULL) {
+      return nullValue();
+    }
+    return value(value.toString());
+  }
+
+  protected void ensureCapacity(int required) {
+    if (buffer.length - size >= required) {
+      return;
+    }
+
+    int length = buffer.length;
+    while (length - size < required) {
+      length *= 2;
+    }
+
+    byte[] larger = new byte[length];
+    System.arraycopy(buffer, 0, larger, 0, size);
+    buffer = larger;
+  }
+
+  protected void writeByte(int value) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) value;
+  }
+
+  protected void writeBytes(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  /**
+   * Object key encoded in advance for both encodings
+   */
+  public static final class Key {
+    final String name;
+    final byte[] json;
+    final byte[] cbor;
+
+    public Key(String name) {
+      this.name = name;
+      this.json = new JsonWriter().key(name).toByteArray();
+      this.cbor = new CborWriter().key(name).toByteArray();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Value which knows how to write itself
+   */
+  public interface Writable {
+    void writeTo(MessageWriter writer);
+  }
+}
@@ -0,0 +1,110 @@
+package message;
+
+import org.json.JSONArray;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Network data of TXL and REGA, array of transmission parameter blocks or bandit arms
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class NetData implements MessageWriter.Writable {
+  private static final MessageWriter.Key TYPE = new MessageWriter.Key("type");
+  private static final MessageWriter.Key POWER = new MessageWriter.Key("power");
+  private static final MessageWriter.Key SF = new MessageWriter.Key("sf");
+  private static final MessageWriter.Key PW = new MessageWriter.Key("pw");
+  private static final MessageWriter.Key RW = new MessageWriter.Key("rw");
+
+  private final ArrayList<MessageWriter.Writable> items = new ArrayList<>(3);
+
+  /**
+   * Adds precomputed block
+   * @param fragment e.g. EMER or REG parameters
+   * @return this
+   */
+  public NetData add(Fragment fragment) {
+    items.add(fragment);
+    return this;
+  }
+
+  /**
+   * Adds transmission parameter block
+   * @param type NORMAL, EMER or REG
+   * @param power transmission power
+   * @param sf spreading factor
+   * @param rest remaining entries, e.g. cr, band and freqs, or null
+   * @return this
+   */
+  public NetData addParams(String type, int power, int sf, Fragment rest) {
+    items.add(writer -> {
+      writer.beginObject(3 + (rest == null ? 0 : rest.getEntries()));
+      writer.key(TYPE).value(type);
+      writer.key(POWER).value(power);
+      writer.key(SF).value(sf);
+      if (rest != null) {
+        writer.entries(rest);
+      }
+      writer.endObject();
+    });
+    return this;
+  }
+
+  /**
+   * Adds bandit arm
+   * @param sf spreading factor
+   * @param pw transmission power
+   * @param rw reward
+   * @return this
+   */
+  public NetData addArm(int sf, int pw, int rw) {
+    items.add(writer -> writer.beginObject(3).key(SF).value(sf).key(PW).value(pw).key(RW).value(rw).endObject());
+    return this;
+  }
+
+  /**
+   * Adds all items of a model stored in database
+   * @param model json array, e.g. statistical model of a node
+   * @return this
+   */
+  public NetData addAll(JSONArray model) {
+    for (int i = 0; i < model.length(); i++) {
+      Object item = model.opt(i);
+      items.add(writer -> writer.json(item));
+    }
+    return this;
+  }
+
+  public int size() {
+    return items.size();
+  }
+
+  public boolean isEmpty() {
+    return items.isEmpty();
+  }
+
+  @Override
+  public void writeTo(MessageWriter writer) {
+    writer.beginArray(items.size());
+    for (MessageWriter.Writable item : items) {
+      item.writeTo(writer);
+    }
+    writer.endArray();
+  }
+
+  /**
+   * Network data as stored in database
+   * @return json array as a string
+   */
+  public String toJson() {
+    MessageWriter writer = new JsonWriter();
+    writeTo(writer);
+    return new String(writer.getBuffer(), 0, writer.size(), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+}
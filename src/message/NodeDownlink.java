@@ -0,0 +1,77 @@
+package message;
+
+/**
+ * TXL or REGA message, downlink addressed to an end node
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class NodeDownlink extends Downlink {
+  private static final MessageWriter.Key DEV_ID = new MessageWriter.Key("dev_id");
+  private static final MessageWriter.Key POWER = new MessageWriter.Key("power");
+  private static final MessageWriter.Key SH_KEY = new MessageWriter.Key("sh_key");
+  private static final MessageWriter.Key APP_DATA = new MessageWriter.Key("app_data");
+  private static final MessageWriter.Key NET_DATA = new MessageWriter.Key("net_data");
+  private static final MessageWriter.Key TIME = new MessageWriter.Key("time");
+
+  private final String devId;
+  private final int power;
+  private final String shKey;
+  private final String appData;
+  private final NetData netData;
+  private final int time;
+
+  /**
+   * Constructor
+   * @param name TXL or REGA
+   * @param devId end node id
+   * @param power downlink power
+   * @param shKey pre shared key, omitted when null
+   * @param appData application data, empty when none
+   * @param netData network data
+   * @param time airtime of the downlink in ms
+   */
+  public NodeDownlink(String name, String devId, int power, String shKey, String appData, NetData netData, int time) {
+    super(name);
+    this.devId = devId;
+    this.power = power;
+    this.shKey = shKey;
+    this.appData = appData;
+    this.netData = netData;
+    this.time = time;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  public int getPower() {
+    return power;
+  }
+
+  public String getAppData() {
+    return appData;
+  }
+
+  public NetData getNetData() {
+    return netData;
+  }
+
+  public int getTime() {
+    return time;
+  }
+
+  @Override
+  protected void writeBody(MessageWriter writer) {
+    writer.beginObject(shKey == null ? 5 : 6);
+    writer.key(DEV_ID).value(devId);
+    writer.key(POWER).value(power);
+    if (shKey != null) {
+      writer.key(SH_KEY).value(shKey);
+    }
+    writer.key(APP_DATA).value(appData);
+    writer.key(NET_DATA);
+    netData.writeTo(writer);
+    writer.key(TIME).value(time);
+    writer.endObject();
+  }
+}
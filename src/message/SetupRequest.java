@@ -0,0 +1,66 @@
+package message;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SETR message, AP introduces itself after connecting
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class SetupRequest extends StiotMessage {
+  private final String id;
+  private final int maxPower;
+  private final int channels;
+  private final String loraStandName;
+  private final String loraStandVersion;
+  private final List<String> encodings;
+
+  SetupRequest(MessageFields fields) {
+    super(SETR);
+    this.id = fields.id;
+    this.maxPower = fields.maxPower;
+    this.channels = fields.channels;
+    this.loraStandName = fields.loraStandName;
+    this.loraStandVersion = fields.loraStandVersion;
+    this.encodings = fields.encodings == null ? null : Collections.unmodifiableList(fields.encodings);
+  }
+
+  /**
+   * Hardware identifier of AP
+   * @return String
+   */
+  public String getId() {
+    return id;
+  }
+
+  public int getMaxPower() {
+    return maxPower;
+  }
+
+  public int getChannels() {
+    return channels;
+  }
+
+  public String getLoraStandName() {
+    return loraStandName;
+  }
+
+  public String getLoraStandVersion() {
+    return loraStandVersion;
+  }
+
+  /**
+   * Encodings supported by AP in order of preference
+   * @return list of encoding names or null when AP does not negotiate
+   */
+  public List<String> getEncodings() {
+    return encodings;
+  }
+
+  @Override
+  public String toString() {
+    return "SETR{id=" + id + ", max_power=" + maxPower + ", channels=" + channels
+      + ", lora_stand=" + loraStandName + " " + loraStandVersion + ", encodings=" + encodings + "}";
+  }
+}
@@ -0,0 +1,35 @@
+package message;
+
+/**
+ * SETA message, transmission parameters of AP
+ * Body is an array of parameter blocks, negotiated downlink encoding follows them as {"encoding": name}
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class SetupResponse extends Downlink {
+  private static final MessageWriter.Key ENCODING = new MessageWriter.Key("encoding");
+
+  private final Fragment params;
+  private final String encoding;
+
+  /**
+   * Constructor
+   * @param params precomputed parameter blocks
+   * @param encoding negotiated downlink encoding, omitted when null
+   */
+  public SetupResponse(Fragment params, String encoding) {
+    super(SETA);
+    this.params = params;
+    this.encoding = encoding;
+  }
+
+  @Override
+  protected void writeBody(MessageWriter writer) {
+    writer.beginArray(params.getEntries() + (encoding == null ? 0 : 1));
+    writer.entries(params);
+    if (encoding != null) {
+      writer.beginObject(1).key(ENCODING).value(encoding).endObject();
+    }
+    writer.endArray();
+  }
+}
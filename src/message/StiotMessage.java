@@ -0,0 +1,28 @@
+package message;
+
+/**
+ * Decoded inbound STIoT message
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public abstract class StiotMessage {
+  public static final String RXL = "RXL";
+  public static final String REGR = "REGR";
+  public static final String KEYR = "KEYR";
+  public static final String KEYS = "KEYS";
+  public static final String SETR = "SETR";
+
+  private final String name;
+
+  protected StiotMessage(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Message name, one of the constants above
+   * @return String
+   */
+  public String getName() {
+    return name;
+  }
+}
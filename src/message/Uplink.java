@@ -0,0 +1,158 @@
+package message;
+
+/**
+ * RXL or REGR message, one replica of a node uplink as received by a single AP
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class Uplink extends StiotMessage {
+  public static final String TYPE_NORMAL = "normal";
+  public static final String TYPE_EMERGENCY = "emer";
+  public static final String TYPE_REGISTRATION = "reg";
+
+  public static final String ACK_UNSUPPORTED = "UNSUPPORTED";
+  public static final String ACK_VOLATILE = "VOLATILE";
+  public static final String ACK_MANDATORY = "MANDATORY";
+
+  private final String devId;
+  private final String data;
+  private final String type;
+  private final String ack;
+  private final boolean confNeed;
+  private final float rssi;
+  private final float snr;
+  private final float freq;
+  private final int dutyC;
+  private final int seq;
+  private final int sf;
+  private final int power;
+  private final long time;
+  private final String cr;
+  private final int band;
+  private final int apIdentifier;
+  private final String hWIdentifier;
+
+  Uplink(MessageFields fields, int apIdentifier, String hWIdentifier) {
+    super(fields.name);
+    this.devId = fields.devId;
+    this.data = fields.data;
+    // Missing type used to default to normal, registration defaults to reg
+    if (fields.type != null) {
+      this.type = fields.type;
+    } else {
+      this.type = REGR.equals(fields.name) ? TYPE_REGISTRATION : TYPE_NORMAL;
+    }
+    this.ack = fields.ack;
+    this.confNeed = fields.confNeed;
+    this.rssi = fields.rssi;
+    this.snr = fields.snr;
+    this.freq = fields.freq;
+    this.dutyC = fields.dutyC;
+    this.seq = fields.seq;
+    this.sf = fields.sf;
+    this.power = fields.power;
+    this.time = fields.time;
+    this.cr = fields.cr;
+    this.band = fields.band;
+    this.apIdentifier = apIdentifier;
+    this.hWIdentifier = hWIdentifier;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  /**
+   * Application data in base64
+   * @return String or null
+   */
+  public String getData() {
+    return data;
+  }
+
+  /**
+   * Concentration type, one of normal, emer or reg
+   * @return String
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Acknowledgement required by node, e.g. UNSUPPORTED, VOLATILE or MANDATORY
+   * @return String or null
+   */
+  public String getAck() {
+    return ack;
+  }
+
+  public boolean isConfNeed() {
+    return confNeed;
+  }
+
+  public float getRssi() {
+    return rssi;
+  }
+
+  public float getSnr() {
+    return snr;
+  }
+
+  public float getFreq() {
+    return freq;
+  }
+
+  /**
+   * Remaining duty cycle of AP in ms
+   * @return int
+   */
+  public int getDutyC() {
+    return dutyC;
+  }
+
+  public int getSeq() {
+    return seq;
+  }
+
+  public int getSf() {
+    return sf;
+  }
+
+  public int getPower() {
+    return power;
+  }
+
+  public long getTime() {
+    return time;
+  }
+
+  public String getCr() {
+    return cr;
+  }
+
+  public int getBand() {
+    return band;
+  }
+
+  /**
+   * Internal identifier of AP which received the replica
+   * @return int
+   */
+  public int getApIdentifier() {
+    return apIdentifier;
+  }
+
+  /**
+   * Hardware identifier of AP which received the replica
+   * @return String or null before SETR
+   */
+  public String getHwIdentifier() {
+    return hWIdentifier;
+  }
+
+  @Override
+  public String toString() {
+    return getName() + "{dev_id=" + devId + ", seq=" + seq + ", type=" + type + ", rssi=" + rssi + ", snr=" + snr
+      + ", duty_c=" + dutyC + ", sf=" + sf + ", band=" + band + ", freq=" + freq + ", ap=" + hWIdentifier + "/" + apIdentifier + "}";
+  }
+}
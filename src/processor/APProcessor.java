@@ -1,15 +1,28 @@
 package processor;
 
-import connection.SocketThread;
+import connection.APConnection;
+import connection.Frame;
 import core.DateManager;
 import core.ProgramResources;
 import helpers.MessageHelper;
+import message.Downlink;
+import message.KeyRequest;
+import message.KeyResponse;
+import message.KeyShare;
+import message.NetData;
+import message.NodeDownlink;
+import message.SetupResponse;
+import message.SetupRequest;
+import message.Uplink;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.sql.Time;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * AP processing logic
@@ -24,6 +37,9 @@ public class APProcessor extends NodeProcessor {
   private final int downSFSensitivity;
   private final int downPowerSensitivity;
   private final int maxSpf;
+  private final EnumSet<Frame.Encoding> encodings;
+  // AP statistical model is shared by devices processed on different lanes
+  private final ConcurrentHashMap<String, Object> apModelLocks;
 
   /**
    * Constructor
@@ -37,97 +53,101 @@ public class APProcessor extends NodeProcessor {
     this.downSFSensitivity = programResources.props.getInt("LoRaSettings.powerDownSpfRssiSensitivityBoundary");
     this.downPowerSensitivity = programResources.props.getInt("LoRaSettings.powerDownPowerRssiSensitivityBoundary");
     this.maxSpf = programResources.props.getInt("LoRaSettings.maxSpf");
+    this.apModelLocks = new ConcurrentHashMap<>();
+    this.encodings = EnumSet.of(Frame.Encoding.JSON);
+    for (String name : programResources.props.getStr("APProcessor.encodings", "json").split(",")) {
+      Frame.Encoding encoding = Frame.Encoding.fromName(name);
+      if (encoding != null) {
+        this.encodings.add(encoding);
+      }
+    }
     System.out.println("Access Point Processor created successfully!");
   }
 
   /**
    * Processes SETR messages
-   * @param message json STIoT message
+   * @param message decoded SETR message
    * @param st instance of thread
    */
-  public void processSETR(JSONObject message, SocketThread st) {
+  public void processSETR(SetupRequest message, APConnection st) {
     // Version 1.0 only supports static params for each AP configuration, change here
     int transmissionParamsId = apTransmissionParamId;
-    JSONObject setaMsg = new JSONObject();
 
     try {
       // Writes existing AP into database
       programResources.dbHandler.writeAp(
-        message.getString("id"),
+        message.getId(),
         "STIOT v 1.01",
-        message.getInt("max_power"),
-        message.getInt("channels"),
+        message.getMaxPower(),
+        message.getChannels(),
         Time.valueOf(DateManager.formatDate("00:mm:ss")),
-        message.getJSONObject("lora_stand").getString("name"),
-        message.getJSONObject("lora_stand").getString("version"),
+        message.getLoraStandName(),
+        message.getLoraStandVersion(),
         transmissionParamsId
       );
 
-      // Writes HW ID into software handler thread
-      st.setHwIdentifier(message.getString("id"));
-      // Gets transmission param for AP from DB
-      JSONObject params = new JSONObject(programResources.dbHandler.readTransmissionParams(transmissionParamsId));
-
-      // Builds transmission param array
-      JSONObject normalParam = new JSONObject();
-      normalParam.put("sf", 0); // Multi-spreading factor AP/s are always set on zero
-      normalParam.put("cr", params.get("coderate"));
-      normalParam.put("band", params.get("bandwidth"));
-      normalParam.put("type", "NORMAL");
-      normalParam.put("freqs", params.get("standard_freq"));
-
-      // Params for emergency message
-      JSONObject emerParam = new JSONObject(normalParam.toString());
-      emerParam.put("type", "EMER");
-      emerParam.put("freqs", params.get("emergency_freq"));
-
-      // Params for registration message
-      JSONObject regParam = new JSONObject(normalParam.toString());
-      regParam.put("type", "REG");
-      regParam.put("freqs", params.get("registration_freq"));
-
-      // Creates an array of params as a response
-      JSONArray messageBody = new JSONArray();
-      messageBody.put(emerParam);
-      messageBody.put(normalParam);
-      messageBody.put(regParam);
-
-      // Builds the answer message
-      setaMsg.put("message_name", "SETA");
-      setaMsg.put("message_body", messageBody);
+      // Writes HW ID into software handler thread, replaces previous connection of the same AP
+      programResources.sslConnection.apRegistry.bindHwIdentifier(st, message.getId());
+      // Gets transmission params for AP, EMER, NORMAL and REG blocks are encoded only once
+      TransmissionParams params = TransmissionParams.get(programResources, transmissionParamsId);
+
+      if (params == null) {
+        System.out.println("Unable to read transmission params " + transmissionParamsId);
+        return;
+      }
+
+      // AP offering encodings gets the chosen one, SETA itself is still JSON
+      Frame.Encoding encoding = negotiateEncoding(message.getEncodings());
+      SetupResponse setaMsg = new SetupResponse(params.getApParams(), message.getEncodings() != null ? encoding.getName() : null);
 
       System.out.println("New SETA msg built for AP: " + setaMsg);
-      st.write(setaMsg.toString());
+      st.write(setaMsg);
+      st.setEncoding(encoding);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
   /**
-   * Process key from KEYS
-   * @param message json STIoT message
+   * Chooses downlink encoding, the first one offered by AP which is enabled wins
+   * @param offered encodings in order of AP preference, e.g. ["cbor", "json"]
+   * @return Frame.Encoding, JSON when nothing else matches
    */
-  public void processKEYS(JSONObject message) {
-    try {
-      programResources.dbHandler.writeKey(
-        message.getString("dev_id"),
-        message.getInt("seq"),
-        message.getString("key")
-      );
-    } catch (JSONException e) {
-      e.printStackTrace();
+  private Frame.Encoding negotiateEncoding(List<String> offered) {
+    if (offered == null) {
+      return Frame.Encoding.JSON;
     }
+
+    for (String name : offered) {
+      Frame.Encoding encoding = Frame.Encoding.fromName(name);
+      if (encoding != null && encodings.contains(encoding)) {
+        return encoding;
+      }
+    }
+    return Frame.Encoding.JSON;
+  }
+
+  /**
+   * Process key from KEYS
+   * @param message decoded KEYS message
+   */
+  public void processKEYS(KeyShare message) {
+    programResources.dbHandler.writeKey(
+      message.getDevId(),
+      message.getSeq(),
+      message.getKey()
+    );
+    touchNode(message.getDevId());
   }
 
   /**
    * Returns encryption key
-   * @param message json message
-   * @return JSONObject
+   * @param message decoded KEYR message
+   * @return KEYA message or null when node is unknown
    */
-  public JSONObject processKEYR(JSONObject message) {
-    JSONObject keyAMsg = new JSONObject();
+  public KeyResponse processKEYR(KeyRequest message) {
     try {
-      String devId = message.getString("dev_id");
+      String devId = message.getDevId();
       System.out.println("This is DEV_ID " + devId);  
 
       String nodeData = programResources.dbHandler.readNode(devId);
@@ -137,32 +157,27 @@ public class APProcessor extends NodeProcessor {
         return null;
       }
 
-      JSONObject params = new JSONObject(programResources.dbHandler.readNode(devId));
-      JSONObject messageBody = new JSONObject();
-      messageBody.put("dev_id", devId);
-      messageBody.put("seq", params.get("last_seq"));
-      messageBody.put("key", params.get("dh_key"));
-      keyAMsg.put("message_name", "KEYA");
-      keyAMsg.put("message_body", messageBody);
+      JSONObject params = new JSONObject(nodeData);
+      KeyResponse keyAMsg = new KeyResponse(devId, params.getLong("last_seq"), params.isNull("dh_key") ? null : params.getString("dh_key"));
       System.out.println("New KEYA msg built for AP " + keyAMsg);
       return keyAMsg;
     } catch (JSONException e) {
       e.printStackTrace();
     }
-    return keyAMsg;
+    return null;
   }
 
   /**
    * Process registration request
    * @param currentGrape array list of message replicas
+   * @param primary best downlink candidate of the replicas, chosen by the concentrator
    */
-  public void processREGR(ArrayList<JSONObject> currentGrape) {
+  public void processREGR(ArrayList<Uplink> currentGrape, Uplink primary) {
     String preSharedKey = System.getenv("LONES_PRESHARED_KEY");
 
     try {
       System.out.println("Registering batch " + currentGrape.toString());
-      JSONObject primary = this.getPrimaryMessage(currentGrape);
-      int apIdentifier = primary.getInt("apIdentifier");
+      int apIdentifier = primary.getApIdentifier();
 
       // If message is received with exceptional quality decreases up power already, otherwise set power to max
       int upPw = maxPower;
@@ -170,7 +185,7 @@ public class APProcessor extends NodeProcessor {
       int spf = maxSpf;
 
       // Determine transmission power down
-      int rssi = primary.getInt("rssi");
+      int rssi = (int) primary.getRssi();
       if (rssi > this.downPowerSensitivity) {
         if (rssi > this.downSFSensitivity) {
           spf--;
@@ -187,7 +202,7 @@ public class APProcessor extends NodeProcessor {
 
       // Writes node into DB
       programResources.dbHandler.writeNode(
-        primary.getString("dev_id"),
+        primary.getDevId(),
         upPw,
         downPw,
         spf,
@@ -195,95 +210,89 @@ public class APProcessor extends NodeProcessor {
         appId,
         Transmission_PARAM_ID
       );
+      touchNode(primary.getDevId());
 
       // Preparing response
-      JSONObject REGAmsg = new JSONObject();
-      JSONObject messageBody = this.getRegaBody(primary, preSharedKey, spf, upPw, Transmission_PARAM_ID);
+      NodeDownlink REGAmsg = this.getRegaMessage(primary, preSharedKey, spf, upPw, Transmission_PARAM_ID);
 
-      if (messageBody == null) {
+      if (REGAmsg == null) {
         return;
       }
 
-      // Builds the reply message
-      REGAmsg.put("message_name","REGA");
-      REGAmsg.put("message_body", messageBody);
-      messageBody.put("time", MessageHelper.getMsgCost(messageBody, primary.getInt("sf"), primary.getInt("band")));
-
       System.out.println("New REGA msg created for AP: " + REGAmsg);
       // Sends answer do desired AP
-      this.programResources.sslConnection.socketThreadArrayList.get(apIdentifier).write(REGAmsg.toString());
+      this.programResources.sslConnection.apRegistry.send(primary.getHwIdentifier(), apIdentifier, REGAmsg);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
   /***
-   * Generates registration message body
-   * @param primary boolean
+   * Generates registration message
+   * @param primary primary replica of REGR
    * @param psk pre shared key
    * @param spf spreading factor
    * @param upPw uplink power
    * @param transmissionParamsId transmission params id
-   * @return REGA message body
+   * @return REGA message
    */
-  public JSONObject getRegaBody (JSONObject primary, String psk, int spf, int upPw, int transmissionParamsId) {
-    try {
-      // Creates response body
-      JSONObject messageBody = new JSONObject();
-      JSONArray netData;
-      String devId = primary.getString("dev_id");
+  public NodeDownlink getRegaMessage (Uplink primary, String psk, int spf, int upPw, int transmissionParamsId) {
+    NetData netData;
+    String devId = primary.getDevId();
 
-      if (this.isBanditAlgorithm) {
-        // String apId = primary.getString("hWIdentifier");
-        netData = this.getEnStatModel(devId);
+    if (this.isBanditAlgorithm) {
+      // String apId = primary.getString("hWIdentifier");
+      JSONArray model = this.getEnStatModel(devId);
 
-        if (netData == null) {
-          return null;
-        }
-
-        this.programResources.dbHandler.updateEnStatModel(devId, netData.toString());
-      } else {
-        netData = this.getNetData(spf, upPw, transmissionParamsId);
+      if (model == null) {
+        return null;
       }
 
-      messageBody.put("dev_id", devId);
-      messageBody.put("power", upPw);
-      messageBody.put("sh_key", psk);
-      messageBody.put("app_data", "");
-      messageBody.put("net_data", netData);
-      return messageBody;
-    } catch (JSONException e) {
-      return null;
+      this.programResources.dbHandler.updateEnStatModel(devId, model.toString());
+      netData = new NetData().addAll(model);
+    } else {
+      netData = this.getNetData(spf, upPw, transmissionParamsId);
+
+      if (netData == null) {
+        return null;
+      }
     }
+
+    int time = MessageHelper.getMsgCost(netData.size(), "", primary.getSf(), primary.getBand());
+    return new NodeDownlink(Downlink.REGA, devId, upPw, psk, "", netData, time);
   }
 
   /***
    * Updates bandit arms
-   * @param currentGrape array list of message replicas
+   * @param primary best downlink candidate of message replicas
    */
-  public void updateBandits(ArrayList<JSONObject> currentGrape) {
+  public void updateBandits(Uplink primary) {
     try {
-      JSONObject primary = this.getPrimaryMessage(currentGrape);
-      String apId = primary.getString("hWIdentifier");
-      String devId = primary.getString("dev_id");
+      String apId = primary.getHwIdentifier();
+      String devId = primary.getDevId();
 
-      int rssi = primary.getInt("rssi");
-      int sf = primary.getInt("sf");
-      int power = primary.getInt("power");
+      int rssi = (int) primary.getRssi();
+      int sf = primary.getSf();
+      int power = primary.getPower();
 
-      JSONArray apStatModel = this.getApStatModel(apId);
-      JSONArray enStatModel = this.getEnStatModel(devId);
-
-      if (apStatModel == null || enStatModel == null) {
+      // Determine transmission power down
+      if (rssi <= this.downPowerSensitivity) {
         return;
       }
 
-      // Determine transmission power down
-      if (rssi > this.downPowerSensitivity) {
-        if (rssi > this.downSFSensitivity) {
-          sf--;
-        } else {
-          power--;
+      if (rssi > this.downSFSensitivity) {
+        sf--;
+      } else {
+        power--;
+      }
+
+      // Read, update and write of AP model must not interleave with another device of the same AP
+      synchronized (apModelLocks.computeIfAbsent(String.valueOf(apId), k -> new Object())) {
+        JSONArray apStatModel = this.getApStatModel(apId);
+        JSONArray enStatModel = this.getEnStatModel(devId);
+
+        if (apStatModel == null || enStatModel == null) {
+          return;
         }
 
         MessageHelper.updateStatModel(apStatModel, sf, power, 1);
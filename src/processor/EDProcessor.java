@@ -1,12 +1,17 @@
 package processor;
 
+import connection.Frame;
+import core.Metrics;
 import core.ProgramResources;
 import helpers.MessageHelper;
+import message.Downlink;
+import message.NetData;
+import message.NodeDownlink;
+import message.Uplink;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -50,52 +55,98 @@ public class EDProcessor extends NodeProcessor {
     this.restrictionPoison = programResources.props.getInt("LoRaSettings.dutyCycleRestrictionPoisonRssiValue");
   }
 
+  /**
+   * Reads data for processing of RXL which do not depend on its primary replica, writes nothing
+   * Called for the first replica while the window is open, on the lane which later processes the window
+   * @param first any replica of the message
+   * @return prepared reads, null when they failed
+   */
+  public PreparedUplink prepareRXL(Uplink first) {
+    long start = System.nanoTime();
+    String devId = first.getDevId();
+    // Taken before the reads, node written during them makes the result stale
+    long stamp = getNodeStamp(devId);
+
+    try {
+      String nodeData = this.programResources.dbHandler.readNode(devId);
+
+      if (nodeData == null) {
+        return new PreparedUplink(devId, first.getType(), stamp, null, 0, null, null, System.nanoTime() - start);
+      }
+
+      JSONObject node = new JSONObject(nodeData);
+      int msgTypeId = programResources.dbHandler.readMessageType(first.getType());
+      JSONArray prevMsgs = this.loadPreviousMessages(first);
+      JSONObject pendingDownlink = new JSONObject(programResources.dbHandler.readDownlinkMsg(devId));
+      return new PreparedUplink(devId, first.getType(), stamp, node, msgTypeId, prevMsgs, pendingDownlink, System.nanoTime() - start);
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
   /**
    * Process RXL message
+   * Metrics: processing.prepared.hit / .stale / .miss, processing.prepared.saved (reads done before close),
+   * processing.txl.latency (processing start to TXL write)
    * @param currentGrape list of current messages in json
+   * @param primary best downlink candidate of the messages, chosen by the concentrator
+   * @param prepared reads done while the window was open, null to read now
+   * @return group the messages were written into, null when they were discarded
    */
-  public void processRXL(ArrayList<JSONObject> currentGrape) {
+  public UplinkGroup processRXL(ArrayList<Uplink> currentGrape, Uplink primary, PreparedUplink prepared) {
+    UplinkGroup group = null;
+    long start = System.nanoTime();
+
     try {
       System.out.println("Processing batch " + currentGrape.toString());
-      // Determines which message is used as primary
-      JSONObject primary = this.getPrimaryMessage(currentGrape);
-
       assert primary != null;
-      String devId = primary.getString("dev_id");
-      String nodeData = this.programResources.dbHandler.readNode(devId);
+      String devId = primary.getDevId();
+
+      // Revalidates prepared reads, node written since then is read again
+      if (prepared == null) {
+        Metrics.increment("processing.prepared.miss");
+        prepared = this.prepareRXL(primary);
+      } else if (!prepared.getDevId().equals(devId) || !prepared.getType().equals(primary.getType()) || prepared.getStamp() != getNodeStamp(devId)) {
+        Metrics.increment("processing.prepared.stale");
+        prepared = this.prepareRXL(primary);
+      } else {
+        Metrics.increment("processing.prepared.hit");
+        Metrics.record("processing.prepared.saved", prepared.getDuration());
+      }
 
-      if (nodeData == null) {
+      if (prepared == null) {
+        return group;
+      }
+
+      if (prepared.getNode() == null) {
         System.out.println("Message from unknown node discarded.");
-        return;
+        return group;
       }
 
-      JSONObject node = new JSONObject(nodeData);
+      JSONObject node = prepared.getNode();
 
       // Checks seq number of messages and updates last seq
       if (!this.checkSequenceNumber(primary, node)) {
-        return;
+        return group;
       }
 
       // If check was successful writes new seq into DB
       // jonsnow: Original line by Karol Cagáň
       // programResources.dbHandler.writeKey(primary.getString("dev_id"), primary.getInt("seq"), "");
 
-      // Update sequence number
-      programResources.dbHandler.updateSequence(devId, primary.getInt("seq"));
-
-      // Get message type id from DB
-      int msgTypeId = programResources.dbHandler.readMessageType(primary.getString("type"));
+      int msgTypeId = prepared.getMsgTypeId();
 
       int msgGroupId = 0;
-      JSONArray prevMsgs = this.loadPreviousMessages(primary);
+      JSONArray prevMsgs = prepared.getPrevMsgs();
 
       // Loads last N messages from DB
       int finalRssi = 0;
       int finalSnr = 0;
 
       if (prevMsgs.length() < 1) {
-        finalRssi = primary.getInt("rssi");
-        finalSnr = primary.getInt("snr");
+        finalRssi = (int) primary.getRssi();
+        finalSnr = (int) primary.getSnr();
       } else {
         for (int i = 0; i < prevMsgs.length(); i++) {
           JSONObject current = prevMsgs.getJSONObject(i);
@@ -110,84 +161,95 @@ public class EDProcessor extends NodeProcessor {
         finalSnr = finalSnr / prevMsgs.length();
       }
 
-      // Bulk insert of uplink messages
-      programResources.dbHandler.bulkInsertUplinkMessages(currentGrape, primary, msgGroupId, msgTypeId);
+      group = new UplinkGroup(msgGroupId, msgTypeId);
 
       //---COMMUNICATION PARAMS ALGORITHM SELECTION
-      JSONObject messageBody;
-
-      if (this.isBanditAlgorithm) {
-        messageBody = this.mabAlgorithm(primary, finalRssi, finalSnr);
-      } else {
-        messageBody = this.adrAlgorithm(primary, finalRssi, finalSnr);
-      }
+      NodeDownlink txlMsg = null;
+      int remainingDutyC = 0;
 
-      if (messageBody == null) {
-        return;
-      }
+      try {
+        if (this.isBanditAlgorithm) {
+          txlMsg = this.mabAlgorithm(primary, finalRssi, finalSnr);
+        } else {
+          txlMsg = this.adrAlgorithm(primary, finalRssi, finalSnr, prepared.getPendingDownlink());
+        }
 
-      JSONObject txlMsg = new JSONObject();
-      txlMsg.put("message_name", "TXL");
-      txlMsg.put("message_body", messageBody);
+        if (txlMsg != null) {
+          if (primary.getType().equals(Uplink.TYPE_EMERGENCY)) {
+            txlMsg.setPriority(Frame.Priority.EMERGENCY);
+          }
 
-      System.out.println("New TXL reply for AP");
-      System.out.println(txlMsg);
+          System.out.println("New TXL reply for AP");
+          System.out.println(txlMsg);
 
-      // Checks for duty Cycle duration of a message
-      int remainingDutyC = 0;
+          // Checks for duty Cycle duration of a message
+          try {
+            remainingDutyC = this.getRemainingDutyCycle(txlMsg, primary.getSf(), primary.getBand(), primary.getDutyC());
+          } catch (Exception e) {
+            System.out.println("There was a problem during duty cycle recalculation");
+          }
 
-      try {
-        remainingDutyC = this.getRemainingDutyCycle(messageBody, primary.getInt("sf"), primary.getInt("band"), primary.getInt("duty_c"));
-      } catch (Exception e) {
-        System.out.println("There was a problem during duty cycle recalculation");
+          // Sends message to desired AP
+          if (remainingDutyC > 0) {
+            this.programResources.sslConnection.apRegistry.send(primary.getHwIdentifier(), primary.getApIdentifier(), txlMsg);
+            Metrics.recordSince("processing.txl.latency", start);
+          }
+        }
+      } finally {
+        // Queued only after TXL is sent, so a full write-behind queue does not delay it
+        // Update sequence number, node read sees it right away, reads prepared for later windows of the node become stale
+        programResources.dbHandler.getWriteBehind().updateSequence(devId, primary.getSeq());
+        touchNode(devId);
+        // Bulk insert of uplink messages
+        programResources.dbHandler.getWriteBehind().bulkInsertUplinkMessages(currentGrape, primary, msgGroupId, msgTypeId);
       }
 
-      // Sends message to desired AP
-      int apIdentifier = primary.getInt("apIdentifier");
+      if (txlMsg == null) {
+        return group;
+      }
 
       if (remainingDutyC > 0) {
-        JSONObject rawResponse = new JSONObject(programResources.dbHandler.readDownlinkMsg(devId));
-        this.programResources.sslConnection.socketThreadArrayList.get(apIdentifier).write(txlMsg.toString());
+        JSONObject rawResponse = prepared.getPendingDownlink();
         System.out.println("****** Raw response " + rawResponse.toString());
 
         if (rawResponse.toString().equals("{}")) {
           // Write new message and send it to AP
-          this.programResources.dbHandler.writeSentDownlinkMsg(
-                  messageBody.getString("app_data"),
-                  messageBody.getString("net_data"),
+          this.programResources.dbHandler.getWriteBehind().writeSentDownlinkMsg(
+                  txlMsg.getAppData(),
+                  txlMsg.getNetData().toJson(),
                   remainingDutyC,
-                  Float.parseFloat(primary.getString("freq")),
-                  primary.getInt("sf"),
-                  messageBody.getInt("power"),
-                  primary.getInt("time"),
-                  primary.getString("cr"),
-                  primary.getInt("band"),
-                  primary.getString("hWIdentifier"),
-                  messageBody.getString("dev_id")
+                  primary.getFreq(),
+                  primary.getSf(),
+                  txlMsg.getPower(),
+                  (int) primary.getTime(),
+                  primary.getCr(),
+                  primary.getBand(),
+                  primary.getHwIdentifier(),
+                  txlMsg.getDevId()
           );
         } else {
           // Marks messages as sent in DB
-          this.programResources.dbHandler.markDownlinkAsSent(rawResponse.getInt("id"), remainingDutyC);
+          this.programResources.dbHandler.getWriteBehind().markDownlinkAsSent(rawResponse.getInt("id"), remainingDutyC, txlMsg.getDevId());
         }
       } else {
         // Version 1.0 does not support network data buffering
         System.out.println("Unable to deliver message due to insufficient duty cycle. Oversize of: " + remainingDutyC * (-1));
       }
-    } catch (JSONException | IOException e) {
+    } catch (JSONException e) {
       e.printStackTrace();
     }
+    return group;
   }
 
   /**
    * Returns remaining duty cycle after a msg is sent
-   * @param msgBody json body of message
+   * @param message downlink message
    * @param sf value of spreading factor
    * @param dutyCycleBeforeSent value of remaining duty cycle
    * @return int
-   * @throws Exception
    */
-  public int getRemainingDutyCycle(JSONObject msgBody, int sf, int band, int dutyCycleBeforeSent) throws Exception {
-    return dutyCycleBeforeSent - MessageHelper.getMsgCost(msgBody, sf, band);
+  public int getRemainingDutyCycle(NodeDownlink message, int sf, int band, int dutyCycleBeforeSent) {
+    return dutyCycleBeforeSent - MessageHelper.getMsgCost(message.getNetData().size(), message.getAppData(), sf, band);
   }
 
   /***
@@ -197,8 +259,8 @@ public class EDProcessor extends NodeProcessor {
    * @return whether appropriate sequence number
    * @throws JSONException
    */
-  private Boolean checkSequenceNumber (JSONObject primary, JSONObject node) throws JSONException {
-    int seq = primary.getInt("seq");
+  private Boolean checkSequenceNumber (Uplink primary, JSONObject node) throws JSONException {
+    int seq = primary.getSeq();
     int lastSeq = node.getInt("last_seq");
 
     if (seq > lastSeq + this.seqTolerance || seq <= lastSeq) {
@@ -213,14 +275,14 @@ public class EDProcessor extends NodeProcessor {
 
   /**
    * Load previous messages
-   * @param primary received primary message
+   * @param uplink any replica of received message
    * @return JSON array of last n messages
    * @throws JSONException
    */
-  private JSONArray loadPreviousMessages (JSONObject primary) throws JSONException {
-    System.out.println("Primary packet: " + primary.toString());
-    System.out.println("Node id: " + primary.getString("dev_id"));
-    String lastMsg = programResources.dbHandler.readLastNMessages(primary.getString("dev_id"));
+  private JSONArray loadPreviousMessages (Uplink uplink) throws JSONException {
+    System.out.println("Packet: " + uplink.toString());
+    System.out.println("Node id: " + uplink.getDevId());
+    String lastMsg = programResources.dbHandler.readLastNMessages(uplink.getDevId());
 
     if (lastMsg != null && !lastMsg.equals("[]")) {
       return new JSONArray(lastMsg);
@@ -268,23 +330,21 @@ public class EDProcessor extends NodeProcessor {
    * @param primary primary message
    * @param finalRssi average RSSI value
    * @param finalSnr average SNR value
-   * @return messageBody
+   * @return TXL message
    * @throws JSONException
    */
-  private JSONObject mabAlgorithm (JSONObject primary, int finalRssi, int finalSnr) throws JSONException {
-    String ackType = primary.getString("ack");
+  private NodeDownlink mabAlgorithm (Uplink primary, int finalRssi, int finalSnr) throws JSONException {
+    String ackType = primary.getAck();
 
-    if (ackType.equals("UNSUPPORTED")) {
+    if (Uplink.ACK_UNSUPPORTED.equals(ackType)) {
       return null;
     }
 
-    int sf = primary.getInt("sf");
-    int power = primary.getInt("power");
-    String devId = primary.getString("dev_id");
-    boolean confNeed = primary.getBoolean("conf_need");
+    int sf = primary.getSf();
+    int power = primary.getPower();
+    String devId = primary.getDevId();
+    boolean confNeed = primary.isConfNeed();
 
-    JSONObject message = new JSONObject();
-    JSONObject messageBody = new JSONObject();
     JSONArray arms = this.getEnStatModel(devId);
 
     if (arms == null) {
@@ -293,42 +353,28 @@ public class EDProcessor extends NodeProcessor {
 
     // Updated combination is returned
     JSONObject banditArm = this.statModelChange(devId, finalRssi, finalSnr, sf, power, confNeed);
-    JSONArray netData = new JSONArray();
+    NetData netData = new NetData();
 
     if (banditArm != null) {
       System.out.println("Bandit arm " + banditArm.toString());
       MessageHelper.updateStatModel(arms, banditArm.getInt("sf"), banditArm.getInt("pw"), 1);
-      System.out.println(primary.getString("dev_id") + ": Statistical model updated");
+      System.out.println(devId + ": Statistical model updated");
 
       // Only sent net data when ack is not required
       // Nodes are able to update rewards for mandatory messages themselves
       // if (ackType.equals("VOLATILE")) {
-      System.out.println(primary.getString("dev_id") + ": Network data update scheduled");
-      netData.put(banditArm);
+      System.out.println(devId + ": Network data update scheduled");
+      netData.addArm(banditArm.getInt("sf"), banditArm.getInt("pw"), banditArm.getInt("rw"));
       // }
     }
 
-    if (netData.length() == 0) {
-      System.out.println(primary.getString("dev_id") + ": Bandit arm not updated");
+    if (netData.isEmpty()) {
+      System.out.println(devId + ": Bandit arm not updated");
       return null;
     }
 
-    message.put("message_name", "TXL");
-    messageBody.put("dev_id", devId);
-    messageBody.put("app_data", "");
-    messageBody.put("net_data", netData);
-    messageBody.put("power", power);
-    message.put("message_body", messageBody);
-
-    try {
-      messageBody.put("time", MessageHelper.getMsgCost(messageBody, sf, primary.getInt("band")));
-    } catch (Exception e) {
-      System.out.println("Unable to calculate airtime for downlink message");
-      e.printStackTrace();
-      return null;
-    }
-
-    return messageBody;
+    int time = MessageHelper.getMsgCost(netData.size(), "", sf, primary.getBand());
+    return new NodeDownlink(Downlink.TXL, devId, power, null, "", netData, time);
   }
 
   /***
@@ -336,27 +382,25 @@ public class EDProcessor extends NodeProcessor {
    * @param primary primary message
    * @param finalRssi average RSSI value
    * @param finalSnr average SNR value
-   * @return messageBody
+   * @param rawResponse unsent downlink of the node, empty object when there is none
+   * @return TXL message
    * @throws JSONException
    */
-  private JSONObject adrAlgorithm (JSONObject primary, int finalRssi, int finalSnr) throws JSONException {
-    String devId = primary.getString("dev_id");
-    String ackType = primary.getString("ack");
+  private NodeDownlink adrAlgorithm (Uplink primary, int finalRssi, int finalSnr, JSONObject rawResponse) throws JSONException {
+    String devId = primary.getDevId();
+    String ackType = primary.getAck();
 
     // Quits if response unavailable
-    if (ackType.equals("UNSUPPORTED")) {
+    if (ackType == null || ackType.equals(Uplink.ACK_UNSUPPORTED)) {
       return null;
     }
 
     // Determines transmission power down
-    boolean confNeed = primary.getBoolean("conf_need");
+    boolean confNeed = primary.isConfNeed();
     boolean powerChanged = this.updatePower(devId, finalRssi, finalSnr, confNeed);
 
-    // Searches buffer for unsent response
-    JSONObject rawResponse = new JSONObject(programResources.dbHandler.readDownlinkMsg(devId));
-
     // Checks if there is a pending reply, or reconfiguration needed or both
-    if ((ackType.equals("VOLATILE") || ackType.equals("MANDATORY")) && (!rawResponse.toString().equals("{}") || confNeed || ackType.equals("MANDATORY") || powerChanged)) {
+    if ((ackType.equals(Uplink.ACK_VOLATILE) || ackType.equals(Uplink.ACK_MANDATORY)) && (!rawResponse.toString().equals("{}") || confNeed || ackType.equals(Uplink.ACK_MANDATORY) || powerChanged)) {
       // Reads power settings
       int downPw = 0;
       int upPw = 0;
@@ -376,42 +420,31 @@ public class EDProcessor extends NodeProcessor {
         this.programResources.dbHandler.updatePower(devId, 0, 0, 0);
       }
 
-      // Builds skeleton for a response
-      JSONArray netData = new JSONArray();
-      JSONObject messageBody = new JSONObject();
-      messageBody.put("dev_id", devId);
-      messageBody.put("power", downPw);
-
       // Packs app data if available
+      String appData = "";
       if (!rawResponse.toString().equals("{}")) {
-        messageBody.put("app_data", rawResponse.get("app_data"));
-      } else {
-        messageBody.put("app_data", "");
+        appData = rawResponse.getString("app_data");
       }
 
       // Packs network data if required
+      NetData netData = new NetData();
       if (confNeed) {
         netData = this.getNetData(spf, upPw, edTransmissionParamId);
+
+        if (netData == null) {
+          System.out.println("Unable to read transmission params " + edTransmissionParamId);
+          return null;
+        }
       }
 
       // If nodes transmitting power needs to be decreased, packs the config
       if (powerChanged) {
-        netData.put(this.getNormalParams(spf, upPw));
+        this.addNormalParams(netData, spf, upPw);
       }
 
-      // Packs net data
-      messageBody.put("net_data", netData);
-
       // Calculate airtime for downlink messages
-      try {
-        messageBody.put("time", MessageHelper.getMsgCost(messageBody, spf, primary.getInt("band")));
-      } catch (Exception e) {
-        System.out.println("Unable to calculate airtime for downlink message");
-        e.printStackTrace();
-        return null;
-      }
-
-      return messageBody;
+      int time = MessageHelper.getMsgCost(netData.size(), appData, spf, primary.getBand());
+      return new NodeDownlink(Downlink.TXL, devId, downPw, null, appData, netData, time);
     }
     return null;
   }
@@ -2,11 +2,13 @@ package processor;
 
 import core.ProgramResources;
 import core.Props;
+import message.NetData;
+import message.Uplink;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Node processing logic
@@ -14,6 +16,9 @@ import java.util.ArrayList;
  * @version 0.3
  */
 public abstract class NodeProcessor {
+  // Bumped on each write to a node, reads prepared under an older stamp are repeated
+  // Nodes share stamps by hash, collision only costs a repeated read
+  private static final AtomicLongArray nodeStamps = new AtomicLongArray(4096);
   protected ProgramResources programResources;
   protected int maxDutyMillis;
   protected int snrSensitivity;
@@ -56,13 +61,35 @@ public abstract class NodeProcessor {
     this.isBanditAlgorithm = algorithm.equals("mab");
   }
 
+  /**
+   * Marks node as written, to be called after the write
+   * @param devId end node identifier
+   */
+  protected static void touchNode(String devId) {
+    nodeStamps.incrementAndGet(stampIndex(devId));
+  }
+
+  /**
+   * Stamp of node, to be taken before reading the node
+   * @param devId end node identifier
+   * @return long
+   */
+  protected static long getNodeStamp(String devId) {
+    return nodeStamps.get(stampIndex(devId));
+  }
+
+  private static int stampIndex(String devId) {
+    int hash = devId.hashCode();
+    return (hash ^ (hash >>> 16)) & (nodeStamps.length() - 1);
+  }
+
   /**
    * Calculates metric for selected downlink messages
    * @param rssi value of rssi
    * @param dutyCycleRemaining remaining duty cycle value
    * @return float
    */
-  protected float getMetric(int rssi, int dutyCycleRemaining) {
+  public float getMetric(int rssi, int dutyCycleRemaining) {
     float dutyCyclePercent = Math.round((dutyCycleRemaining * 100.0) / maxDutyMillis);
 
     // If more dutyC remaining than sensitivity boundary does not poison RSSI
@@ -88,25 +115,12 @@ public abstract class NodeProcessor {
   }
 
   /***
-   * Determines primary message from list of messages and returns it
-   * @param currentGrape list containing copies of one messages from different APs
-   * @return JSONObject primary message
-   * @throws JSONException
+   * Metric of a replica as downlink candidate, the best replica of a group becomes primary
+   * @param message replica of uplink message
+   * @return float
    */
-  protected JSONObject getPrimaryMessage (ArrayList<JSONObject> currentGrape) throws JSONException {
-    JSONObject primary = null;
-
-    for (JSONObject message : currentGrape) {
-      if (primary == null) {
-        primary = message;
-      } else {
-        // Determine the best downlink candidate
-        if (getMetric(primary.getInt("rssi"), primary.getInt("duty_c")) < getMetric(message.getInt("rssi"), message.getInt("duty_c"))) {
-          primary = message;
-        }
-      }
-    }
-    return primary;
+  public float getMetric(Uplink message) {
+    return getMetric((int) message.getRssi(), message.getDutyC());
   }
 
   /**
@@ -114,51 +128,23 @@ public abstract class NodeProcessor {
    * @param spf spreading factor
    * @param upPw uplink power
    * @param transmissionParamsId transmission params id
-   * @return JSON array of net data
-   * @throws JSONException
+   * @return net data with EMER, NORMAL and REG params, null when params cannot be read
    */
-  public JSONArray getNetData(int spf, int upPw, int transmissionParamsId) throws JSONException {
-    JSONObject params = new JSONObject(programResources.dbHandler.readTransmissionParams(transmissionParamsId));
-
-    // Builds transmission param array
-    JSONObject normalParam = this.getNormalParams(spf, upPw);
-    normalParam.put("cr", params.get("coderate"));
-    normalParam.put("band", params.get("bandwidth"));
-    normalParam.put("freqs", params.get("standard_freq"));
-
-    JSONObject emerParam = new JSONObject(normalParam.toString());
-    emerParam.put("type", "EMER");
-    emerParam.put("sf", maxSpf);
-    emerParam.put("power", maxPower);
-    emerParam.put("freqs", params.get("emergency_freq"));
-
-    JSONObject regParam = new JSONObject(normalParam.toString());
-    regParam.put("type", "REG");
-    regParam.put("sf", maxSpf);
-    regParam.put("power", maxPower);
-    regParam.put("freqs", params.get("registration_freq"));
-
-    // Creates an array of params as a response
-    JSONArray netData = new JSONArray();
-    netData.put(emerParam);
-    netData.put(normalParam);
-    netData.put(regParam);
-    return netData;
+  public NetData getNetData(int spf, int upPw, int transmissionParamsId) {
+    // EMER and REG blocks are constant for params id and encoded only once
+    TransmissionParams params = TransmissionParams.get(programResources, transmissionParamsId);
+    return params == null ? null : params.getNetData(spf, upPw);
   }
 
   /***
-   * Get normal params as JSON
+   * Adds normal params to net data
+   * @param netData net data of the downlink
    * @param spf
    * @param upPw
-   * @return
-   * @throws JSONException
+   * @return net data
    */
-  public JSONObject getNormalParams(int spf, int upPw) throws JSONException {
-    JSONObject normalParam = new JSONObject();
-    normalParam.put("type", "NORMAL");
-    normalParam.put("power", upPw);
-    normalParam.put("sf", spf);
-    return normalParam;
+  public NetData addNormalParams(NetData netData, int spf, int upPw) {
+    return netData.addParams("NORMAL", upPw, spf, null);
   }
 
   /***
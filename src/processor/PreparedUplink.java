@@ -0,0 +1,75 @@
+package processor;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Database reads of RXL processing done while its concentration window is still open
+ * Holds only data which does not depend on the primary replica, nothing is written while preparing
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class PreparedUplink {
+  private final String devId;
+  private final String type;
+  private final long stamp;
+  private final JSONObject node;
+  private final int msgTypeId;
+  private final JSONArray prevMsgs;
+  private final JSONObject pendingDownlink;
+  private final long duration;
+
+  /**
+   * Constructor
+   * @param devId end node identifier
+   * @param type uplink message type
+   * @param stamp node stamp taken before the reads
+   * @param node node row, null for unknown node
+   * @param msgTypeId message type id
+   * @param prevMsgs last messages of the node
+   * @param pendingDownlink unsent downlink of the node, empty object when there is none
+   * @param duration time spent preparing in ns
+   */
+  public PreparedUplink(String devId, String type, long stamp, JSONObject node, int msgTypeId, JSONArray prevMsgs, JSONObject pendingDownlink, long duration) {
+    this.devId = devId;
+    this.type = type;
+    this.stamp = stamp;
+    this.node = node;
+    this.msgTypeId = msgTypeId;
+    this.prevMsgs = prevMsgs;
+    this.pendingDownlink = pendingDownlink;
+    this.duration = duration;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getStamp() {
+    return stamp;
+  }
+
+  public JSONObject getNode() {
+    return node;
+  }
+
+  public int getMsgTypeId() {
+    return msgTypeId;
+  }
+
+  public JSONArray getPrevMsgs() {
+    return prevMsgs;
+  }
+
+  public JSONObject getPendingDownlink() {
+    return pendingDownlink;
+  }
+
+  public long getDuration() {
+    return duration;
+  }
+}
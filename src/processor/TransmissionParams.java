@@ -0,0 +1,130 @@
+package processor;
+
+import core.ProgramResources;
+import message.Fragment;
+import message.MessageWriter;
+import message.NetData;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transmission params of one id with constant parts of downlinks encoded in advance
+ * Params are read from database once, changes in transmission_params table require restart
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class TransmissionParams {
+  private static final ConcurrentHashMap<Integer, TransmissionParams> cache = new ConcurrentHashMap<>();
+
+  private static final MessageWriter.Key TYPE = new MessageWriter.Key("type");
+  private static final MessageWriter.Key POWER = new MessageWriter.Key("power");
+  private static final MessageWriter.Key SF = new MessageWriter.Key("sf");
+  private static final MessageWriter.Key CR = new MessageWriter.Key("cr");
+  private static final MessageWriter.Key BAND = new MessageWriter.Key("band");
+  private static final MessageWriter.Key FREQS = new MessageWriter.Key("freqs");
+
+  // EMER, NORMAL and REG blocks of SETA body, multi-spreading factor AP/s are always set on zero
+  private final Fragment apParams;
+  // EMER and REG blocks of node net data, always max spreading factor and power
+  private final Fragment emerParams;
+  private final Fragment regParams;
+  // cr, band and freqs of NORMAL block of node net data
+  private final Fragment normalRest;
+
+  private TransmissionParams(JSONObject params, int maxSpf, int maxPower) {
+    Object cr = params.opt("coderate");
+    Object band = params.opt("bandwidth");
+    Object standardFreq = params.opt("standard_freq");
+    Object emergencyFreq = params.opt("emergency_freq");
+    Object registrationFreq = params.opt("registration_freq");
+
+    this.apParams = Fragment.entries(3, writer -> {
+      apBlock(writer, "EMER", cr, band, emergencyFreq);
+      apBlock(writer, "NORMAL", cr, band, standardFreq);
+      apBlock(writer, "REG", cr, band, registrationFreq);
+    });
+    this.emerParams = Fragment.value(writer -> nodeBlock(writer, "EMER", maxPower, maxSpf, cr, band, emergencyFreq));
+    this.regParams = Fragment.value(writer -> nodeBlock(writer, "REG", maxPower, maxSpf, cr, band, registrationFreq));
+    this.normalRest = Fragment.entries(3, writer -> {
+      writer.key(CR).json(cr);
+      writer.key(BAND).json(band);
+      writer.key(FREQS).json(standardFreq);
+    });
+  }
+
+  /**
+   * Returns params of given id, reads them from database on first use
+   * @param programResources program resources with database and LoRa settings
+   * @param transmissionParamsId transmission params id
+   * @return TransmissionParams or null when params cannot be read
+   */
+  public static TransmissionParams get(ProgramResources programResources, int transmissionParamsId) {
+    TransmissionParams params = cache.get(transmissionParamsId);
+
+    if (params == null) {
+      String row = programResources.dbHandler.readTransmissionParams(transmissionParamsId);
+
+      if (row == null) {
+        return null;
+      }
+
+      try {
+        params = new TransmissionParams(new JSONObject(row),
+          programResources.props.getInt("LoRaSettings.maxSpf"), programResources.props.getInt("LoRaSettings.maxPower"));
+      } catch (JSONException e) {
+        e.printStackTrace();
+        return null;
+      }
+
+      TransmissionParams previous = cache.putIfAbsent(transmissionParamsId, params);
+      if (previous != null) {
+        params = previous;
+      }
+    }
+    return params;
+  }
+
+  /**
+   * Items of SETA body
+   * @return Fragment
+   */
+  public Fragment getApParams() {
+    return apParams;
+  }
+
+  /**
+   * Net data for node reconfiguration, EMER, NORMAL and REG blocks
+   * @param spf spreading factor
+   * @param upPw uplink power
+   * @return NetData
+   */
+  public NetData getNetData(int spf, int upPw) {
+    return new NetData()
+      .add(emerParams)
+      .addParams("NORMAL", upPw, spf, normalRest)
+      .add(regParams);
+  }
+
+  private static void apBlock(MessageWriter writer, String type, Object cr, Object band, Object freqs) {
+    writer.beginObject(5);
+    writer.key(SF).value(0);
+    writer.key(CR).json(cr);
+    writer.key(BAND).json(band);
+    writer.key(TYPE).value(type);
+    writer.key(FREQS).json(freqs);
+    writer.endObject();
+  }
+
+  private static void nodeBlock(MessageWriter writer, String type, int power, int sf, Object cr, Object band, Object freqs) {
+    writer.beginObject(6);
+    writer.key(TYPE).value(type);
+    writer.key(POWER).value(power);
+    writer.key(SF).value(sf);
+    writer.key(CR).json(cr);
+    writer.key(BAND).json(band);
+    writer.key(FREQS).json(freqs);
+    writer.endObject();
+  }
+}
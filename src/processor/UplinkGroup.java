@@ -0,0 +1,24 @@
+package processor;
+
+/**
+ * Message group written for processed uplink, replicas arriving late join it
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class UplinkGroup {
+  private final int msgGroupId;
+  private final int msgTypeId;
+
+  public UplinkGroup(int msgGroupId, int msgTypeId) {
+    this.msgGroupId = msgGroupId;
+    this.msgTypeId = msgTypeId;
+  }
+
+  public int getMsgGroupId() {
+    return msgGroupId;
+  }
+
+  public int getMsgTypeId() {
+    return msgTypeId;
+  }
+}
@@ -0,0 +1,257 @@
+package traffic;
+
+import message.Uplink;
+import processor.PreparedUplink;
+import processor.UplinkGroup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Copies of one LoRa message received by different AP-s during concentration
+ * Window is open until its timer closes it, replica arriving later opens a new window
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class ConcentrationWindow {
+  /**
+   * Outcome of adding a replica
+   */
+  public enum Added {
+    ADDED,
+    // AP already reported the message, replica is a replay
+    REPEATED,
+    // Window has been closed, replica must open a new window
+    CLOSED
+  }
+
+  private final DedupKey key;
+  private final String type;
+  private final long openedAt;
+  private final ArrayList<Uplink> replicas;
+  // Best downlink candidate so far, kept as replicas arrive
+  private Uplink primary;
+  private float primaryMetric;
+  // Arrival of each replica in ms since the window was opened
+  private int[] arrivals;
+  private boolean closed = false;
+  private boolean closing = false;
+  // Set once replicas are processed, late replicas join this group
+  private volatile UplinkGroup group;
+  private boolean processed = false;
+  // Late replicas which arrived before the group was known
+  private ArrayList<Uplink> pendingLate;
+  // AP-s of absorbed late replicas
+  private ArrayList<String> lateAps;
+  // Reads of processing done while the window is open
+  private volatile PreparedUplink prepared;
+
+  /**
+   * Constructor
+   * @param key matching table key
+   * @param first replica which opened the window
+   * @param metric downlink metric of the replica
+   */
+  public ConcentrationWindow(DedupKey key, Uplink first, float metric) {
+    this.key = key;
+    this.type = first.getType();
+    this.openedAt = System.nanoTime();
+    this.replicas = new ArrayList<>(4);
+    this.replicas.add(first);
+    this.arrivals = new int[4];
+    this.primary = first;
+    this.primaryMetric = metric;
+  }
+
+  public DedupKey getKey() {
+    return key;
+  }
+
+  /**
+   * Type of the first replica, all replicas of a window share it
+   * @return String
+   */
+  public String getType() {
+    return type;
+  }
+
+  public String getDevId() {
+    return key.getDevId();
+  }
+
+  /**
+   * System.nanoTime() when the first replica arrived
+   * @return long
+   */
+  public long getOpenedAt() {
+    return openedAt;
+  }
+
+  /**
+   * Appends replica unless the window is already closed or its AP has already reported the message
+   * @param uplink replica from another AP
+   * @param metric downlink metric of the replica, replica with strictly better metric becomes primary
+   * @return Added
+   */
+  public synchronized Added add(Uplink uplink, float metric) {
+    if (closed) {
+      return Added.CLOSED;
+    }
+    if (hasReplicaFrom(DeviceProfile.apOf(uplink))) {
+      return Added.REPEATED;
+    }
+    if (replicas.size() == arrivals.length) {
+      arrivals = Arrays.copyOf(arrivals, arrivals.length * 2);
+    }
+    arrivals[replicas.size()] = (int) ((System.nanoTime() - openedAt) / 1000000);
+    replicas.add(uplink);
+
+    if (metric > primaryMetric) {
+      primary = uplink;
+      primaryMetric = metric;
+    }
+    return Added.ADDED;
+  }
+
+  /**
+   * Best downlink candidate among replicas
+   * @return Uplink
+   */
+  public synchronized Uplink getPrimary() {
+    return primary;
+  }
+
+  /**
+   * Whether any replica, including absorbed late one, came from given AP
+   * @param ap AP identifier as used by DeviceProfile
+   * @return boolean
+   */
+  public synchronized boolean hasReplicaFrom(String ap) {
+    for (Uplink replica : replicas) {
+      if (ap.equals(DeviceProfile.apOf(replica))) {
+        return true;
+      }
+    }
+    return lateAps != null && lateAps.contains(ap);
+  }
+
+  /**
+   * Records AP of late replica of the closed window unless it has already reported the message
+   * @param ap AP identifier as used by DeviceProfile
+   * @return false when the AP has already reported the message, late replica is a replay
+   */
+  public synchronized boolean addLateFrom(String ap) {
+    if (hasReplicaFrom(ap)) {
+      return false;
+    }
+
+    if (lateAps == null) {
+      lateAps = new ArrayList<>(1);
+    }
+    lateAps.add(ap);
+    return true;
+  }
+
+  /**
+   * Marks window for closing before its timer, only the first call succeeds
+   * @return true when window has not been marked nor closed yet
+   */
+  public synchronized boolean markClosing() {
+    if (closing || closed) {
+      return false;
+    }
+    closing = true;
+    return true;
+  }
+
+  /**
+   * Number of replicas caught so far
+   * @return int
+   */
+  public synchronized int size() {
+    return replicas.size();
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes window, no replica is added afterwards
+   * @return all replicas of the window, null when it has already been closed
+   */
+  public synchronized ArrayList<Uplink> close() {
+    if (closed) {
+      return null;
+    }
+    closed = true;
+    return replicas;
+  }
+
+  /**
+   * Group the replicas were written into
+   * @return UplinkGroup or null when not processed yet, discarded or not an RXL
+   */
+  public UplinkGroup getGroup() {
+    return group;
+  }
+
+  /**
+   * Sets group of processed replicas
+   * @param group written group, null when discarded
+   * @return late replicas which arrived before, to be written into the group, or null
+   */
+  public synchronized ArrayList<Uplink> setGroup(UplinkGroup group) {
+    this.group = group;
+    this.processed = true;
+    ArrayList<Uplink> late = pendingLate;
+    pendingLate = null;
+    return late;
+  }
+
+  /**
+   * Keeps late replica until processing of the window sets its group
+   * @param uplink late replica
+   * @return false when the window has been processed already, replica is written into getGroup() right away
+   */
+  public synchronized boolean deferLate(Uplink uplink) {
+    if (processed) {
+      return false;
+    }
+
+    if (pendingLate == null) {
+      pendingLate = new ArrayList<>(1);
+    }
+    pendingLate.add(uplink);
+    return true;
+  }
+
+  /**
+   * Reads prepared for processing of the window
+   * @return PreparedUplink or null when not prepared
+   */
+  public PreparedUplink getPrepared() {
+    return prepared;
+  }
+
+  public void setPrepared(PreparedUplink prepared) {
+    this.prepared = prepared;
+  }
+
+  /**
+   * Replicas of closed window
+   * @return list of replicas in order of arrival
+   */
+  public synchronized ArrayList<Uplink> getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * Arrival of replica since the window was opened
+   * @param index replica index
+   * @return ms
+   */
+  public synchronized int getArrival(int index) {
+    return arrivals[index];
+  }
+}
@@ -1,49 +1,36 @@
 package traffic;
 
 /**
- * Waits for LoRa messages to synchronize
+ * Closes concentration window of a LoRa message once other copies had time to arrive
+ * Scheduled on the shared timer of LoRaConcentrator, it does not wait itself
  * @author Karol Cagáň
  * @version 0.3
  */
-public class ConcentratorDeadTimer extends Thread {
-  private final String key;
+public class ConcentratorDeadTimer implements Runnable {
+  private final ConcentrationWindow window;
   private final LoRaConcentrator parent;
   private final boolean isRegistration;
-  private final boolean isEmergency;
-  private final int sleepTime;
 
   /**
    * Constructor
-   * @param key hash table key
+   * @param window concentration window to close
    * @param parent lora concentrator
-   * @param type message type
    */
-  public ConcentratorDeadTimer(String key, LoRaConcentrator parent, String type) {
-    this.key = key;
+  public ConcentratorDeadTimer(ConcentrationWindow window, LoRaConcentrator parent) {
+    this.window = window;
     this.parent = parent;
-    this.isRegistration = type.equals("reg");
-    this.isEmergency = type.equals("emer");
-    this.sleepTime = parent.programResources.props.getInt("ConcentratorDeadTimer.waitTime");
-    // this.run();
+    this.isRegistration = window.getType().equals("reg");
   }
 
   public void run() {
     try {
-      // Time to wait for all messages to come, e.g. synchronization timer
-      // No need to wait in case of emergency
-      if (!this.isEmergency) {
-        System.out.println("Waiting " + this.sleepTime + " ms for other messages");
-        sleep(this.sleepTime);
-      } else {
-        System.out.println("Emergency message received, skipping message synchronization");
-      }
-
       if (!isRegistration) {
-        parent.finalize(key);
+        parent.finalize(window);
       } else {
-        parent.register(key);
+        parent.register(window);
       }
-    } catch (InterruptedException e) {
+    } catch (RuntimeException e) {
+      // Keeps the worker thread for other windows
       e.printStackTrace();
     }
   }
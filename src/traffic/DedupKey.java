@@ -0,0 +1,89 @@
+package traffic;
+
+import message.Uplink;
+
+/**
+ * Matching table key identifying replicas of one LoRa message
+ * Holds references to strings of the replica which opened the window, nothing is concatenated or copied
+ * Payload is compared by 64-bit hash first, the payload itself only when hashes match
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public final class DedupKey {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final String devId;
+  private final int seq;
+  private final String data;
+  private final long dataHash;
+  private final int hash;
+
+  private DedupKey(String devId, int seq, String data, long dataHash) {
+    this.devId = devId;
+    this.seq = seq;
+    this.data = data;
+    this.dataHash = dataHash;
+    this.hash = (int) (dataHash ^ (dataHash >>> 32)) * 31 * 31 + devId.hashCode() * 31 + seq;
+  }
+
+  /**
+   * Creates key of received replica
+   * Registrations of a device are matched regardless of payload and sequence number
+   * @param uplink RXL or REGR
+   * @return DedupKey
+   */
+  public static DedupKey of(Uplink uplink) {
+    if (Uplink.TYPE_REGISTRATION.equals(uplink.getType())) {
+      return new DedupKey(uplink.getDevId(), -1, null, 0);
+    }
+    return new DedupKey(uplink.getDevId(), uplink.getSeq(), uplink.getData(), hash(uplink.getData()));
+  }
+
+  /**
+   * FNV-1a over UTF-16 code units, payload is base64 so one unit is one byte
+   * @param data payload
+   * @return 64-bit hash
+   */
+  static long hash(String data) {
+    if (data == null) {
+      return 0;
+    }
+
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < data.length(); i++) {
+      hash ^= data.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  public String getDevId() {
+    return devId;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+
+    if (!(other instanceof DedupKey)) {
+      return false;
+    }
+
+    DedupKey key = (DedupKey) other;
+    return hash == key.hash && seq == key.seq && dataHash == key.dataHash && devId.equals(key.devId)
+      && (data == null ? key.data == null : data.equals(key.data));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return devId + "/" + seq + "/" + Long.toHexString(dataHash);
+  }
+}
@@ -0,0 +1,163 @@
+package traffic;
+
+import message.Uplink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Learned reception pattern of one device: which AP-s usually report it and how late their replicas arrive
+ * Used to close concentration window as soon as the replicas which are expected have arrived
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class DeviceProfile {
+  private static final int DELAY_HISTORY = 64;
+  // Weight of newest window once the profile has enough history
+  private static final float MIN_WEIGHT = 0.1f;
+  // AP which has not reported the device for long is forgotten
+  private static final float FORGET_SHARE = 0.01f;
+
+  private final HashMap<String, Float> presence = new HashMap<>();
+  private final int[] delays = new int[DELAY_HISTORY];
+  private int delayCount = 0;
+  private int delayNext = 0;
+  private int windows = 0;
+  private int deadline = -1;
+  // Weight of the last learned window, late replica adds it to its AP
+  private float lastWeight = 0;
+  // System.nanoTime() of the last learned window, idle profile is dropped
+  private volatile long lastLearned = System.nanoTime();
+
+  /**
+   * Identifies AP which received the replica
+   * @param uplink replica
+   * @return hardware identifier, or internal one when AP has not sent SETR yet
+   */
+  static String apOf(Uplink uplink) {
+    return uplink.getHwIdentifier() != null ? uplink.getHwIdentifier() : "#" + uplink.getApIdentifier();
+  }
+
+  /**
+   * Updates profile with closed window
+   * @param window closed concentration window
+   * @param percentile percentile of replica delays used as deadline
+   * @param margin added to the percentile in ms
+   */
+  public synchronized void learn(ConcentrationWindow window, int percentile, int margin) {
+    ArrayList<Uplink> replicas = window.getReplicas();
+    HashSet<String> reported = new HashSet<>();
+
+    for (int i = 0; i < replicas.size(); i++) {
+      // Repeated replica of the same AP says nothing about other AP-s
+      if (reported.add(apOf(replicas.get(i))) && i > 0) {
+        delays[delayNext] = window.getArrival(i);
+        delayNext = (delayNext + 1) % DELAY_HISTORY;
+        delayCount = Math.min(delayCount + 1, DELAY_HISTORY);
+      }
+    }
+
+    windows++;
+    float weight = Math.max(MIN_WEIGHT, 1.0f / windows);
+    Iterator<Map.Entry<String, Float>> entries = presence.entrySet().iterator();
+
+    while (entries.hasNext()) {
+      Map.Entry<String, Float> entry = entries.next();
+      float share = entry.getValue() * (1 - weight) + (reported.remove(entry.getKey()) ? weight : 0);
+
+      if (share < FORGET_SHARE) {
+        entries.remove();
+      } else {
+        entry.setValue(share);
+      }
+    }
+
+    for (String ap : reported) {
+      presence.put(ap, weight);
+    }
+
+    lastWeight = weight;
+    lastLearned = System.nanoTime();
+    deadline = this.computeDeadline(percentile, margin);
+  }
+
+  /**
+   * System.nanoTime() when the last window was learned
+   * @return long
+   */
+  public long getLastLearned() {
+    return lastLearned;
+  }
+
+  /**
+   * Updates profile with replica which arrived after its window closed
+   * @param ap AP identifier
+   * @param delay arrival since the window was opened in ms
+   * @param percentile percentile of replica delays used as deadline
+   * @param margin added to the percentile in ms
+   */
+  public synchronized void learnLate(String ap, int delay, int percentile, int margin) {
+    // The AP did report the last window, corrects its share as if it was on time
+    presence.merge(ap, lastWeight, (share, weight) -> Math.min(1.0f, share + weight));
+    delays[delayNext] = delay;
+    delayNext = (delayNext + 1) % DELAY_HISTORY;
+    delayCount = Math.min(delayCount + 1, DELAY_HISTORY);
+    deadline = this.computeDeadline(percentile, margin);
+  }
+
+  /**
+   * Whether window holds replicas of all AP-s which usually report the device
+   * @param window open concentration window
+   * @param minWindows number of windows profile needs before it is trusted
+   * @param expectedShare AP reporting at least this share of windows is expected
+   * @return boolean
+   */
+  public synchronized boolean isComplete(ConcentrationWindow window, int minWindows, float expectedShare) {
+    if (windows < minWindows) {
+      return false;
+    }
+
+    boolean expectsAny = false;
+    for (Map.Entry<String, Float> entry : presence.entrySet()) {
+      if (entry.getValue() >= expectedShare) {
+        expectsAny = true;
+        if (!window.hasReplicaFrom(entry.getKey())) {
+          return false;
+        }
+      }
+    }
+    return expectsAny;
+  }
+
+  /**
+   * Time after which late replicas are unlikely
+   * @param minWindows number of windows profile needs before it is trusted
+   * @param upperBound fixed wait time, never exceeded
+   * @return deadline in ms
+   */
+  public synchronized int getDeadline(int minWindows, int upperBound) {
+    if (windows < minWindows || deadline < 0) {
+      return upperBound;
+    }
+    return Math.min(deadline, upperBound);
+  }
+
+  /**
+   * Deadline from delays of replicas after the first one
+   * @return deadline in ms, -1 until a second replica has been seen, so a device heard by one AP keeps fixed wait time
+   */
+  private int computeDeadline(int percentile, int margin) {
+    if (delayCount == 0) {
+      return -1;
+    }
+
+    int[] sorted = Arrays.copyOf(delays, delayCount);
+    Arrays.sort(sorted);
+    int index = Math.min(delayCount - 1, (int) Math.ceil(delayCount * percentile / 100.0) - 1);
+    return sorted[Math.max(0, index)] + margin;
+  }
+}
@@ -0,0 +1,61 @@
+package traffic;
+
+import core.HashedWheelTimer;
+import core.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recently closed concentration windows, replica arriving after its window closed joins the processed group
+ * Windows are kept for limited time and their number is bounded
+ * @author Alexander Valach
+ * @version 0.3
+ */
+public class LateReplicaCache {
+  private final ConcurrentHashMap<DedupKey, ConcentrationWindow> windows;
+  private final HashedWheelTimer timer;
+  private final int keepTime;
+  private final int capacity;
+
+  /**
+   * Constructor
+   * @param timer timer removing expired windows
+   * @param keepTime how long closed window accepts late replicas in ms
+   * @param capacity maximal number of kept windows
+   */
+  public LateReplicaCache(HashedWheelTimer timer, int keepTime, int capacity) {
+    this.windows = new ConcurrentHashMap<>();
+    this.timer = timer;
+    this.keepTime = keepTime;
+    this.capacity = capacity;
+    Metrics.gauge("concentrator.late.windows", windows::mappingCount);
+  }
+
+  /**
+   * Keeps closed window, must be called before the window leaves matching table
+   * @param window closed window
+   */
+  public void put(ConcentrationWindow window) {
+    if (keepTime <= 0) {
+      return;
+    }
+
+    if (windows.mappingCount() >= capacity) {
+      Metrics.increment("concentrator.late.full");
+      return;
+    }
+
+    DedupKey key = window.getKey();
+    windows.put(key, window);
+    timer.schedule(() -> windows.remove(key, window), keepTime);
+  }
+
+  /**
+   * Recently closed window of given key
+   * @param key matching table key
+   * @return ConcentrationWindow or null
+   */
+  public ConcentrationWindow get(DedupKey key) {
+    return windows.get(key);
+  }
+}
@@ -1,21 +1,57 @@
 package traffic;
 
+import core.HashedWheelTimer;
+import core.Metrics;
 import core.ProgramResources;
-import org.json.JSONObject;
+import core.Props;
+import core.ShardedExecutor;
+import message.Uplink;
+import processor.UplinkGroup;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Concentrates messages from different concentrators
+ * Memory is bounded, window over the open window cap or reaching the replica cap is finalized right away
+ * and replica repeated by the same AP is shed
+ * Device profiles are bounded too, profile of idle device is dropped and devices over the cap are not profiled
+ * Metrics: concentrator.windows.open, concentrator.replicas.buffered, concentrator.window.overflow,
+ * concentrator.window.full, concentrator.shed.replicas, concentrator.profiles, concentrator.profiles.full
  * @author Karol Cagáň
  * @author Alexander Valach
  * @version 0.3
  */
 public class LoRaConcentrator {
+  // Period of dropping idle device profiles in ms
+  private static final int PROFILE_SWEEP = 60000;
+
   public ProgramResources programResources;
-  private final HashMap<String, ArrayList<JSONObject>> matchingTable;
+  private final ConcurrentHashMap<DedupKey, ConcentrationWindow> matchingTable;
   private final boolean banditAlgorithm;
+  // Time to wait for all messages to come, e.g. synchronization timer
+  private final int waitTime;
+  private final HashedWheelTimer timer;
+  // Closed windows are processed on a lane of their device, devices run in parallel
+  private final ShardedExecutor processing;
+  // Replica arriving shortly after its window closed joins the processed group
+  private final LateReplicaCache lateReplicas;
+  // Learned per device, window closes once expected AP-s reported or learned deadline passed
+  private final boolean adaptive;
+  private final ConcurrentHashMap<String, DeviceProfile> profiles;
+  private final int minWindows;
+  private final float expectedShare;
+  private final int deadlinePercentile;
+  private final int deadlineMargin;
+  private final int profileIdleTime;
+  private final int maxProfiles;
+  // Bounds of memory held by open windows
+  private final int maxWindows;
+  private final int maxReplicas;
+  private final AtomicLong buffered;
+  // Processing reads are done on the device lane while the window is open, close only revalidates them
+  private final boolean prepare;
 
   /**
    * Constructor
@@ -23,95 +59,327 @@ public class LoRaConcentrator {
    */
   public LoRaConcentrator(ProgramResources programResources) {
     this.programResources = programResources;
-    String algorithm = programResources.props.getStr("ServerSetting.algorithm");
+    Props props = programResources.props;
+    String algorithm = props.getStr("ServerSetting.algorithm");
     this.banditAlgorithm = algorithm.equals("mab");
-    matchingTable = new HashMap<>();
+    this.waitTime = props.getInt("ConcentratorDeadTimer.waitTime");
+    this.processing = new ShardedExecutor("processing", props.getInt("ServerSetting.processingThreads", 0), programResources.executionMode);
+    // One timer closes all windows, closing is cheap and runs on the timer thread, processing is handed to device lane
+    this.timer = new HashedWheelTimer(
+      "concentrator.timer",
+      props.getInt("ConcentratorDeadTimer.tickDuration", 10),
+      props.getInt("ConcentratorDeadTimer.wheelSize", 512),
+      Runnable::run
+    );
+    this.adaptive = props.getStr("ConcentratorDeadTimer.adaptive", "true").equals("true");
+    this.profiles = new ConcurrentHashMap<>();
+    this.minWindows = props.getInt("ConcentratorDeadTimer.minWindows", 10);
+    this.expectedShare = props.getInt("ConcentratorDeadTimer.expectedShare", 90) / 100.0f;
+    this.deadlinePercentile = props.getInt("ConcentratorDeadTimer.deadlinePercentile", 95);
+    this.deadlineMargin = props.getInt("ConcentratorDeadTimer.deadlineMargin", 20);
+    this.profileIdleTime = props.getInt("ConcentratorDeadTimer.profileIdleTime", 3600000);
+    this.maxProfiles = props.getInt("ConcentratorDeadTimer.maxProfiles", 100000);
+    this.prepare = props.getStr("ServerSetting.prepareProcessing", "true").equals("true");
+    this.lateReplicas = new LateReplicaCache(
+      timer,
+      props.getInt("ConcentratorDeadTimer.lateReplicaTime", 1000),
+      props.getInt("ConcentratorDeadTimer.lateReplicaCapacity", 100000)
+    );
+    this.maxWindows = props.getInt("ConcentratorDeadTimer.maxWindows", 100000);
+    this.maxReplicas = props.getInt("ConcentratorDeadTimer.maxReplicas", 64);
+    this.buffered = new AtomicLong();
+    matchingTable = new ConcurrentHashMap<>();
+    Metrics.gauge("concentrator.windows.open", matchingTable::mappingCount);
+    Metrics.gauge("concentrator.replicas.buffered", buffered::get);
+
+    if (adaptive) {
+      Metrics.gauge("concentrator.profiles", profiles::mappingCount);
+      timer.schedule(this::expireProfiles, PROFILE_SWEEP);
+    }
   }
 
   /**
    * Inserts messages into hashtable for matching communication
-   * @param jsonObject received JSON object
-   * @param apIdentifier sender local identifier
-   * @param hWID sender global identifier
-   * @param type message type
-   * @throws Exception
+   * @param uplink received RXL or REGR, carries identifiers of receiving AP for future callback
+   */
+  public void catchMsg(Uplink uplink) {
+    // Fixed size key, payload is hashed instead of concatenated
+    DedupKey key = DedupKey.of(uplink);
+    // Primary replica is chosen as replicas arrive, not rescanned at finalize
+    float metric = programResources.edProcessor.getMetric(uplink);
+
+    while (true) {
+      ConcentrationWindow window = matchingTable.get(key);
+
+      if (window == null) {
+        ConcentrationWindow closed = lateReplicas.get(key);
+
+        if (closed != null) {
+          this.absorbLate(closed, uplink);
+          return;
+        }
+
+        // Key is not present in table, the replica which inserts the window opens it
+        ConcentrationWindow opened = new ConcentrationWindow(key, uplink, metric);
+        window = matchingTable.putIfAbsent(key, opened);
+
+        if (window == null) {
+          buffered.incrementAndGet();
+
+          if (this.closeIfOverflow(opened)) {
+            return;
+          }
+          // Queued ahead of processing of the window, which may be queued by closing right below
+          this.prepare(opened, uplink);
+          this.startTimer(opened);
+          this.closeIfComplete(opened);
+          return;
+        }
+      }
+
+      // Message already caught from different AP, appends the message
+      ConcentrationWindow.Added added = window.add(uplink, metric);
+
+      if (added == ConcentrationWindow.Added.ADDED) {
+        buffered.incrementAndGet();
+
+        if (!this.closeIfFull(window)) {
+          this.closeIfComplete(window);
+        }
+        return;
+      }
+
+      // Each AP receives a message once, repeated replica is a replay
+      if (added == ConcentrationWindow.Added.REPEATED) {
+        Metrics.increment("concentrator.shed.replicas");
+        return;
+      }
+
+      // Window has just been closed, replica starts a new one
+      matchingTable.remove(key, window);
+    }
+  }
+
+  /**
+   * Prepares processing of a new RXL window on its device lane while replicas are still coming
+   * Emergency window closes right away and registration reads nothing up front, neither is prepared
+   * @param window opened window
+   * @param first replica which opened the window
+   */
+  private void prepare(ConcentrationWindow window, Uplink first) {
+    if (!prepare || !window.getType().equals(Uplink.TYPE_NORMAL)) {
+      return;
+    }
+
+    processing.execute(window.getDevId(), () -> window.setPrepared(programResources.edProcessor.prepareRXL(first)));
+  }
+
+  /**
+   * Starts synchronization timer of a new window, no need to wait in case of emergency
+   * Fixed wait time is the upper bound, learned deadline of the device may be shorter
+   * @param window opened window
+   */
+  private void startTimer(ConcentrationWindow window) {
+    if (window.getType().equals(Uplink.TYPE_EMERGENCY)) {
+      System.out.println("Emergency message received, skipping message synchronization");
+      timer.schedule(new ConcentratorDeadTimer(window, this), 0);
+      return;
+    }
+
+    DeviceProfile profile = adaptive ? profiles.get(window.getDevId()) : null;
+    int deadline = profile == null ? waitTime : profile.getDeadline(minWindows, waitTime);
+
+    if (deadline < waitTime) {
+      Metrics.increment("concentrator.window.learnedDeadline");
+    }
+    timer.schedule(new ConcentratorDeadTimer(window, this), deadline);
+  }
+
+  /**
+   * Finalizes new window right away when too many windows are open, its message is processed without concentration
+   * @param window opened window
+   * @return whether window is being closed
+   */
+  private boolean closeIfOverflow(ConcentrationWindow window) {
+    if (matchingTable.mappingCount() <= maxWindows || !window.markClosing()) {
+      return false;
+    }
+
+    Metrics.increment("concentrator.window.overflow");
+    timer.schedule(new ConcentratorDeadTimer(window, this), 0);
+    return true;
+  }
+
+  /**
+   * Finalizes window right away when it holds maximal number of replicas, later replicas are handled as late
+   * @param window open window
+   * @return whether window is being closed
    */
-  public void catchMsg(JSONObject jsonObject, int apIdentifier, String hWID, String type) throws Exception {
-    // Appends the JSON with internal AP identifier for future callback
-    jsonObject.put("apIdentifier", apIdentifier);
-    jsonObject.put("hWIdentifier", hWID);
-    ArrayList<JSONObject> myGrape;
+  private boolean closeIfFull(ConcentrationWindow window) {
+    if (window.size() < maxReplicas || !window.markClosing()) {
+      return false;
+    }
 
-    boolean isRegistration = type.equals("reg");
-    // Builds string hash key
-    String key;
+    Metrics.increment("concentrator.window.full");
+    timer.schedule(new ConcentratorDeadTimer(window, this), 0);
+    return true;
+  }
 
-    if (isRegistration) {
-      key = jsonObject.getString("dev_id");
-    } else {
-      key = jsonObject.getString("data") + jsonObject.getString("dev_id");
+  /**
+   * Closes window before its timer when all AP-s which usually report the device did so
+   * @param window open window
+   */
+  private void closeIfComplete(ConcentrationWindow window) {
+    if (!adaptive) {
+      return;
     }
 
-    synchronized (matchingTable) {
-      myGrape = matchingTable.get(key);
+    DeviceProfile profile = profiles.get(window.getDevId());
+
+    if (profile != null && profile.isComplete(window, minWindows, expectedShare) && window.markClosing()) {
+      Metrics.increment("concentrator.window.complete");
+      timer.schedule(new ConcentratorDeadTimer(window, this), 0);
+    }
+  }
+
+  /**
+   * Writes late replica into group of its closed window as non-primary, it is not processed again
+   * @param window recently closed window
+   * @param uplink late replica
+   */
+  private void absorbLate(ConcentrationWindow window, Uplink uplink) {
+    String ap = DeviceProfile.apOf(uplink);
+
+    if (!window.addLateFrom(ap)) {
+      Metrics.increment("concentrator.shed.replicas");
+      return;
     }
 
-    if (myGrape == null) {
-      // Key is not present in table, creates a new entry
-      myGrape = new ArrayList<JSONObject>();
-      myGrape.add(jsonObject);
+    Metrics.increment("concentrator.late.absorbed");
 
-      synchronized (matchingTable) {
-        matchingTable.put(key, myGrape);
+    if (adaptive && !window.getType().equals(Uplink.TYPE_EMERGENCY)) {
+      DeviceProfile profile = profiles.get(window.getDevId());
+      if (profile != null) {
+        int delay = (int) ((System.nanoTime() - window.getOpenedAt()) / 1000000);
+        profile.learnLate(ap, delay, deadlinePercentile, deadlineMargin);
       }
-      // Starts synchronization timer
-      new ConcentratorDeadTimer(key, this, type).start();
-    } else {
-      // Message already caught from different AP, appends the message
-      myGrape.add(jsonObject);
-      synchronized (matchingTable) {
-        matchingTable.replace(key, myGrape);
+    }
+
+    // Window may be closed but not processed yet, its processing writes the replica then
+    if (window.deferLate(uplink)) {
+      return;
+    }
+
+    ArrayList<Uplink> late = new ArrayList<>(1);
+    late.add(uplink);
+    processing.execute(window.getDevId(), () -> this.writeLate(window.getGroup(), late));
+  }
+
+  /**
+   * Writes late replicas into processed group as non-primary
+   * @param group group of the closed window, null when its message was discarded
+   * @param late late replicas or null
+   */
+  private void writeLate(UplinkGroup group, ArrayList<Uplink> late) {
+    if (group != null && late != null && !late.isEmpty()) {
+      programResources.dbHandler.getWriteBehind().bulkInsertUplinkMessages(late, null, group.getMsgGroupId(), group.getMsgTypeId());
+    }
+  }
+
+  /**
+   * Removes window from matching table, closes it and learns from it
+   * @param window concentration window
+   * @return all replicas of the window, null when already closed
+   */
+  private ArrayList<Uplink> close(ConcentrationWindow window) {
+    // Replica which finds the window closed must find it among late replica windows,
+    // registration is not, its repeated REGR is a retry which must be answered
+    if (!window.isClosed() && !window.getType().equals(Uplink.TYPE_REGISTRATION)) {
+      lateReplicas.put(window);
+    }
+
+    ArrayList<Uplink> currentGrape = window.close();
+
+    if (currentGrape == null) {
+      return null;
+    }
+
+    matchingTable.remove(window.getKey(), window);
+    buffered.addAndGet(-currentGrape.size());
+    Metrics.recordSince("concentrator.window.duration", window.getOpenedAt());
+
+    if (adaptive && !window.getType().equals(Uplink.TYPE_EMERGENCY)) {
+      this.learn(window);
+    }
+    return currentGrape;
+  }
+
+  /**
+   * Learns closed window into profile of its device, creates the profile unless there are too many
+   * @param window closed window
+   */
+  private void learn(ConcentrationWindow window) {
+    DeviceProfile profile = profiles.get(window.getDevId());
+
+    if (profile == null) {
+      if (profiles.mappingCount() >= maxProfiles) {
+        Metrics.increment("concentrator.profiles.full");
+        return;
       }
+      profile = profiles.computeIfAbsent(window.getDevId(), k -> new DeviceProfile());
     }
+    profile.learn(window, deadlinePercentile, deadlineMargin);
+  }
+
+  /**
+   * Drops profiles of devices which closed no window for profileIdleTime, runs periodically on the timer
+   */
+  private void expireProfiles() {
+    long idleSince = System.nanoTime() - profileIdleTime * 1000000L;
+    profiles.values().removeIf(profile -> profile.getLastLearned() - idleSince < 0);
+    timer.schedule(this::expireProfiles, PROFILE_SWEEP);
   }
 
   /**
    * After the messages have been synchronized clears the hashmap and handles messages
-   * @param key matching table key
+   * @param window concentration window
    */
-  public void finalize(String key) {
-    ArrayList<JSONObject> currentGrape;
+  public void finalize(ConcentrationWindow window) {
+    ArrayList<Uplink> currentGrape = this.close(window);
 
-    synchronized (matchingTable) {
-      currentGrape = matchingTable.remove(key);
+    if (currentGrape == null) {
+      return;
     }
 
-    // Calls server logic to process the messages
-    synchronized (programResources.edProcessor) {
+    // Calls server logic to process the messages, in order for each device, emergency ahead of other devices
+    Uplink primary = window.getPrimary();
+    processing.execute(window.getDevId(), () -> {
       if (this.banditAlgorithm) {
-        programResources.apProcessor.updateBandits(currentGrape);
+        programResources.apProcessor.updateBandits(primary);
       }
-      programResources.edProcessor.processRXL(currentGrape);
-    }
+      UplinkGroup group = programResources.edProcessor.processRXL(currentGrape, primary, window.getPrepared());
+      this.writeLate(group, window.setGroup(group));
+    }, window.getType().equals(Uplink.TYPE_EMERGENCY));
   }
 
   /**
    * After the messages have been synchronized clears the hashmap and handles messages
-   * @param key String
+   * @param window concentration window
    */
-  public void register(String key) {
-    ArrayList<JSONObject> currentGrape;
+  public void register(ConcentrationWindow window) {
+    ArrayList<Uplink> currentGrape = this.close(window);
 
-    synchronized (matchingTable) {
-      currentGrape = matchingTable.remove(key);
+    if (currentGrape == null) {
+      return;
     }
 
-    // Calls server logic to process the messages
-    synchronized (programResources.edProcessor) {
+    // Calls server logic to process the messages, in order for each device, ahead of normal traffic
+    Uplink primary = window.getPrimary();
+    processing.execute(window.getDevId(), () -> {
       if (this.banditAlgorithm) {
-        programResources.apProcessor.updateBandits(currentGrape);
+        programResources.apProcessor.updateBandits(primary);
       }
-      programResources.apProcessor.processREGR(currentGrape);
-    }
+      programResources.apProcessor.processREGR(currentGrape, primary);
+    }, true);
   }
 }
@@ -1,11 +1,18 @@
 package traffic;
 
+import connection.APConnection;
+import connection.Frame;
 import connection.SocketListener;
-import connection.SocketThread;
 import core.DateManager;
+import core.Metrics;
 import core.ProgramResources;
-import org.json.JSONException;
-import org.json.JSONObject;
+import message.KeyRequest;
+import message.KeyResponse;
+import message.KeyShare;
+import message.MessageDecoder;
+import message.SetupRequest;
+import message.StiotMessage;
+import message.Uplink;
 
 /**
  * Handles all incoming messages
@@ -27,44 +34,41 @@ public class MessageController implements SocketListener {
   /**
    * Processes a received message
    * @param st local socket thread
-   * @param message received message
+   * @param message received JSON or CBOR message
    * @param online is ap online
    * @param apIdentifier local ap identifier
    */
-  public void process(SocketThread st, String message, boolean online, int apIdentifier) {
+  public void process(APConnection st, Frame message, boolean online, int apIdentifier) {
     System.out.println(DateManager.formatDate("dd.MM.yyyy>HH:mm:ss") + ": Received a new message from " + apIdentifier);
     System.out.println("Message content: " + message);
 
     try {
-      JSONObject jsonMessage = new JSONObject(message);
-      // Calls service program according to message type
-      JSONObject messageBody = jsonMessage.getJSONObject("message_body");
-      String type;
+      Metrics.increment("uplink." + message.getEncoding().getName());
+      StiotMessage stiotMessage = MessageDecoder.decode(message, apIdentifier, st.getHwIdentifier());
 
-      switch (jsonMessage.getString("message_name")) {
-        case "RXL":
-        case "REGR":
-          try {
-            type = messageBody.getString("type");
-          } catch (JSONException e) {
-            System.out.println("Message type not found, setting message type to: NORMAL");
-            type = "normal";
-          }
-          programResources.loRaConcentrator.catchMsg(messageBody, apIdentifier, st.getHwIdentifier(), type);
+      if (stiotMessage == null) {
+        return;
+      }
+
+      // Calls service program according to message type
+      switch (stiotMessage.getName()) {
+        case StiotMessage.RXL:
+        case StiotMessage.REGR:
+          programResources.loRaConcentrator.catchMsg((Uplink) stiotMessage);
           break;
-        case "KEYR":
-          JSONObject responseKEYR = programResources.apProcessor.processKEYR(messageBody);
+        case StiotMessage.KEYR:
+          KeyResponse responseKEYR = programResources.apProcessor.processKEYR((KeyRequest) stiotMessage);
           if (responseKEYR != null) {
-            st.write(responseKEYR.toString());
+            st.write(responseKEYR);
           } else {
             System.out.println("Nothing to send to the client.");
           }
           break;
-        case "KEYS":
-          programResources.apProcessor.processKEYS(messageBody);
+        case StiotMessage.KEYS:
+          programResources.apProcessor.processKEYS((KeyShare) stiotMessage);
           break;
-        case "SETR":
-          programResources.apProcessor.processSETR(messageBody, st);
+        case StiotMessage.SETR:
+          programResources.apProcessor.processSETR((SetupRequest) stiotMessage, st);
           break;
         default:
           break;
@@ -80,6 +84,7 @@ public class MessageController implements SocketListener {
    */
   public void socketDown(int apIdentifier) {
     System.out.println("Connection with " + apIdentifier + " has been lost!");
+    programResources.sslConnection.apRegistry.remove(apIdentifier);
   }
 
 }